@@ -37,8 +37,9 @@ dependencies {
     implementation("ai.djl.pytorch:pytorch-jni")
 }
 
+// the foreign memory API used by off-heap storage is a preview feature on JDK 21
 tasks.test {
-    jvmArgs(listOf("--add-modules", "jdk.incubator.vector"))
+    jvmArgs(listOf("--enable-preview", "--add-modules", "jdk.incubator.vector"))
     useJUnitPlatform()
 }
 
@@ -48,15 +49,19 @@ tasks.withType<KotlinCompile> {
 }
 
 tasks.withType<JavaCompile> {
-    options.compilerArgs.addAll(listOf("--add-modules", "jdk.incubator.vector"))
+    options.compilerArgs.addAll(
+        listOf("--enable-preview", "--release", "21", "--add-modules", "jdk.incubator.vector"))
 }
 
-tasks.withType<JavaExec> { jvmArgs(listOf("--add-modules", "jdk.incubator.vector")) }
+tasks.withType<JavaExec> {
+    jvmArgs(listOf("--enable-preview", "--add-modules", "jdk.incubator.vector"))
+}
 
 // == Benchmark configs start ==
 jmh {
     warmupIterations.set(3) // Default is 10
     iterations.set(3) // Default is 10
+    jvmArgs.addAll("--enable-preview", "--add-modules=jdk.incubator.vector")
     //    warmup.set("10s")      // Default is '10 s'
     //    timeOnIteration.set("10s")  // Default is '10 s'
 
@@ -64,7 +69,9 @@ jmh {
     //    includes.addAll("benchmarks.BenchmarkLibraries")
 }
 
-tasks.jmhRunBytecodeGenerator { jvmArgs.addAll("--add-modules=jdk.incubator.vector") }
+tasks.jmhRunBytecodeGenerator {
+    jvmArgs.addAll("--enable-preview", "--add-modules=jdk.incubator.vector")
+}
 
 // == Benchmark configs end ==
 
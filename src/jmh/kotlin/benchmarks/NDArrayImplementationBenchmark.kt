@@ -4,6 +4,7 @@ import java.util.concurrent.TimeUnit
 import kotlin.random.Random
 import ndarray.NDArray
 import ndarray.NDArrays
+import ndarray.util.DType
 import org.openjdk.jmh.annotations.*
 
 // spotless:off
@@ -35,6 +36,11 @@ open class NDArrayImplementationBenchmark {
 
     private lateinit var NA: NDArray
     private lateinit var NB: NDArray
+    private lateinit var NR: NDArray
+    private lateinit var NT: NDArray
+    private lateinit var NC: NDArray
+    private lateinit var NH: NDArray
+    private lateinit var NI: NDArray
 
     @Setup
     fun setup() {
@@ -43,6 +49,11 @@ open class NDArrayImplementationBenchmark {
 
         NA = NDArrays.of(intArrayOf(size, size), A)
         NB = NDArrays.of(intArrayOf(size, size), B)
+        NR = NDArrays.of(intArrayOf(size), B.copyOf(size))
+        NT = NB.transpose()
+        NC = NA.max(1, true)
+        NH = NA.astype(DType.FLOAT16)
+        NI = NB.astype(DType.FLOAT16)
     }
 
     @Benchmark
@@ -50,6 +61,11 @@ open class NDArrayImplementationBenchmark {
         NA.add(NB)
     }
 
+    @Benchmark
+    fun addFloat16() {
+        NH.add(NI)
+    }
+
     @Benchmark
     fun addVector() {
         NA.addVector(NB)
@@ -64,4 +80,64 @@ open class NDArrayImplementationBenchmark {
     fun addBroadcast() {
         NA.addBroadcast(NB)
     }
+
+    @Benchmark
+    fun addRowVector() {
+        NA.add(NR)
+    }
+
+    @Benchmark
+    fun addTransposed() {
+        NA.add(NT)
+    }
+
+    @Benchmark
+    fun logSumExp() {
+        NA.sub(NC).exp().sum(1).log()
+    }
+
+    @Benchmark
+    fun logSumExpFused() {
+        NA.lazy().sub(NC).exp().sum(1).log()
+    }
+
+    @Benchmark
+    fun sumRows() {
+        NA.sum(1)
+    }
+
+    @Benchmark
+    fun sumRowsFloat16() {
+        NH.sum(1)
+    }
+
+    @Benchmark
+    fun sumColumns() {
+        NA.sum(0)
+    }
+
+    @Benchmark
+    fun varRows() {
+        NA.`var`(intArrayOf(1), false)
+    }
+
+    @Benchmark
+    fun varColumns() {
+        NA.`var`(intArrayOf(0), false)
+    }
+
+    @Benchmark
+    fun normRows() {
+        NA.norm(intArrayOf(1), false)
+    }
+
+    @Benchmark
+    fun argmaxRows() {
+        NA.argmax(1)
+    }
+
+    @Benchmark
+    fun argmaxColumns() {
+        NA.argmax(0)
+    }
 }
@@ -0,0 +1,78 @@
+package benchmarks
+
+import java.util.concurrent.TimeUnit
+import kotlin.random.Random
+import ndarray.NDArray
+import ndarray.NDArrays
+import org.openjdk.jmh.annotations.*
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+@Fork(value = 1, jvmArgsPrepend = ["--add-modules=jdk.incubator.vector", "-XX:-TieredCompilation"])
+open class UnaryOperatorBenchmark {
+    @Param("64", "1024", "4096") private var size = 0
+
+    private lateinit var NA: NDArray
+    // positive inputs for log, sqrt and rsqrt
+    private lateinit var NP: NDArray
+    private lateinit var out: NDArray
+
+    @Setup
+    fun setup() {
+        val shape = intArrayOf(size, size)
+        NA = NDArrays.of(shape, FloatArray(size * size) { Random.nextFloat() * 8 - 4 })
+        NP = NDArrays.of(shape, FloatArray(size * size) { Random.nextFloat() + 1e-3F })
+        out = NDArrays.of(shape, FloatArray(size * size))
+    }
+
+    @Benchmark
+    fun exp() {
+        NA.exp(out)
+    }
+
+    @Benchmark
+    fun log() {
+        NP.log(out)
+    }
+
+    @Benchmark
+    fun tanh() {
+        NA.tanh(out)
+    }
+
+    @Benchmark
+    fun sigmoid() {
+        NA.sigmoid(out)
+    }
+
+    @Benchmark
+    fun gelu() {
+        NA.gelu(out)
+    }
+
+    @Benchmark
+    fun sqrt() {
+        NP.sqrt(out)
+    }
+
+    @Benchmark
+    fun rsqrt() {
+        NP.rsqrt(out)
+    }
+
+    @Benchmark
+    fun abs() {
+        NA.abs(out)
+    }
+
+    @Benchmark
+    fun neg() {
+        NA.neg(out)
+    }
+
+    @Benchmark
+    fun square() {
+        NA.square(out)
+    }
+}
@@ -0,0 +1,26 @@
+package ndarray;
+
+import ndarray.operator.ElementWiseUnaryOperator;
+
+/**
+ * Work fused into the store of a matmul result while the tile is still in registers, the result
+ * is {@code activation(alpha * A @ B + beta * c + bias)}. c has the shape of the result, bias holds
+ * one value per column and is broadcast along the rows, each of them may be null.
+ */
+public record Epilogue(
+        float alpha, float beta, NDArray c, NDArray bias, ElementWiseUnaryOperator activation) {
+
+    public static final Epilogue NONE = new Epilogue(1, 0, null, null, null);
+
+    public static Epilogue of(ElementWiseUnaryOperator activation) {
+        return new Epilogue(1, 0, null, null, activation);
+    }
+
+    public static Epilogue of(NDArray bias, ElementWiseUnaryOperator activation) {
+        return new Epilogue(1, 0, null, bias, activation);
+    }
+
+    public boolean isNone() {
+        return alpha == 1 && beta == 0 && bias == null && activation == null;
+    }
+}
@@ -0,0 +1,426 @@
+package ndarray;
+
+import static ndarray.util.Util.SPECIES;
+import static ndarray.util.Util.SPECIES_LEN;
+
+import jdk.incubator.vector.FloatVector;
+import ndarray.operator.ElementWiseUnaryOperator;
+import ndarray.storage.Storage;
+import ndarray.storage.Version;
+import ndarray.util.DType;
+
+// https://www.cs.utexas.edu/~flame/pubs/GotoTOMS_final.pdf
+// https://github.com/flame/blis/blob/master/docs/KernelsHowTo.md
+class Gemm {
+
+    // register tile: MR rows of A times NR (two vectors) columns of B
+    static final int MR = 6;
+    static final int NR = 2 * SPECIES_LEN;
+
+    // cache blocks: KC x NR sliver of B in L1, MC x KC block of A in L2, KC x NC panel of B in L3
+    static final int KC = 256;
+    static final int MC = 16 * MR;
+    static final int NC = 4096;
+
+    private static final ThreadLocal<float[]> PACKED_A =
+            ThreadLocal.withInitial(() -> new float[MC * KC]);
+    private static final ThreadLocal<float[]> TILE =
+            ThreadLocal.withInitial(() -> new float[MR * NR]);
+
+    /**
+     * C[m, n] = epilogue(A[m, k] @ B[k, n]), A and B are addressed by (offset, row stride, column
+     * stride), so any 2-D layout can be packed. C is row-major with leading dimension ldc, it holds
+     * the epilogue's c on entry. bias is the epilogue's bias as a dense array, or null. B is read
+     * from packed instead when it has been packed before, or packed per call if packed is null.
+     */
+    static void gemm(
+            int m,
+            int n,
+            int k,
+            Storage A,
+            int aOff,
+            int aRs,
+            int aCs,
+            Storage B,
+            int bOff,
+            int bRs,
+            int bCs,
+            Storage C,
+            int cOff,
+            int ldc,
+            Epilogue epilogue,
+            float[] bias,
+            PackedB packed) {
+        if (m == 0 || n == 0) {
+            return;
+        }
+
+        if (k == 0) {
+            // nothing to multiply, but the epilogue still applies to C
+            storeEmpty(m, n, C, cOff, ldc, epilogue, bias);
+            return;
+        }
+
+        // packed panels of B, recycled with the result when the caller runs in a scope
+        float[] buffer = packed == null ? NDArrayScope.allocate(panelSize(k, n), false) : null;
+        long flops = (long) m * n * k;
+
+        for (int jc = 0; jc < n; jc += NC) {
+            int nc = Math.min(NC, n - jc);
+
+            for (int pc = 0; pc < k; pc += KC) {
+                int kc = Math.min(KC, k - pc);
+
+                float[] packedB;
+                if (packed != null) {
+                    packedB = packed.panel(jc, pc);
+                } else {
+                    packedB = buffer;
+                    packPanel(kc, nc, B, bOff + pc * bRs + jc * bCs, bRs, bCs, packedB, flops);
+                }
+
+                int jcF = jc;
+                int pcF = pc;
+                Store store =
+                        new Store(
+                                epilogue.alpha(),
+                                epilogue.beta(),
+                                bias,
+                                epilogue.activation(),
+                                pc == 0,
+                                pc + kc == k);
+                MatMul.loopBlocks(
+                        flops,
+                        ceilDiv(m, MC),
+                        icBlock -> {
+                            int ic = icBlock * MC;
+                            int mc = Math.min(MC, m - ic);
+
+                            float[] packedA = PACKED_A.get();
+                            packA(mc, kc, A, aOff + ic * aRs + pcF * aCs, aRs, aCs, packedA);
+                            macroKernel(
+                                    mc,
+                                    nc,
+                                    kc,
+                                    packedA,
+                                    packedB,
+                                    C,
+                                    cOff + ic * ldc + jcF,
+                                    ldc,
+                                    store,
+                                    jcF);
+                        });
+            }
+        }
+    }
+
+    private static void macroKernel(
+            int mc,
+            int nc,
+            int kc,
+            float[] packedA,
+            float[] packedB,
+            Storage C,
+            int cOff,
+            int ldc,
+            Store store,
+            int col) {
+        float[] tile = TILE.get();
+        for (int jr = 0; jr < nc; jr += NR) {
+            int nr = Math.min(NR, nc - jr);
+            for (int ir = 0; ir < mc; ir += MR) {
+                int mr = Math.min(MR, mc - ir);
+                microKernel(
+                        kc,
+                        packedA,
+                        ir * kc,
+                        packedB,
+                        jr * kc,
+                        C,
+                        cOff + ir * ldc + jr,
+                        ldc,
+                        mr,
+                        nr,
+                        tile,
+                        store,
+                        col + jr);
+            }
+        }
+    }
+
+    private static int panelSize(int k, int n) {
+        return Math.min(KC, k) * roundUp(Math.min(NC, n), NR);
+    }
+
+    private static void packPanel(
+            int kc, int nc, Storage B, int bOff, int bRs, int bCs, float[] dst, long flops) {
+        MatMul.loopBlocks(
+                flops, ceilDiv(nc, NR), jr -> packB(kc, nc, jr * NR, B, bOff, bRs, bCs, dst));
+    }
+
+    // packs rows [0, mc) of the block into MR-row slivers, each stored as kc columns of MR values
+    private static void packA(int mc, int kc, Storage A, int aOff, int aRs, int aCs, float[] dst) {
+        for (int ir = 0; ir < mc; ir += MR) {
+            int mr = Math.min(MR, mc - ir);
+            int base = ir * kc;
+            for (int i = 0; i < mr; i++) {
+                int src = aOff + (ir + i) * aRs;
+                int d = base + i;
+                for (int p = 0; p < kc; p++) {
+                    dst[d] = A.get(src);
+                    src += aCs;
+                    d += MR;
+                }
+            }
+            for (int i = mr; i < MR; i++) {
+                int d = base + i;
+                for (int p = 0; p < kc; p++) {
+                    dst[d] = 0;
+                    d += MR;
+                }
+            }
+        }
+    }
+
+    // packs columns [jr, jr + NR) of the panel as kc rows of NR values
+    private static void packB(
+            int kc, int nc, int jr, Storage B, int bOff, int bRs, int bCs, float[] dst) {
+        int nr = Math.min(NR, nc - jr);
+        int d = jr * kc;
+        int src = bOff + jr * bCs;
+
+        if (bCs == 1 && nr == NR) {
+            for (int p = 0; p < kc; p++) {
+                B.read(src, dst, d, NR);
+                src += bRs;
+                d += NR;
+            }
+            return;
+        }
+
+        for (int p = 0; p < kc; p++) {
+            int s = src;
+            int j = 0;
+            for (; j < nr; j++) {
+                dst[d + j] = B.get(s);
+                s += bCs;
+            }
+            for (; j < NR; j++) {
+                dst[d + j] = 0;
+            }
+            src += bRs;
+            d += NR;
+        }
+    }
+
+    // C[MR, NR] = A_sliver @ B_sliver, partial tiles on the edges go through the tile buffer
+    private static void microKernel(
+            int kc,
+            float[] a,
+            int ai,
+            float[] b,
+            int bi,
+            Storage C,
+            int ci,
+            int ldc,
+            int mr,
+            int nr,
+            float[] tile,
+            Store store,
+            int col) {
+        var c00 = FloatVector.zero(SPECIES);
+        var c01 = FloatVector.zero(SPECIES);
+        var c10 = FloatVector.zero(SPECIES);
+        var c11 = FloatVector.zero(SPECIES);
+        var c20 = FloatVector.zero(SPECIES);
+        var c21 = FloatVector.zero(SPECIES);
+        var c30 = FloatVector.zero(SPECIES);
+        var c31 = FloatVector.zero(SPECIES);
+        var c40 = FloatVector.zero(SPECIES);
+        var c41 = FloatVector.zero(SPECIES);
+        var c50 = FloatVector.zero(SPECIES);
+        var c51 = FloatVector.zero(SPECIES);
+
+        for (int p = 0; p < kc; p++) {
+            var b0 = FloatVector.fromArray(SPECIES, b, bi);
+            var b1 = FloatVector.fromArray(SPECIES, b, bi + SPECIES_LEN);
+
+            var va = FloatVector.broadcast(SPECIES, a[ai]);
+            c00 = va.fma(b0, c00);
+            c01 = va.fma(b1, c01);
+            va = FloatVector.broadcast(SPECIES, a[ai + 1]);
+            c10 = va.fma(b0, c10);
+            c11 = va.fma(b1, c11);
+            va = FloatVector.broadcast(SPECIES, a[ai + 2]);
+            c20 = va.fma(b0, c20);
+            c21 = va.fma(b1, c21);
+            va = FloatVector.broadcast(SPECIES, a[ai + 3]);
+            c30 = va.fma(b0, c30);
+            c31 = va.fma(b1, c31);
+            va = FloatVector.broadcast(SPECIES, a[ai + 4]);
+            c40 = va.fma(b0, c40);
+            c41 = va.fma(b1, c41);
+            va = FloatVector.broadcast(SPECIES, a[ai + 5]);
+            c50 = va.fma(b0, c50);
+            c51 = va.fma(b1, c51);
+
+            ai += MR;
+            bi += NR;
+        }
+
+        if (mr == MR && nr == NR) {
+            int col1 = col + SPECIES_LEN;
+            store.apply(c00, C, ci, col);
+            store.apply(c01, C, ci + SPECIES_LEN, col1);
+            store.apply(c10, C, ci + ldc, col);
+            store.apply(c11, C, ci + ldc + SPECIES_LEN, col1);
+            store.apply(c20, C, ci + 2 * ldc, col);
+            store.apply(c21, C, ci + 2 * ldc + SPECIES_LEN, col1);
+            store.apply(c30, C, ci + 3 * ldc, col);
+            store.apply(c31, C, ci + 3 * ldc + SPECIES_LEN, col1);
+            store.apply(c40, C, ci + 4 * ldc, col);
+            store.apply(c41, C, ci + 4 * ldc + SPECIES_LEN, col1);
+            store.apply(c50, C, ci + 5 * ldc, col);
+            store.apply(c51, C, ci + 5 * ldc + SPECIES_LEN, col1);
+            return;
+        }
+
+        c00.intoArray(tile, 0);
+        c01.intoArray(tile, SPECIES_LEN);
+        c10.intoArray(tile, NR);
+        c11.intoArray(tile, NR + SPECIES_LEN);
+        c20.intoArray(tile, 2 * NR);
+        c21.intoArray(tile, 2 * NR + SPECIES_LEN);
+        c30.intoArray(tile, 3 * NR);
+        c31.intoArray(tile, 3 * NR + SPECIES_LEN);
+        c40.intoArray(tile, 4 * NR);
+        c41.intoArray(tile, 4 * NR + SPECIES_LEN);
+        c50.intoArray(tile, 5 * NR);
+        c51.intoArray(tile, 5 * NR + SPECIES_LEN);
+
+        for (int i = 0; i < mr; i++) {
+            int row = ci + i * ldc;
+            for (int j = 0; j < nr; j++) {
+                C.set(row + j, store.apply(tile[i * NR + j], C.get(row + j), col + j));
+            }
+        }
+    }
+
+    private static void storeEmpty(
+            int m, int n, Storage C, int cOff, int ldc, Epilogue epilogue, float[] bias) {
+        var store = new Store(0, epilogue.beta(), bias, epilogue.activation(), true, true);
+        for (int i = 0; i < m; i++) {
+            int row = cOff + i * ldc;
+            for (int j = 0; j < n; j++) {
+                C.set(row + j, store.apply(0, C.get(row + j), j));
+            }
+        }
+    }
+
+    /**
+     * How a finished tile is written back for one KC block. The first block scales the product by
+     * alpha and adds beta * C (C is not read when beta is 0), later blocks accumulate onto C, and
+     * the last one adds the bias and applies the activation.
+     */
+    record Store(
+            float alpha,
+            float beta,
+            float[] bias,
+            ElementWiseUnaryOperator activation,
+            boolean first,
+            boolean last) {
+
+        // the whole product is available at once, as in the layout kernels
+        static Store of(Epilogue epilogue, float[] bias) {
+            return new Store(
+                    epilogue.alpha(), epilogue.beta(), bias, epilogue.activation(), true, true);
+        }
+
+        void apply(FloatVector acc, Storage C, int index, int col) {
+            var v = alpha == 1 ? acc : acc.mul(alpha);
+            if (!first) {
+                v = v.add(C.load(index));
+            } else if (beta != 0) {
+                v = C.load(index).mul(beta).add(v);
+            }
+
+            if (last) {
+                if (bias != null) {
+                    v = v.add(FloatVector.fromArray(SPECIES, bias, col));
+                }
+                if (activation != null && C.dtype() == DType.FLOAT32) {
+                    // through the loop shared by the operators, passing the vector to a call of
+                    // processVector that is not inlined would box it
+                    C.store(v, index);
+                    activation.performRun(SPECIES_LEN, C, index, 1, C, index, 1);
+                    return;
+                }
+                if (activation != null) {
+                    v = activation.processVector(v);
+                }
+            }
+            C.store(v, index);
+        }
+
+        float apply(float acc, float c, int col) {
+            float v = alpha * acc;
+            if (!first) {
+                v += c;
+            } else if (beta != 0) {
+                v += beta * c;
+            }
+
+            if (last) {
+                if (bias != null) {
+                    v += bias[col];
+                }
+                if (activation != null) {
+                    v = activation.processSingle(v);
+                }
+            }
+            return v;
+        }
+    }
+
+    /**
+     * A B operand packed once into the panel layout read by the micro kernel, one KC x NC panel per
+     * (pc, jc) block, so repeated products against the same matrix skip the packing. It is current
+     * until the storage it was packed from is written.
+     */
+    record PackedB(int k, int n, float[][] panels, Version version, int snapshot) {
+
+        static PackedB pack(int k, int n, Storage B, int bOff, int bRs, int bCs) {
+            // taken before the panels, a write while they are packed makes them stale
+            int snapshot = B.version().snapshot();
+            int kBlocks = ceilDiv(k, KC);
+            float[][] panels = new float[ceilDiv(n, NC) * kBlocks][];
+            for (int jc = 0; jc < n; jc += NC) {
+                int nc = Math.min(NC, n - jc);
+                for (int pc = 0; pc < k; pc += KC) {
+                    int kc = Math.min(KC, k - pc);
+                    float[] panel = new float[kc * roundUp(nc, NR)];
+                    int bBase = bOff + pc * bRs + jc * bCs;
+                    packPanel(kc, nc, B, bBase, bRs, bCs, panel, Long.MAX_VALUE);
+                    panels[jc / NC * kBlocks + pc / KC] = panel;
+                }
+            }
+            return new PackedB(k, n, panels, B.version(), snapshot);
+        }
+
+        boolean isCurrent() {
+            return version.isCurrent(snapshot);
+        }
+
+        float[] panel(int jc, int pc) {
+            return panels[jc / NC * ceilDiv(k, KC) + pc / KC];
+        }
+    }
+
+    static int ceilDiv(int a, int b) {
+        return (a + b - 1) / b;
+    }
+
+    static int roundUp(int a, int b) {
+        return ceilDiv(a, b) * b;
+    }
+}
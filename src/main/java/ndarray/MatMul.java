@@ -1,222 +1,1119 @@
 package ndarray;
 
+import static ndarray.util.Util.DOUBLE_SPECIES;
+import static ndarray.util.Util.DOUBLE_SPECIES_LEN;
+import static ndarray.util.Util.INT_SPECIES;
 import static ndarray.util.Util.SPECIES;
 import static ndarray.util.Util.SPECIES_LEN;
 import static ndarray.util.Util.arrOf;
 
 import java.util.Arrays;
+import java.util.function.IntConsumer;
+import jdk.incubator.vector.DoubleVector;
 import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.IntVector;
 import jdk.incubator.vector.VectorOperators;
+import ndarray.storage.DoubleStorage;
+import ndarray.storage.HeapStorage;
+import ndarray.storage.IntStorage;
+import ndarray.storage.Storage;
 import ndarray.util.ConcurrentUtil;
+import ndarray.util.DType;
 import ndarray.util.Flags;
+import ndarray.util.PresentUtil;
+import ndarray.util.ShapeUtil;
 
 public class MatMul {
 
+    // below this many multiply-adds the layout kernels win, packing does not pay off
+    private static final long GEMM_THRESHOLD = 64L * 64 * 64;
+
+    // rows of one matrix handled by a single task of the batched dispatch
+    private static final int BATCH_ROW_TILE = 16;
+
+    // multiply-adds done by one task of a matrix-vector or outer product
+    private static final int VECTOR_GRAIN = 1 << 14;
+
+    private static final ThreadLocal<float[]> ROW = ThreadLocal.withInitial(() -> new float[0]);
+
+    public static final String PARALLEL_THRESHOLD_PROPERTY = "ndarray.matmul.parallelThreshold";
+
+    // bounds of the calibrated threshold, 16^3 and 128^3 multiply-adds
+    private static final long MIN_PARALLEL_THRESHOLD = 1L << 12;
+    private static final long MAX_PARALLEL_THRESHOLD = 1L << 21;
+
+    // products with fewer multiply-adds run on the calling thread, -1 until calibrated
+    private static volatile long parallelThreshold = -1;
+
+    public static long getParallelThreshold() {
+        long threshold = parallelThreshold;
+        if (threshold < 0) {
+            // not in the class initializer: the pool threads of the calibration would wait on it
+            synchronized (MatMul.class) {
+                if (parallelThreshold < 0) {
+                    parallelThreshold = initialParallelThreshold();
+                }
+                threshold = parallelThreshold;
+            }
+        }
+        return threshold;
+    }
+
+    /** Products below this many multiply-adds run inline, 0 always goes to the pool. */
+    public static void setParallelThreshold(long flops) {
+        if (flops < 0) {
+            throw new IllegalArgumentException(
+                    "parallel threshold must not be negative: %d".formatted(flops));
+        }
+        parallelThreshold = flops;
+    }
+
+    private static long initialParallelThreshold() {
+        String value = System.getProperty(PARALLEL_THRESHOLD_PROPERTY);
+        if (value != null) {
+            return Long.parseLong(value);
+        }
+        if (Runtime.getRuntime().availableProcessors() == 1) {
+            return Long.MAX_VALUE;
+        }
+        return calibrateParallelThreshold();
+    }
+
+    /**
+     * Times an empty round trip through the pool against a 32^3 product on the row kernel, going
+     * parallel pays off once the arithmetic takes a few times as long as the dispatch. Runs once
+     * on the first product and takes the fastest of a few runs, a couple of milliseconds.
+     */
+    private static long calibrateParallelThreshold() {
+        int size = 32;
+        float[] ones = new float[size * size];
+        Arrays.fill(ones, 1);
+        Storage A = Storage.of(ones), B = Storage.of(ones), C = Storage.of(new float[size * size]);
+
+        long dispatch = Long.MAX_VALUE, compute = Long.MAX_VALUE;
+        for (int run = 0; run < 100; run++) {
+            long t0 = System.nanoTime();
+            ConcurrentUtil.roundTrip();
+            long t1 = System.nanoTime();
+            fourRowsCC(A, 0, size, B, 0, size, C, 0, size, size, size, size, null);
+            long t2 = System.nanoTime();
+
+            dispatch = Math.min(dispatch, t1 - t0);
+            compute = Math.min(compute, t2 - t1);
+        }
+
+        double nanosPerFlop = (double) Math.max(compute, 1) / (size * size * size);
+        long threshold = (long) (4 * dispatch / nanosPerFlop);
+        return Math.clamp(threshold, MIN_PARALLEL_THRESHOLD, MAX_PARALLEL_THRESHOLD);
+    }
+
     public static NDArray matmul(NDArray a, NDArray b) {
-        if (a.shape.length != 2 || b.shape.length != 2 || a.shape[1] != b.shape[0]) {
+        return matmul(a, b, Epilogue.NONE);
+    }
+
+    /**
+     * The product in the promoted type of a and b, int32 for integers. Float64 products are
+     * computed in double, int32 ones in int, which wraps like Java's arithmetic, and the others in
+     * float32 through the kernels below. Those of 16-bit floats are accumulated in float32 and
+     * rounded once at the end.
+     */
+    public static NDArray matmul(NDArray a, NDArray b, Epilogue epilogue) {
+        int[] resShape = resultShape(a, b);
+        DType type = DType.promote(a.getDType(), b.getDType()).toAccumulator();
+        if (type != DType.FLOAT32 && type.byteSize() != 2) {
+            NDArray res = NDArrays.empty(resShape, type);
+            if (epilogue.c() != null && epilogue.beta() != 0) {
+                checkShape("c", epilogue.c(), resShape);
+                NDArrays.copy(epilogue.c(), res);
+            }
+            compute(a, b, res, epilogue);
+            return res;
+        }
+
+        // every kernel overwrites the result, it needs no zeroing
+        float[] data = NDArrayScope.allocate(ShapeUtil.getSize(resShape), false);
+        if (epilogue.c() != null && epilogue.beta() != 0) {
+            checkShape("c", epilogue.c(), resShape);
+            PresentUtil.toArray(epilogue.c(), data);
+        }
+        NDArray res = NDArrays.of(resShape, data);
+
+        compute(a, b, res, epilogue);
+        return res.getDType() == type ? res : res.astype(type);
+    }
+
+    /**
+     * Writes a @ b into out, or adds it onto out when accumulate is set, without allocating the
+     * result. out must have the shape of the result and must not overlap a or b, it can be a view
+     * (offset, padded or column-major matrices) and is filled through its strides.
+     */
+    public static NDArray matmulInto(NDArray out, NDArray a, NDArray b, boolean accumulate) {
+        checkShape("out", out, resultShape(a, b));
+
+        var epilogue = accumulate ? new Epilogue(1, 1, out, null, null) : Epilogue.NONE;
+        int dim = out.shape.length;
+        // the kernels add the blocks of k onto the result, 16-bit floats would round each time
+        boolean half = out.getDType().byteSize() == 2;
+        if (out.strides[dim - 1] == 1 && !half) {
+            compute(a, b, out, epilogue);
+        } else if (out.strides[dim - 2] == 1 && !half) {
+            // column-major matrices: out^T = b^T @ a^T is row-major in the same memory
+            compute(swapLastAxes(b), swapLastAxes(a), swapLastAxes(out), epilogue);
+        } else {
+            NDArray res = NDArrays.empty(out.shape, half ? DType.FLOAT32 : out.getDType());
+            compute(a, b, res, Epilogue.NONE);
+            int[] indices = new int[dim];
+            for (int i = 0; i < res.getSize(); i++) {
+                double v = res.storage.getDouble(i);
+                int index = out.offset + ShapeUtil.getFlatIndex(indices, out.strides);
+                out.storage.setDouble(index, accumulate ? out.storage.getDouble(index) + v : v);
+                ShapeUtil.increaseIndices(indices, out.shape);
+            }
+        }
+        return out;
+    }
+
+    private static int[] resultShape(NDArray a, NDArray b) {
+        int dimA = a.shape.length;
+        int dimB = b.shape.length;
+        if (dimA < 2 || dimB < 2 || a.shape[dimA - 1] != b.shape[dimB - 2]) {
             throw new IllegalArgumentException(
-                    "MatMul only supports dense Matrix(2D-Array) right now, shapeA: %s, shapeB: %s."
+                    "MatMul only supports N-D Arrays (N >= 2) right now, shapeA: %s, shapeB: %s."
                             .formatted(Arrays.toString(a.shape), Arrays.toString(b.shape)));
         }
 
-        if (a.offset != 0 || b.offset != 0) {
+        int[] batchShape =
+                ShapeUtil.broadcastShapes(
+                        Arrays.copyOf(a.shape, dimA - 2), Arrays.copyOf(b.shape, dimB - 2));
+        int[] resShape = Arrays.copyOf(batchShape, batchShape.length + 2);
+        resShape[batchShape.length] = a.shape[dimA - 2];
+        resShape[batchShape.length + 1] = b.shape[dimB - 1];
+        return resShape;
+    }
+
+    private static void checkShape(String name, NDArray array, int[] resShape) {
+        if (!ShapeUtil.shapesEqual(array.shape, resShape)) {
             throw new IllegalArgumentException(
-                    "MatMul only supports dense Matrix(2D-Array) right now, offsetA: %d, offsetB: %d."
-                            .formatted(a.offset, b.offset));
+                    "shape of %s %s does not match the result shape %s"
+                            .formatted(
+                                    name,
+                                    Arrays.toString(array.shape),
+                                    Arrays.toString(resShape)));
         }
+    }
 
-        if (Flags.isCContiguous(a.flags) && Flags.isCContiguous(b.flags)) {
-            return matmulCC(a, b);
-        } else if (Flags.isCContiguous(a.flags) && Flags.isFContiguous(b.flags)) {
-            return matmulCF(a, b);
-        } else if (Flags.isFContiguous(a.flags) && Flags.isCContiguous(b.flags)) {
-            return matmulFC(a, b);
-        } else if (Flags.isFContiguous(a.flags) && Flags.isFContiguous(b.flags)) {
-            return matmulFF(a, b);
+    // res has the shape of the result, its matrices are row-major and hold c on entry
+    private static void compute(NDArray a, NDArray b, NDArray res, Epilogue epilogue) {
+        int dim = res.shape.length;
+        float[] bias = denseBias(epilogue, res.shape[dim - 1]);
+        if (res.getDType() == DType.FLOAT64) {
+            matmulDoubles(a, b, res, epilogue, bias == null ? null : epilogue.bias());
+            return;
+        }
+        if (res.getDType() == DType.INT32) {
+            matmulInts(a, b, res, epilogue, bias == null ? null : epilogue.bias());
+            return;
+        }
+        if (dim > 2) {
+            matmulBatched(a, b, Arrays.copyOf(res.shape, dim - 2), res, epilogue, bias);
+        } else {
+            matmul2D(a, b, res, epilogue, bias);
         }
-
-        throw new IllegalArgumentException("Unsupported ordering");
     }
 
-    private static NDArray matmulCC(NDArray a, NDArray b) {
-        NDArray res = NDArrays.of(arrOf(a.shape[0], b.shape[1]));
+    private static void matmul2D(
+            NDArray a, NDArray b, NDArray res, Epilogue epilogue, float[] bias) {
+        int m = a.shape[0], k = a.shape[1], n = b.shape[1];
+        int ldc = res.strides[0];
+        Gemm.PackedB packed = b.packed();
+        if (m == 0 || n == 0) {
+            return;
+        }
 
-        float[] A = a.data;
-        float[] B = b.data;
-        float[] C = res.data;
+        if ((m == 1 || n == 1 || k == 1) && k > 0 && hasUnitStride(a) && hasUnitStride(b)) {
+            Gemm.Store store = epilogue.isNone() ? null : Gemm.Store.of(epilogue, bias);
+            if (k == 1) {
+                outer(a, b, res, m, n, store);
+            } else if (n == 1) {
+                // y[m] = A @ x, a dot product per row of a row-major A
+                boolean rowMajor = isRowMajor(a);
+                matvec(
+                        a.storage,
+                        a.offset,
+                        rowMajor ? a.strides[0] : a.strides[1],
+                        rowMajor,
+                        denseVector(b.storage, b.offset, b.strides[0], k),
+                        m,
+                        k,
+                        res.storage,
+                        res.offset,
+                        ldc,
+                        false,
+                        store);
+            } else {
+                // y[n] = x @ B = B^T @ x, a dot product per column of a column-major B
+                boolean colMajor = !isRowMajor(b);
+                matvec(
+                        b.storage,
+                        b.offset,
+                        colMajor ? b.strides[1] : b.strides[0],
+                        colMajor,
+                        denseVector(a.storage, a.offset, a.strides[1], k),
+                        n,
+                        k,
+                        res.storage,
+                        res.offset,
+                        1,
+                        true,
+                        store);
+            }
+            return;
+        }
 
-        int ANumRows = a.shape[0], ANumCols = a.shape[1];
-        int BNumRows = b.shape[0], BNumCols = b.shape[1];
-        int CNumRows = ANumRows, CNumCols = BNumCols;
+        // views without a unit stride can only be read through the packing of the GEMM engine
+        if (useGemm(a, b, m, n, k, packed)) {
+            Gemm.gemm(
+                    m,
+                    n,
+                    k,
+                    a.storage,
+                    a.offset,
+                    a.strides[0],
+                    a.strides[1],
+                    b.storage,
+                    b.offset,
+                    b.strides[0],
+                    b.strides[1],
+                    res.storage,
+                    res.offset,
+                    ldc,
+                    epilogue,
+                    bias,
+                    packed);
+            return;
+        }
+
+        int lda = leadingDimension(a);
+        int ldb = leadingDimension(b);
+
+        boolean rowMajorA = isRowMajor(a), rowMajorB = isRowMajor(b);
+        RowKernel kernel = rowKernel(rowMajorA, rowMajorB);
+        Gemm.Store store = epilogue.isNone() ? null : Gemm.Store.of(epilogue, bias);
+        Storage A = a.storage, B = b.storage, C = res.storage;
+        int aOff = a.offset, bOff = b.offset, cOff = res.offset;
+
+        if ((long) m * n * k < getParallelThreshold()) {
+            // small products: the pool round trip would cost more than the arithmetic
+            int start = 0;
+            if (rowMajorA && rowMajorB) {
+                start = fourRowsCC(A, aOff, lda, B, bOff, ldb, C, cOff, ldc, m, n, k, store);
+            }
+            computeRows(kernel, A, aOff, lda, B, bOff, ldb, C, cOff, ldc, n, k, start, m, store);
+            return;
+        }
 
         ConcurrentUtil.loopFor(
                 0,
-                ANumRows,
-                i -> {
-                    int indexCBase = i * CNumCols;
-                    {
-                        // init the row in C
-                        float valA = A[i * ANumCols];
+                m,
+                (start, end) ->
+                        computeRows(
+                                kernel,
+                                A,
+                                aOff,
+                                lda,
+                                B,
+                                bOff,
+                                ldb,
+                                C,
+                                cOff,
+                                ldc,
+                                n,
+                                k,
+                                start,
+                                end,
+                                store));
+    }
+
+    // float64 results in double, a row at a time: the rows of b scaled by the elements of the row
+    // of a and summed, vectorized along the rows when b is float64 with unit stride
+    private static void matmulDoubles(
+            NDArray a, NDArray b, NDArray res, Epilogue epilogue, NDArray biasArray) {
+        int dimA = a.shape.length, dimB = b.shape.length, dimC = res.shape.length;
+        int m = a.shape[dimA - 2], k = a.shape[dimA - 1], n = b.shape[dimB - 1];
+        int[] batchShape = Arrays.copyOf(res.shape, dimC - 2);
+        int[] offsetsA = batchOffsets(a, batchShape);
+        int[] offsetsB = batchOffsets(b, batchShape);
+        int[] offsetsC = batchOffsets(res, batchShape);
+        int aRs = a.strides[dimA - 2], aCs = a.strides[dimA - 1];
+        int bRs = b.strides[dimB - 2], bCs = b.strides[dimB - 1];
+        int cRs = res.strides[dimC - 2], cCs = res.strides[dimC - 1];
+
+        Storage A = a.storage, B = b.storage, C = res.storage;
+        double[] dense = B instanceof DoubleStorage d && bCs == 1 ? d.array() : null;
+        double[] bias = biasArray == null ? null : biasArray.toDoubleArray();
+        int rows = offsetsC.length * m;
+        loopBlocks(
+                (long) rows * n * k,
+                rows,
+                r -> {
+                    int bi = r / m, i = r % m;
+                    int aRow = offsetsA[bi] + i * aRs;
+                    double[] acc = new double[n];
+                    for (int p = 0; p < k; p++) {
+                        double x = A.getDouble(aRow + p * aCs);
+                        int bRow = offsetsB[bi] + p * bRs;
                         int j = 0;
-                        for (; j < SPECIES.loopBound(BNumCols); j += SPECIES_LEN) {
-                            var vb = FloatVector.fromArray(SPECIES, B, j);
-                            vb.mul(valA).intoArray(C, indexCBase + j);
+                        if (dense != null) {
+                            var vx = DoubleVector.broadcast(DOUBLE_SPECIES, x);
+                            for (; j < DOUBLE_SPECIES.loopBound(n); j += DOUBLE_SPECIES_LEN) {
+                                var vb = DoubleVector.fromArray(DOUBLE_SPECIES, dense, bRow + j);
+                                var va = DoubleVector.fromArray(DOUBLE_SPECIES, acc, j);
+                                vx.fma(vb, va).intoArray(acc, j);
+                            }
                         }
-
-                        for (; j < BNumCols; j++) {
-                            C[indexCBase + j] = valA * B[j];
+                        for (; j < n; j++) {
+                            acc[j] = Math.fma(x, B.getDouble(bRow + j * bCs), acc[j]);
                         }
                     }
 
-                    // sum up the final results
-                    for (int k = 1; k < BNumRows; k++) {
-                        int indexB = k * BNumCols;
-                        float valA = A[i * ANumCols + k];
+                    int cRow = offsetsC[bi] + i * cRs;
+                    for (int j = 0; j < n; j++) {
+                        int ci = cRow + j * cCs;
+                        C.setDouble(ci, applyEpilogue(epilogue, acc[j], C, ci, bias, j));
+                    }
+                });
+    }
+
+    // int32 results in int, which wraps like Java's arithmetic, the same way as matmulDoubles.
+    // The rows of b are vectorized when they are int32, or bytes loaded through the float lanes
+    // that hold them exactly
+    private static void matmulInts(
+            NDArray a, NDArray b, NDArray res, Epilogue epilogue, NDArray biasArray) {
+        int dimA = a.shape.length, dimB = b.shape.length, dimC = res.shape.length;
+        int m = a.shape[dimA - 2], k = a.shape[dimA - 1], n = b.shape[dimB - 1];
+        int[] batchShape = Arrays.copyOf(res.shape, dimC - 2);
+        int[] offsetsA = batchOffsets(a, batchShape);
+        int[] offsetsB = batchOffsets(b, batchShape);
+        int[] offsetsC = batchOffsets(res, batchShape);
+        int aRs = a.strides[dimA - 2], aCs = a.strides[dimA - 1];
+        int bRs = b.strides[dimB - 2], bCs = b.strides[dimB - 1];
+        int cRs = res.strides[dimC - 2], cCs = res.strides[dimC - 1];
 
+        Storage A = a.storage, B = b.storage, C = res.storage;
+        int[] dense = B instanceof IntStorage s && bCs == 1 ? s.array() : null;
+        boolean bytes = B.dtype().byteSize() == 1 && bCs == 1;
+        boolean plain = epilogue.isNone();
+        double[] bias = biasArray == null ? null : biasArray.toDoubleArray();
+        int rows = offsetsC.length * m;
+        loopBlocks(
+                (long) rows * n * k,
+                rows,
+                r -> {
+                    int bi = r / m, i = r % m;
+                    int aRow = offsetsA[bi] + i * aRs;
+                    int[] acc = new int[n];
+                    for (int p = 0; p < k; p++) {
+                        int x = (int) A.getDouble(aRow + p * aCs);
+                        int bRow = offsetsB[bi] + p * bRs;
                         int j = 0;
-                        var va = FloatVector.broadcast(SPECIES, valA);
-                        for (; j < SPECIES.loopBound(BNumCols); j += SPECIES_LEN) {
-                            var vb = FloatVector.fromArray(SPECIES, B, indexB + j);
-                            var vc = FloatVector.fromArray(SPECIES, C, indexCBase + j);
-                            va.fma(vb, vc).intoArray(C, indexCBase + j);
-                            // vc.add(vb.mul(valA)).intoArray(C, indexCBase + j);
+                        if (dense != null || bytes) {
+                            var vx = IntVector.broadcast(INT_SPECIES, x);
+                            for (; j < INT_SPECIES.loopBound(n); j += INT_SPECIES.length()) {
+                                var vb = loadInts(B, dense, bRow + j);
+                                var va = IntVector.fromArray(INT_SPECIES, acc, j);
+                                vx.mul(vb).add(va).intoArray(acc, j);
+                            }
                         }
-
-                        for (; j < BNumCols; j++) {
-                            C[indexCBase + j] += valA * B[indexB + j];
+                        for (; j < n; j++) {
+                            acc[j] += x * (int) B.getDouble(bRow + j * bCs);
                         }
                     }
+
+                    int cRow = offsetsC[bi] + i * cRs;
+                    for (int j = 0; j < n; j++) {
+                        int ci = cRow + j * cCs;
+                        double v = plain ? acc[j] : applyEpilogue(epilogue, acc[j], C, ci, bias, j);
+                        C.setDouble(ci, v);
+                    }
                 });
+    }
 
-        return res;
+    // the lanes of s from index, int32 read as ints and bytes converted from the float lanes
+    private static IntVector loadInts(Storage s, int[] ints, int index) {
+        return ints != null
+                ? IntVector.fromArray(INT_SPECIES, ints, index)
+                : (IntVector) s.load(index).convert(VectorOperators.F2I, 0);
     }
 
-    private static NDArray matmulCF(NDArray a, NDArray b) {
-        NDArray res = NDArrays.of(arrOf(a.shape[0], b.shape[1]));
+    // alpha * acc + beta * C[ci] + bias[j], activated, in double
+    private static double applyEpilogue(
+            Epilogue epilogue, double acc, Storage C, int ci, double[] bias, int j) {
+        double v = epilogue.alpha() * acc;
+        if (epilogue.beta() != 0) {
+            v += epilogue.beta() * C.getDouble(ci);
+        }
+        if (bias != null) {
+            v += bias[j];
+        }
+        if (epilogue.activation() != null) {
+            v = epilogue.activation().processDouble(v);
+        }
+        return v;
+    }
 
-        float[] A = a.data;
-        float[] B = b.data;
-        float[] C = res.data;
+    // [..., m, k] @ [..., k, n] -> [..., m, n], leading (batch) dimensions broadcast like NumPy
+    private static void matmulBatched(
+            NDArray a,
+            NDArray b,
+            int[] batchShape,
+            NDArray res,
+            Epilogue epilogue,
+            float[] bias) {
+        int dimA = a.shape.length, dimB = b.shape.length, dimC = res.shape.length;
+        int m = a.shape[dimA - 2], k = a.shape[dimA - 1], n = b.shape[dimB - 1];
+        int batch = ShapeUtil.getSize(batchShape);
 
-        int ANumRows = a.shape[0], ANumCols = a.shape[1];
-        int BNumRows = b.shape[0], BNumCols = b.shape[1];
-        int CNumRows = ANumRows, CNumCols = BNumCols;
+        int[] offsetsA = batchOffsets(a, batchShape);
+        int[] offsetsB = batchOffsets(b, batchShape);
+        int[] offsetsC = batchOffsets(res, batchShape);
+        int ldc = res.strides[dimC - 2];
+        // only a 2-D B can be packed, it is then the same matrix for every batch
+        Gemm.PackedB packed = b.packed();
 
-        int bound = SPECIES.loopBound(ANumCols);
+        if (useGemm(a, b, m, n, k, packed)) {
+            // large matrices keep the pool busy on their own, strided ones need packing anyway
+            for (int bi = 0; bi < batch; bi++) {
+                Gemm.gemm(
+                        m,
+                        n,
+                        k,
+                        a.storage,
+                        offsetsA[bi],
+                        a.strides[dimA - 2],
+                        a.strides[dimA - 1],
+                        b.storage,
+                        offsetsB[bi],
+                        b.strides[dimB - 2],
+                        b.strides[dimB - 1],
+                        res.storage,
+                        offsetsC[bi],
+                        ldc,
+                        epilogue,
+                        bias,
+                        packed);
+            }
+            return;
+        }
 
-        ConcurrentUtil.loopFor(
-                0,
-                ANumRows,
-                i -> {
-                    int indexABase = i * ANumCols;
-                    int cIndex = i * CNumCols;
+        int lda = leadingDimension(a);
+        int ldb = leadingDimension(b);
 
-                    for (int xB = 0; xB < BNumCols; xB++) {
-                        int indexB = xB * BNumRows;
+        RowKernel kernel = rowKernel(isRowMajor(a), isRowMajor(b));
+        Gemm.Store store = epilogue.isNone() ? null : Gemm.Store.of(epilogue, bias);
+        Storage A = a.storage, B = b.storage, C = res.storage;
 
-                        int j = 0;
-                        var sum = FloatVector.zero(SPECIES);
-                        for (; j < bound; j += SPECIES_LEN) {
-                            var va = FloatVector.fromArray(SPECIES, A, indexABase + j);
-                            var vb = FloatVector.fromArray(SPECIES, B, indexB + j);
-                            sum = va.fma(vb, sum);
-                        }
+        // one dispatch over (batch, row tile) pairs instead of one per matrix
+        loopTiles(
+                (long) batch * m * n * k,
+                batch,
+                m,
+                1,
+                BATCH_ROW_TILE,
+                (from, to, start, end) -> {
+                    for (int bi = from; bi < to; bi++) {
+                        computeRows(
+                                kernel,
+                                A,
+                                offsetsA[bi],
+                                lda,
+                                B,
+                                offsetsB[bi],
+                                ldb,
+                                C,
+                                offsetsC[bi],
+                                ldc,
+                                n,
+                                k,
+                                start,
+                                end,
+                                store);
+                    }
+                });
+    }
 
-                        float total = sum.reduceLanes(VectorOperators.ADD);
-                        for (; j < ANumCols; j++) {
-                            total += A[indexABase + j] * B[indexB + j];
-                        }
+    // rows [start, end) of one matrix, C is row-major, store is null for no epilogue
+    private static void computeRows(
+            RowKernel kernel,
+            Storage A,
+            int aOff,
+            int lda,
+            Storage B,
+            int bOff,
+            int ldb,
+            Storage C,
+            int cOff,
+            int ldc,
+            int n,
+            int k,
+            int start,
+            int end,
+            Gemm.Store store) {
+        if (store == null) {
+            for (int i = start; i < end; i++) {
+                kernel.computeRow(A, aOff, lda, B, bOff, ldb, C, cOff, ldc, n, k, i);
+            }
+            return;
+        }
+
+        // compute the row aside, then run the epilogue while it is still in L1
+        float[] row = rowBuffer(n);
+        Storage rowStorage = Storage.of(row);
+        for (int i = start; i < end; i++) {
+            kernel.computeRow(A, aOff, lda, B, bOff, ldb, rowStorage, 0, 0, n, k, i);
+            storeVector(row, n, C, cOff + i * ldc, 1, 0, true, store);
+        }
+    }
 
-                        C[cIndex++] = total;
+    /**
+     * y = M @ x for a len x k matrix M with contiguous lines along one axis. With dotRows row i of
+     * M starts at {@code mOff + i * ldm} and y[i] is a dot product along it, otherwise column p
+     * starts at {@code mOff + p * ldm} and y accumulates x[p] times it. y[i] goes to {@code C[cOff
+     * + i * incC]}, which is column i of the result when y is a row and column 0 when it is a
+     * column.
+     */
+    private static void matvec(
+            Storage M,
+            int mOff,
+            int ldm,
+            boolean dotRows,
+            float[] x,
+            int len,
+            int k,
+            Storage C,
+            int cOff,
+            int incC,
+            boolean row,
+            Gemm.Store store) {
+        // accumulated blocks of y are a few vectors wide, so columns are not read in slivers
+        int minBlock = dotRows ? SPECIES_LEN : 16 * SPECIES_LEN;
+        int block = Gemm.roundUp(Math.max(minBlock, VECTOR_GRAIN / k), SPECIES_LEN);
+        loopBlocks(
+                (long) len * k,
+                Gemm.ceilDiv(len, block),
+                bi -> {
+                    int start = bi * block;
+                    int end = Math.min(len, start + block);
+                    float[] y = rowBuffer(end - start);
+                    if (dotRows) {
+                        dotRows(M, mOff, ldm, x, k, y, start, end);
+                    } else {
+                        axpyColumns(M, mOff, ldm, x, k, y, start, end);
                     }
+                    storeVector(y, end - start, C, cOff + start * incC, incC, start, row, store);
                 });
-
-        return res;
     }
 
-    private static NDArray matmulFC(NDArray a, NDArray b) {
-        NDArray res = NDArrays.of(arrOf(a.shape[0], b.shape[1]));
+    // y[i - start] = M[i, :] . x for rows [start, end)
+    private static void dotRows(
+            Storage M, int mOff, int ldm, float[] x, int k, float[] y, int start, int end) {
+        int bound = SPECIES.loopBound(k);
+        for (int i = start; i < end; i++) {
+            int base = mOff + i * ldm;
 
-        float[] A = a.data;
-        float[] B = b.data;
-        float[] C = res.data;
+            int p = 0;
+            var sum = FloatVector.zero(SPECIES);
+            for (; p < bound; p += SPECIES_LEN) {
+                var vm = M.load(base + p);
+                var vx = FloatVector.fromArray(SPECIES, x, p);
+                sum = vm.fma(vx, sum);
+            }
 
-        int ANumRows = a.shape[0], ANumCols = a.shape[1];
-        int BNumRows = b.shape[0], BNumCols = b.shape[1];
-        int CNumRows = ANumRows, CNumCols = BNumCols;
+            float total = sum.reduceLanes(VectorOperators.ADD);
+            for (; p < k; p++) {
+                total += M.get(base + p) * x[p];
+            }
+            y[i - start] = total;
+        }
+    }
 
-        ConcurrentUtil.loopFor(
-                0,
-                ANumRows,
-                i -> {
-                    int indexCBase = i * CNumCols;
+    // y[0, end - start) = sum of x[p] * M[start:end, p], the block of y stays in L1 over all of k
+    private static void axpyColumns(
+            Storage M, int mOff, int ldm, float[] x, int k, float[] y, int start, int end) {
+        int len = end - start;
+        int bound = SPECIES.loopBound(len);
+        Arrays.fill(y, 0, len, 0);
+        for (int p = 0; p < k; p++) {
+            int base = mOff + p * ldm + start;
+            var vx = FloatVector.broadcast(SPECIES, x[p]);
 
-                    {
-                        // first assign R
-                        float valA = A[i];
-                        int j = 0;
-                        for (; j < SPECIES.loopBound(BNumCols); j += SPECIES_LEN) {
-                            var vb = FloatVector.fromArray(SPECIES, B, j);
-                            vb.mul(valA).intoArray(C, indexCBase + j);
-                        }
+            int i = 0;
+            for (; i < bound; i += SPECIES_LEN) {
+                var vm = M.load(base + i);
+                var vy = FloatVector.fromArray(SPECIES, y, i);
+                vx.fma(vm, vy).intoArray(y, i);
+            }
+            for (; i < len; i++) {
+                y[i] += x[p] * M.get(base + i);
+            }
+        }
+    }
 
-                        for (; j < BNumCols; j++) {
-                            C[indexCBase + j] = valA * B[j];
-                        }
-                    }
+    // C[m, n] = a[m, 1] @ b[1, n], each row is the row of b scaled by one element of a
+    private static void outer(NDArray a, NDArray b, NDArray res, int m, int n, Gemm.Store store) {
+        float[] v = denseVector(b.storage, b.offset, b.strides[1], n);
+        Storage A = a.storage, C = res.storage;
+        int aOff = a.offset, aStride = a.strides[0];
+        int cOff = res.offset, ldc = res.strides[0];
 
-                    // now increment it
-                    for (int k = 1; k < ANumCols; k++) {
-                        int indexB = k * BNumCols;
-                        float valA = A[k * ANumRows + i];
+        int block = Math.max(1, VECTOR_GRAIN / n);
+        int bound = SPECIES.loopBound(n);
+        loopBlocks(
+                (long) m * n,
+                Gemm.ceilDiv(m, block),
+                bi -> {
+                    // without an epilogue the rows are written straight into C
+                    float[] row = store == null ? null : rowBuffer(n);
+                    Storage dst = store == null ? C : Storage.of(row);
+                    for (int i = bi * block; i < Math.min(m, (bi + 1) * block); i++) {
+                        float ai = A.get(aOff + i * aStride);
+                        int dstOff = store == null ? cOff + i * ldc : 0;
 
                         int j = 0;
-                        for (; j < SPECIES.loopBound(BNumCols); j += SPECIES_LEN) {
-                            var vb = FloatVector.fromArray(SPECIES, B, indexB + j);
-                            var vc = FloatVector.fromArray(SPECIES, C, indexCBase + j);
-                            vc.add(vb.mul(valA)).intoArray(C, indexCBase + j);
+                        for (; j < bound; j += SPECIES_LEN) {
+                            dst.store(FloatVector.fromArray(SPECIES, v, j).mul(ai), dstOff + j);
+                        }
+                        for (; j < n; j++) {
+                            dst.set(dstOff + j, ai * v[j]);
                         }
 
-                        for (; j < BNumCols; j++) {
-                            C[indexCBase + j] += valA * B[indexB + j];
+                        if (store != null) {
+                            storeVector(row, n, C, cOff + i * ldc, 1, 0, true, store);
                         }
                     }
                 });
+    }
+
+    /**
+     * Writes y[0, len) to {@code C[cIndex + i * incC]} through the epilogue store, or copies it
+     * when store is null. A row of the result is contiguous and y[i] is column col + i of it, a
+     * column always is column 0.
+     */
+    private static void storeVector(
+            float[] y,
+            int len,
+            Storage C,
+            int cIndex,
+            int incC,
+            int col,
+            boolean row,
+            Gemm.Store store) {
+        if (store == null) {
+            if (incC == 1) {
+                C.write(cIndex, y, 0, len);
+            } else {
+                for (int i = 0; i < len; i++) {
+                    C.set(cIndex + i * incC, y[i]);
+                }
+            }
+            return;
+        }
 
-        return res;
+        if (!row) {
+            for (int i = 0; i < len; i++) {
+                int index = cIndex + i * incC;
+                C.set(index, store.apply(y[i], C.get(index), 0));
+            }
+            return;
+        }
+
+        int j = 0;
+        for (; j < SPECIES.loopBound(len); j += SPECIES_LEN) {
+            store.apply(FloatVector.fromArray(SPECIES, y, j), C, cIndex + j, col + j);
+        }
+        for (; j < len; j++) {
+            C.set(cIndex + j, store.apply(y[j], C.get(cIndex + j), col + j));
+        }
     }
 
-    private static NDArray matmulFF(NDArray a, NDArray b) {
-        NDArray res = NDArrays.of(arrOf(a.shape[0], b.shape[1]));
+    // small or single-block work runs on the calling thread, a pool task would only add latency
+    static void loopBlocks(long flops, int blocks, IntConsumer body) {
+        if (blocks == 1 || flops < getParallelThreshold()) {
+            for (int i = 0; i < blocks; i++) {
+                body.accept(i);
+            }
+        } else {
+            ConcurrentUtil.loopFor(0, blocks, body);
+        }
+    }
 
-        float[] A = a.data;
-        float[] B = b.data;
-        float[] C = res.data;
+    // like loopBlocks over a grid, tile runs once per tile of tileRows by tileCols
+    static void loopTiles(
+            long flops, int rows, int cols, int tileRows, int tileCols, ConcurrentUtil.Tile tile) {
+        if (flops < getParallelThreshold()) {
+            tile.run(0, rows, 0, cols);
+        } else {
+            ConcurrentUtil.loopFor2D(rows, cols, tileRows, tileCols, tile);
+        }
+    }
 
-        int ANumRows = a.shape[0], ANumCols = a.shape[1];
-        int BNumRows = b.shape[0], BNumCols = b.shape[1];
-        int CNumRows = ANumRows, CNumCols = BNumCols;
+    // the vector operand is read from index 0 with unit stride, so views of it are gathered first
+    private static float[] denseVector(Storage data, int offset, int stride, int len) {
+        if (stride == 1 && offset == 0 && data instanceof HeapStorage heap) {
+            return heap.array();
+        }
+        float[] v = new float[len];
+        if (stride == 1) {
+            data.read(offset, v, 0, len);
+            return v;
+        }
+        for (int i = 0; i < len; i++) {
+            v[i] = data.get(offset + i * stride);
+        }
+        return v;
+    }
 
-        ConcurrentUtil.loopFor(
-                0,
-                ANumRows,
-                i -> {
-                    int cIndex = i * BNumCols;
-                    int indexB = 0;
-                    for (int j = 0; j < BNumCols; j++) {
-                        int indexA = i;
-                        int end = indexB + BNumRows;
-
-                        float total = 0;
-                        while (indexB < end) {
-                            total += A[indexA] * B[indexB++];
-                            indexA += ANumRows;
-                        }
+    private static float[] rowBuffer(int n) {
+        float[] row = ROW.get();
+        if (row.length < n) {
+            row = new float[n];
+            ROW.set(row);
+        }
+        return row;
+    }
 
-                        C[cIndex++] = total;
-                    }
-                });
+    private static float[] denseBias(Epilogue epilogue, int n) {
+        NDArray bias = epilogue.bias();
+        if (bias == null) {
+            return null;
+        }
+
+        int dim = bias.shape.length;
+        if (bias.getSize() != n || dim == 0 || bias.shape[dim - 1] != n) {
+            throw new IllegalArgumentException(
+                    "bias of shape %s can not be broadcast along the rows of %d columns"
+                            .formatted(Arrays.toString(bias.shape), n));
+        }
+        return bias.toArray();
+    }
+
+    // offset of every matrix of the array, indexed by the flat index into the broadcast batch shape
+    private static int[] batchOffsets(NDArray a, int[] batchShape) {
+        int len = batchShape.length;
+        int diff = len - (a.shape.length - 2);
+
+        int[] strides = new int[len];
+        for (int i = diff; i < len; i++) {
+            strides[i] = a.shape[i - diff] == 1 ? 0 : a.strides[i - diff];
+        }
+
+        int[] offsets = new int[ShapeUtil.getSize(batchShape)];
+        int[] indices = new int[len];
+        for (int bi = 0; bi < offsets.length; bi++) {
+            offsets[bi] = a.offset + ShapeUtil.getFlatIndex(indices, strides);
+            ShapeUtil.increaseIndices(indices, batchShape);
+        }
+        return offsets;
+    }
+
+    private static boolean useGemm(
+            NDArray a, NDArray b, int m, int n, int k, Gemm.PackedB packed) {
+        // an empty k leaves only the epilogue, which the engine applies to C
+        if (k == 0
+                || (long) m * n * k >= GEMM_THRESHOLD
+                || !hasUnitStride(a)
+                || !hasUnitStride(b)) {
+            return true;
+        }
+        // with B already packed only the padding of A to full register tiles is left to pay for
+        return packed != null && m >= Gemm.MR;
+    }
+
+    private static NDArray swapLastAxes(NDArray a) {
+        int dim = a.shape.length;
+        int[] shape = a.shape.clone();
+        int[] strides = a.strides.clone();
+        shape[dim - 2] = a.shape[dim - 1];
+        shape[dim - 1] = a.shape[dim - 2];
+        strides[dim - 2] = a.strides[dim - 1];
+        strides[dim - 1] = a.strides[dim - 2];
+        return new NDArray(shape, strides, a.storage, a.offset, Flags.ZERO);
+    }
+
+    // the matrices (last two axes) are row-major or column-major, possibly with padded rows/columns
+    private static boolean hasUnitStride(NDArray a) {
+        int dim = a.shape.length;
+        return a.strides[dim - 1] == 1 || a.strides[dim - 2] == 1;
+    }
+
+    private static boolean isRowMajor(NDArray a) {
+        return a.strides[a.shape.length - 1] == 1;
+    }
+
+    // distance between rows of a row-major matrix, or between columns of a column-major one
+    private static int leadingDimension(NDArray a) {
+        int dim = a.shape.length;
+        return isRowMajor(a) ? a.strides[dim - 2] : a.strides[dim - 1];
+    }
+
+    /**
+     * Computes row i of C = A @ B. Operands are addressed the BLAS way, by (data, offset, leading
+     * dimension): A(i, p) is at {@code aOff + i * lda + p} when A is row-major and at {@code aOff +
+     * p * lda + i} when it is column-major, the same goes for B. Row i of C starts at {@code cOff +
+     * i * ldc}.
+     */
+    @FunctionalInterface
+    private interface RowKernel {
+        void computeRow(
+                Storage A,
+                int aOff,
+                int lda,
+                Storage B,
+                int bOff,
+                int ldb,
+                Storage C,
+                int cOff,
+                int ldc,
+                int n,
+                int k,
+                int i);
+    }
+
+    private static RowKernel rowKernel(boolean rowMajorA, boolean rowMajorB) {
+        if (rowMajorA) {
+            return rowMajorB ? MatMul::rowCC : MatMul::rowCF;
+        }
+        return rowMajorB ? MatMul::rowFC : MatMul::rowFF;
+    }
+
+    /**
+     * C = A @ B for row-major A and B, four rows at a time with the accumulators of a column block
+     * held in registers across all of k, so every vector of B is loaded once per four rows. Returns
+     * the first row left over.
+     */
+    private static int fourRowsCC(
+            Storage A,
+            int aOff,
+            int lda,
+            Storage B,
+            int bOff,
+            int ldb,
+            Storage C,
+            int cOff,
+            int ldc,
+            int m,
+            int n,
+            int k,
+            Gemm.Store store) {
+        int i = 0;
+        for (; i + 4 <= m; i += 4) {
+            int a0 = aOff + i * lda, a1 = a0 + lda, a2 = a1 + lda, a3 = a2 + lda;
+            int c0 = cOff + i * ldc, c1 = c0 + ldc, c2 = c1 + ldc, c3 = c2 + ldc;
+
+            for (int j = 0; j < n; j += SPECIES_LEN) {
+                var mask = SPECIES.indexInRange(j, n);
+                var acc0 = FloatVector.zero(SPECIES);
+                var acc1 = FloatVector.zero(SPECIES);
+                var acc2 = FloatVector.zero(SPECIES);
+                var acc3 = FloatVector.zero(SPECIES);
+
+                int indexB = bOff + j;
+                for (int p = 0; p < k; p++) {
+                    var vb = B.load(indexB, mask);
+                    acc0 = FloatVector.broadcast(SPECIES, A.get(a0 + p)).fma(vb, acc0);
+                    acc1 = FloatVector.broadcast(SPECIES, A.get(a1 + p)).fma(vb, acc1);
+                    acc2 = FloatVector.broadcast(SPECIES, A.get(a2 + p)).fma(vb, acc2);
+                    acc3 = FloatVector.broadcast(SPECIES, A.get(a3 + p)).fma(vb, acc3);
+                    indexB += ldb;
+                }
+
+                if (store == null) {
+                    C.store(acc0, c0 + j, mask);
+                    C.store(acc1, c1 + j, mask);
+                    C.store(acc2, c2 + j, mask);
+                    C.store(acc3, c3 + j, mask);
+                } else if (mask.allTrue()) {
+                    store.apply(acc0, C, c0 + j, j);
+                    store.apply(acc1, C, c1 + j, j);
+                    store.apply(acc2, C, c2 + j, j);
+                    store.apply(acc3, C, c3 + j, j);
+                } else {
+                    storeTail(acc0, C, c0, j, n, store);
+                    storeTail(acc1, C, c1, j, n, store);
+                    storeTail(acc2, C, c2, j, n, store);
+                    storeTail(acc3, C, c3, j, n, store);
+                }
+            }
+        }
+        return i;
+    }
+
+    // columns [j, n) of a row starting at cIndex, less than a vector
+    private static void storeTail(
+            FloatVector acc, Storage C, int cIndex, int j, int n, Gemm.Store store) {
+        for (int l = 0; j + l < n; l++) {
+            int index = cIndex + j + l;
+            C.set(index, store.apply(acc.lane(l), C.get(index), j + l));
+        }
+    }
+
+    private static void rowCC(
+            Storage A,
+            int aOff,
+            int lda,
+            Storage B,
+            int bOff,
+            int ldb,
+            Storage C,
+            int cOff,
+            int ldc,
+            int n,
+            int k,
+            int i) {
+        int indexABase = aOff + i * lda;
+        int indexCBase = cOff + i * ldc;
+        {
+            // init the row in C
+            float valA = A.get(indexABase);
+            int j = 0;
+            for (; j < SPECIES.loopBound(n); j += SPECIES_LEN) {
+                var vb = B.load(bOff + j);
+                C.store(vb.mul(valA), indexCBase + j);
+            }
+
+            for (; j < n; j++) {
+                C.set(indexCBase + j, valA * B.get(bOff + j));
+            }
+        }
+
+        // sum up the final results
+        for (int p = 1; p < k; p++) {
+            int indexB = bOff + p * ldb;
+            float valA = A.get(indexABase + p);
+
+            int j = 0;
+            var va = FloatVector.broadcast(SPECIES, valA);
+            for (; j < SPECIES.loopBound(n); j += SPECIES_LEN) {
+                var vb = B.load(indexB + j);
+                var vc = C.load(indexCBase + j);
+                C.store(va.fma(vb, vc), indexCBase + j);
+            }
 
-        return res;
+            for (; j < n; j++) {
+                C.set(indexCBase + j, C.get(indexCBase + j) + valA * B.get(indexB + j));
+            }
+        }
+    }
+
+    private static void rowCF(
+            Storage A,
+            int aOff,
+            int lda,
+            Storage B,
+            int bOff,
+            int ldb,
+            Storage C,
+            int cOff,
+            int ldc,
+            int n,
+            int k,
+            int i) {
+        int indexABase = aOff + i * lda;
+        int cIndex = cOff + i * ldc;
+        int bound = SPECIES.loopBound(k);
+
+        for (int j = 0; j < n; j++) {
+            int indexB = bOff + j * ldb;
+
+            int p = 0;
+            var sum = FloatVector.zero(SPECIES);
+            for (; p < bound; p += SPECIES_LEN) {
+                var va = A.load(indexABase + p);
+                var vb = B.load(indexB + p);
+                sum = va.fma(vb, sum);
+            }
+
+            float total = sum.reduceLanes(VectorOperators.ADD);
+            for (; p < k; p++) {
+                total += A.get(indexABase + p) * B.get(indexB + p);
+            }
+
+            C.set(cIndex++, total);
+        }
+    }
+
+    private static void rowFC(
+            Storage A,
+            int aOff,
+            int lda,
+            Storage B,
+            int bOff,
+            int ldb,
+            Storage C,
+            int cOff,
+            int ldc,
+            int n,
+            int k,
+            int i) {
+        int indexCBase = cOff + i * ldc;
+
+        {
+            // first assign R
+            float valA = A.get(aOff + i);
+            int j = 0;
+            for (; j < SPECIES.loopBound(n); j += SPECIES_LEN) {
+                var vb = B.load(bOff + j);
+                C.store(vb.mul(valA), indexCBase + j);
+            }
+
+            for (; j < n; j++) {
+                C.set(indexCBase + j, valA * B.get(bOff + j));
+            }
+        }
+
+        // now increment it
+        for (int p = 1; p < k; p++) {
+            int indexB = bOff + p * ldb;
+            float valA = A.get(aOff + p * lda + i);
+
+            int j = 0;
+            var va = FloatVector.broadcast(SPECIES, valA);
+            for (; j < SPECIES.loopBound(n); j += SPECIES_LEN) {
+                var vb = B.load(indexB + j);
+                var vc = C.load(indexCBase + j);
+                C.store(va.fma(vb, vc), indexCBase + j);
+            }
+
+            for (; j < n; j++) {
+                C.set(indexCBase + j, C.get(indexCBase + j) + valA * B.get(indexB + j));
+            }
+        }
+    }
+
+    private static void rowFF(
+            Storage A,
+            int aOff,
+            int lda,
+            Storage B,
+            int bOff,
+            int ldb,
+            Storage C,
+            int cOff,
+            int ldc,
+            int n,
+            int k,
+            int i) {
+        int cIndex = cOff + i * ldc;
+        for (int j = 0; j < n; j++) {
+            int indexA = aOff + i;
+            int indexB = bOff + j * ldb;
+
+            float total = 0;
+            for (int p = 0; p < k; p++) {
+                total += A.get(indexA) * B.get(indexB++);
+                indexA += lda;
+            }
+
+            C.set(cIndex++, total);
+        }
     }
 }
@@ -1,9 +1,8 @@
 package ndarray;
 
-import static ndarray.util.ShapeUtil.copyIndices;
-import static ndarray.util.ShapeUtil.reduceShape;
 import static ndarray.util.Util.reverseArray;
 
+import java.util.Arrays;
 import java.util.Iterator;
 import jdk.incubator.vector.FloatVector;
 import jdk.incubator.vector.VectorSpecies;
@@ -12,42 +11,54 @@ import ndarray.iterator.NDArrayIterator;
 import ndarray.operator.ElementWiseBinaryOperator;
 import ndarray.operator.ElementWiseReduceOperator;
 import ndarray.operator.ElementWiseUnaryOperator;
+import ndarray.operator.Expression;
+import ndarray.operator.Reduction;
+import ndarray.storage.Storage;
+import ndarray.util.DType;
 import ndarray.util.Flags;
 import ndarray.util.PresentUtil;
 import ndarray.util.ShapeUtil;
 
 public class NDArray implements Iterable<Float> {
 
-    public record Data(float[] array, int offset) {}
+    public record Data(Storage storage, int offset) {}
 
     private static final VectorSpecies<Float> SPECIES = FloatVector.SPECIES_PREFERRED;
     private static final int SPECIES_LEN = SPECIES.length();
 
-    final float[] data;
+    final Storage storage;
     final int offset;
 
     final int[] shape;
     final int[] strides;
     final byte flags;
 
+    // panels of this matrix in the layout of the GEMM engine, see packed()
+    private volatile Gemm.PackedB packed;
+
     public NDArray(int[] shape, float[] data) {
-        this.shape = shape;
-        this.data = data;
-        this.offset = 0;
-        this.strides = Flags.Contiguous.C.calculateStrides(shape);
-        this.flags = Flags.setContiguous(Flags.ZERO, Flags.Contiguous.C);
+        this(
+                shape,
+                Flags.Contiguous.C.calculateStrides(shape),
+                Storage.of(data),
+                0,
+                Flags.setContiguous(Flags.ZERO, Flags.Contiguous.C));
     }
 
     public NDArray(int[] shape, int[] strides, float[] data, int offset, byte flags) {
+        this(shape, strides, Storage.of(data), offset, flags);
+    }
+
+    public NDArray(int[] shape, int[] strides, Storage storage, int offset, byte flags) {
         this.shape = shape;
-        this.data = data;
+        this.storage = storage;
         this.offset = offset;
         this.strides = strides;
         this.flags = flags;
     }
 
     public Data getData() {
-        return new Data(data, offset);
+        return new Data(storage, offset);
     }
 
     public int[] getShape() {
@@ -66,6 +77,15 @@ public class NDArray implements Iterable<Float> {
         return shape.length;
     }
 
+    public DType getDType() {
+        return storage.dtype();
+    }
+
+    /** A C-contiguous copy converted to dtype, see {@link NDArrays#copy}. */
+    public NDArray astype(DType dtype) {
+        return NDArrays.copy(this, NDArrays.empty(shape, dtype));
+    }
+
     public Iterator<Float> iterator() {
         return new NDArrayIterator(this);
     }
@@ -78,6 +98,10 @@ public class NDArray implements Iterable<Float> {
         return Flags.getContiguous(flags);
     }
 
+    public boolean isOffHeap() {
+        return storage.isOffHeap();
+    }
+
     public boolean isScalar() {
         return shape.length == 0 && getSize() == 1;
     }
@@ -86,7 +110,7 @@ public class NDArray implements Iterable<Float> {
         if (!isScalar()) {
             throw new IllegalArgumentException("Not a scalar");
         }
-        return data[offset];
+        return storage.get(offset);
     }
 
     public NDArray transpose() {
@@ -95,7 +119,7 @@ public class NDArray implements Iterable<Float> {
         return new NDArray(
                 transposedShape,
                 transposedStrides,
-                data,
+                storage,
                 offset,
                 Flags.setContiguous(Flags.ZERO, transposedShape, transposedStrides));
     }
@@ -104,9 +128,43 @@ public class NDArray implements Iterable<Float> {
         return MatMul.matmul(this, other);
     }
 
+    public NDArray matmul(NDArray other, Epilogue epilogue) {
+        return MatMul.matmul(this, other, epilogue);
+    }
+
+    /**
+     * Packs this matrix for use as the right-hand operand of matmul, later products against it skip
+     * the packing. The packed copy is dropped by any write to the storage, through this array or
+     * another view of it, but not by writes to the float[] or MemorySegment it was made from.
+     */
+    public NDArray pack() {
+        if (shape.length != 2) {
+            throw new IllegalArgumentException(
+                    "only matrices can be packed, shape: %s".formatted(Arrays.toString(shape)));
+        }
+        packed = Gemm.PackedB.pack(shape[0], shape[1], storage, offset, strides[0], strides[1]);
+        return this;
+    }
+
+    public boolean isPacked() {
+        return packed() != null;
+    }
+
+    // the packed copy while the storage has not been written since it was taken
+    Gemm.PackedB packed() {
+        Gemm.PackedB p = packed;
+        if (p != null && !p.isCurrent()) {
+            packed = p = null;
+        }
+        return p;
+    }
+
+    public NDArray matmulInto(NDArray a, NDArray b, boolean accumulate) {
+        return MatMul.matmulInto(this, a, b, accumulate);
+    }
+
     public NDArray sum() {
-        float total = ElementWiseReduceOperator.SUM.elementWiseReduce(data, offset, data.length);
-        return NDArrays.ofScalar(total);
+        return ElementWiseReduceOperator.SUM.reduce(this);
     }
 
     public NDArray sum(int dim) {
@@ -117,9 +175,12 @@ public class NDArray implements Iterable<Float> {
         return ElementWiseReduceOperator.SUM.reduceAlongDimension(this, dim, keepDims);
     }
 
+    public NDArray sum(int[] dims, boolean keepDims) {
+        return ElementWiseReduceOperator.SUM.reduce(this, dims, keepDims);
+    }
+
     public NDArray max() {
-        float max = ElementWiseReduceOperator.MAX.elementWiseReduce(data, offset, data.length);
-        return NDArrays.ofScalar(max);
+        return ElementWiseReduceOperator.MAX.reduce(this);
     }
 
     public NDArray max(int dim) {
@@ -130,43 +191,108 @@ public class NDArray implements Iterable<Float> {
         return ElementWiseReduceOperator.MAX.reduceAlongDimension(this, dim, keepDims);
     }
 
+    public NDArray max(int[] dims, boolean keepDims) {
+        return ElementWiseReduceOperator.MAX.reduce(this, dims, keepDims);
+    }
+
+    public NDArray min() {
+        return ElementWiseReduceOperator.MIN.reduce(this);
+    }
+
+    public NDArray min(int dim) {
+        return ElementWiseReduceOperator.MIN.reduceAlongDimension(this, dim, false);
+    }
+
+    public NDArray min(int dim, boolean keepDims) {
+        return ElementWiseReduceOperator.MIN.reduceAlongDimension(this, dim, keepDims);
+    }
+
+    public NDArray min(int[] dims, boolean keepDims) {
+        return ElementWiseReduceOperator.MIN.reduce(this, dims, keepDims);
+    }
+
+    public NDArray prod() {
+        return ElementWiseReduceOperator.PROD.reduce(this);
+    }
+
+    public NDArray prod(int dim) {
+        return ElementWiseReduceOperator.PROD.reduceAlongDimension(this, dim, false);
+    }
+
+    public NDArray prod(int dim, boolean keepDims) {
+        return ElementWiseReduceOperator.PROD.reduceAlongDimension(this, dim, keepDims);
+    }
+
+    public NDArray prod(int[] dims, boolean keepDims) {
+        return ElementWiseReduceOperator.PROD.reduce(this, dims, keepDims);
+    }
+
     public NDArray mean() {
-        return NDArrays.ofScalar(sum().asScalar() / getSize());
+        return mean(allDims(), false);
     }
 
-    public NDArray argmax() {
-        if (getContiguous() == Flags.Contiguous.C) {
-            int maxIndex = offset;
-            float max = data[offset];
-            for (int i = offset; i < offset + getSize(); i++) {
-                if (data[i] > max) {
-                    maxIndex = i;
-                    max = data[i];
-                }
-            }
-            return NDArrays.ofScalar(maxIndex - offset);
-        }
+    public NDArray mean(int dim) {
+        return mean(new int[] {dim}, false);
+    }
 
-        int len = shape.length;
-        int[] maxIndices = new int[len];
-        float max = data[offset];
+    public NDArray mean(int dim, boolean keepDims) {
+        return mean(new int[] {dim}, keepDims);
+    }
 
-        for (var indices : indices()) {
-            float v = get(indices);
-            if (v > max) {
-                max = v;
-                System.arraycopy(indices, 0, maxIndices, 0, len);
-            }
-        }
+    public NDArray mean(int[] dims, boolean keepDims) {
+        return Reduction.mean(this, dims, keepDims);
+    }
+
+    /** The population variance, the mean of the squared deviations from the mean. */
+    public NDArray var() {
+        return Reduction.variance(this, allDims(), false);
+    }
+
+    public NDArray var(int[] dims, boolean keepDims) {
+        return Reduction.variance(this, dims, keepDims);
+    }
+
+    public NDArray std() {
+        return var().sqrti();
+    }
+
+    public NDArray std(int[] dims, boolean keepDims) {
+        return var(dims, keepDims).sqrti();
+    }
+
+    /** The L2 norm of all the elements, as if this was a vector. */
+    public NDArray norm() {
+        return norm(2, allDims(), false);
+    }
+
+    public NDArray norm(int[] dims, boolean keepDims) {
+        return norm(2, dims, keepDims);
+    }
+
+    /** The L1 (ord 1) or L2 (ord 2) norm over the axes in dims. */
+    public NDArray norm(int ord, int[] dims, boolean keepDims) {
+        return switch (ord) {
+            case 1 -> ElementWiseReduceOperator.SUM_ABS.reduce(this, dims, keepDims);
+            case 2 -> ElementWiseReduceOperator.SUM_SQUARES.reduce(this, dims, keepDims).sqrti();
+            default -> throw new IllegalArgumentException(
+                    "norm of order %d is not supported".formatted(ord));
+        };
+    }
 
-        int base = 1;
-        int res = maxIndices[len - 1];
-        for (int i = len - 2; i >= 0; i--) {
-            base = base * shape[i + 1];
-            res += maxIndices[i] * base;
+    public NDArray logSumExp(int[] dims, boolean keepDims) {
+        return Reduction.logSumExp(this, dims, keepDims);
+    }
+
+    private int[] allDims() {
+        int[] dims = new int[shape.length];
+        for (int i = 0; i < dims.length; i++) {
+            dims[i] = i;
         }
+        return dims;
+    }
 
-        return NDArrays.ofScalar(res);
+    public NDArray argmax() {
+        return Reduction.argmax(reshape(-1), 0, false);
     }
 
     public NDArray argmax(int dim) {
@@ -174,32 +300,19 @@ public class NDArray implements Iterable<Float> {
     }
 
     public NDArray argmax(int dim, boolean keepDims) {
-        int len = shape.length;
-        dim = dim < 0 ? len + dim : dim;
-
-        if (dim < 0 || dim >= len) {
-            throw new IllegalArgumentException(
-                    "dim %d is out of bounds for array of dimension %d".formatted(dim, len));
-        }
-
-        int[] newShape = reduceShape(shape, dim, keepDims);
+        return Reduction.argmax(this, dim, keepDims);
+    }
 
-        NDArray res = NDArrays.fill(newShape, 0);
-        int[] dimMaxIndices = new int[len];
-        int[] resIndices = new int[res.shape.length];
-        for (int[] indices : this.indices()) {
+    public NDArray argmin() {
+        return Reduction.argmin(reshape(-1), 0, false);
+    }
 
-            copyIndices(indices, resIndices, dim, keepDims);
+    public NDArray argmin(int dim) {
+        return argmin(dim, false);
+    }
 
-            float v = this.get(indices);
-            int dimMaxIdx = (int) res.get(resIndices);
-            System.arraycopy(indices, 0, dimMaxIndices, 0, len);
-            dimMaxIndices[dim] = dimMaxIdx;
-            if (v > get(dimMaxIndices)) {
-                res.set(resIndices, indices[dim]);
-            }
-        }
-        return res;
+    public NDArray argmin(int dim, boolean keepDims) {
+        return Reduction.argmin(this, dim, keepDims);
     }
 
     public NDArray maximum(float v) {
@@ -210,6 +323,27 @@ public class NDArray implements Iterable<Float> {
         return ElementWiseBinaryOperator.MAX.performBinaryOperator(this, other);
     }
 
+    /**
+     * Writes the result into out and returns it, out must have the broadcast shape of this and
+     * other. It may be this or other itself (the in-place variants below pass this), but must not
+     * overlap them otherwise.
+     */
+    public NDArray maximum(NDArray other, NDArray out) {
+        return perform(ElementWiseBinaryOperator.MAX, other, out);
+    }
+
+    public NDArray maximum(float other, NDArray out) {
+        return this.maximum(NDArrays.ofScalar(other), out);
+    }
+
+    public NDArray maximumi(NDArray other) {
+        return this.maximum(other, this);
+    }
+
+    public NDArray maximumi(float other) {
+        return this.maximum(other, this);
+    }
+
     public NDArray minimum(float v) {
         return this.minimum(NDArrays.ofScalar(v));
     }
@@ -218,6 +352,22 @@ public class NDArray implements Iterable<Float> {
         return ElementWiseBinaryOperator.MIN.performBinaryOperator(this, other);
     }
 
+    public NDArray minimum(NDArray other, NDArray out) {
+        return perform(ElementWiseBinaryOperator.MIN, other, out);
+    }
+
+    public NDArray minimum(float other, NDArray out) {
+        return this.minimum(NDArrays.ofScalar(other), out);
+    }
+
+    public NDArray minimumi(NDArray other) {
+        return this.minimum(other, this);
+    }
+
+    public NDArray minimumi(float other) {
+        return this.minimum(other, this);
+    }
+
     public NDArray add(float other) {
         return this.add(NDArrays.ofScalar(other));
     }
@@ -226,6 +376,22 @@ public class NDArray implements Iterable<Float> {
         return ElementWiseBinaryOperator.ADD.performBinaryOperator(this, other);
     }
 
+    public NDArray add(NDArray other, NDArray out) {
+        return perform(ElementWiseBinaryOperator.ADD, other, out);
+    }
+
+    public NDArray add(float other, NDArray out) {
+        return this.add(NDArrays.ofScalar(other), out);
+    }
+
+    public NDArray addi(NDArray other) {
+        return this.add(other, this);
+    }
+
+    public NDArray addi(float other) {
+        return this.add(other, this);
+    }
+
     public NDArray sub(float other) {
         return this.sub(NDArrays.ofScalar(other));
     }
@@ -234,6 +400,22 @@ public class NDArray implements Iterable<Float> {
         return ElementWiseBinaryOperator.SUB.performBinaryOperator(this, other);
     }
 
+    public NDArray sub(NDArray other, NDArray out) {
+        return perform(ElementWiseBinaryOperator.SUB, other, out);
+    }
+
+    public NDArray sub(float other, NDArray out) {
+        return this.sub(NDArrays.ofScalar(other), out);
+    }
+
+    public NDArray subi(NDArray other) {
+        return this.sub(other, this);
+    }
+
+    public NDArray subi(float other) {
+        return this.sub(other, this);
+    }
+
     public NDArray mul(float other) {
         return this.mul(NDArrays.ofScalar(other));
     }
@@ -242,6 +424,22 @@ public class NDArray implements Iterable<Float> {
         return ElementWiseBinaryOperator.MUL.performBinaryOperator(this, other);
     }
 
+    public NDArray mul(NDArray other, NDArray out) {
+        return perform(ElementWiseBinaryOperator.MUL, other, out);
+    }
+
+    public NDArray mul(float other, NDArray out) {
+        return this.mul(NDArrays.ofScalar(other), out);
+    }
+
+    public NDArray muli(NDArray other) {
+        return this.mul(other, this);
+    }
+
+    public NDArray muli(float other) {
+        return this.mul(other, this);
+    }
+
     public NDArray div(float other) {
         return this.div(NDArrays.ofScalar(other));
     }
@@ -250,23 +448,161 @@ public class NDArray implements Iterable<Float> {
         return ElementWiseBinaryOperator.DIV.performBinaryOperator(this, other);
     }
 
+    public NDArray div(NDArray other, NDArray out) {
+        return perform(ElementWiseBinaryOperator.DIV, other, out);
+    }
+
+    public NDArray div(float other, NDArray out) {
+        return this.div(NDArrays.ofScalar(other), out);
+    }
+
+    public NDArray divi(NDArray other) {
+        return this.div(other, this);
+    }
+
+    public NDArray divi(float other) {
+        return this.div(other, this);
+    }
+
     public NDArray log() {
         return ElementWiseUnaryOperator.LOG.performElementwise(this);
     }
 
+    public NDArray log(NDArray out) {
+        return ElementWiseUnaryOperator.LOG.performElementwise(this, out);
+    }
+
+    public NDArray logi() {
+        return this.log(this);
+    }
+
     public NDArray exp() {
         return ElementWiseUnaryOperator.EXP.performElementwise(this);
     }
 
+    public NDArray exp(NDArray out) {
+        return ElementWiseUnaryOperator.EXP.performElementwise(this, out);
+    }
+
+    public NDArray expi() {
+        return this.exp(this);
+    }
+
+    public NDArray tanh() {
+        return ElementWiseUnaryOperator.TANH.performElementwise(this);
+    }
+
+    public NDArray tanh(NDArray out) {
+        return ElementWiseUnaryOperator.TANH.performElementwise(this, out);
+    }
+
+    public NDArray tanhi() {
+        return this.tanh(this);
+    }
+
+    public NDArray sigmoid() {
+        return ElementWiseUnaryOperator.SIGMOID.performElementwise(this);
+    }
+
+    public NDArray sigmoid(NDArray out) {
+        return ElementWiseUnaryOperator.SIGMOID.performElementwise(this, out);
+    }
+
+    public NDArray sigmoidi() {
+        return this.sigmoid(this);
+    }
+
+    public NDArray gelu() {
+        return ElementWiseUnaryOperator.GELU.performElementwise(this);
+    }
+
+    public NDArray gelu(NDArray out) {
+        return ElementWiseUnaryOperator.GELU.performElementwise(this, out);
+    }
+
+    public NDArray gelui() {
+        return this.gelu(this);
+    }
+
+    public NDArray sqrt() {
+        return ElementWiseUnaryOperator.SQRT.performElementwise(this);
+    }
+
+    public NDArray sqrt(NDArray out) {
+        return ElementWiseUnaryOperator.SQRT.performElementwise(this, out);
+    }
+
+    public NDArray sqrti() {
+        return this.sqrt(this);
+    }
+
+    public NDArray rsqrt() {
+        return ElementWiseUnaryOperator.RSQRT.performElementwise(this);
+    }
+
+    public NDArray rsqrt(NDArray out) {
+        return ElementWiseUnaryOperator.RSQRT.performElementwise(this, out);
+    }
+
+    public NDArray rsqrti() {
+        return this.rsqrt(this);
+    }
+
+    public NDArray abs() {
+        return ElementWiseUnaryOperator.ABS.performElementwise(this);
+    }
+
+    public NDArray abs(NDArray out) {
+        return ElementWiseUnaryOperator.ABS.performElementwise(this, out);
+    }
+
+    public NDArray absi() {
+        return this.abs(this);
+    }
+
+    public NDArray neg() {
+        return ElementWiseUnaryOperator.NEG.performElementwise(this);
+    }
+
+    public NDArray neg(NDArray out) {
+        return ElementWiseUnaryOperator.NEG.performElementwise(this, out);
+    }
+
+    public NDArray negi() {
+        return this.neg(this);
+    }
+
+    public NDArray square() {
+        return ElementWiseUnaryOperator.SQUARE.performElementwise(this);
+    }
+
+    public NDArray square(NDArray out) {
+        return ElementWiseUnaryOperator.SQUARE.performElementwise(this, out);
+    }
+
+    public NDArray squarei() {
+        return this.square(this);
+    }
+
+    /** Starts a chain of element-wise operations that is evaluated in one fused pass. */
+    public Expression lazy() {
+        return Expression.of(this);
+    }
+
+    private NDArray perform(ElementWiseBinaryOperator op, NDArray other, NDArray out) {
+        return op.performBinaryOperator(this, other, out);
+    }
+
     public NDArray reshape(int... newShape) {
         newShape = ShapeUtil.reshape(shape, newShape);
 
         if (getContiguous() == Flags.Contiguous.C) {
-            return NDArrays.of(newShape, data, offset, Flags.Contiguous.C);
+            return NDArrays.of(newShape, storage, offset, Flags.Contiguous.C);
         }
 
         // can we make it non-copying?
-        return NDArrays.of(newShape, NDArrays.performIteratively(this, v -> v));
+        NDArray copy = astype(getDType());
+        return NDArrays.of(newShape, copy.storage, 0, Flags.Contiguous.C);
     }
 
     private int getFlatIndex(int[] indices) {
@@ -278,11 +614,20 @@ public class NDArray implements Iterable<Float> {
     }
 
     public float get(int[] indices) {
-        return data[offset + getFlatIndex(indices)];
+        return storage.get(offset + getFlatIndex(indices));
     }
 
     public void set(int[] indices, float v) {
-        data[offset + getFlatIndex(indices)] = v;
+        storage.set(offset + getFlatIndex(indices), v);
+    }
+
+    // exact for float64 and int32 elements
+    public double getDouble(int[] indices) {
+        return storage.getDouble(offset + getFlatIndex(indices));
+    }
+
+    public void setDouble(int[] indices, double v) {
+        storage.setDouble(offset + getFlatIndex(indices), v);
     }
 
     public NDArray getNDArray(int[] indices) {
@@ -293,7 +638,7 @@ public class NDArray implements Iterable<Float> {
         return new NDArray(
                 subShape,
                 subStrides,
-                data,
+                storage,
                 subOffset,
                 Flags.setContiguous(
                         Flags.ZERO,
@@ -307,6 +652,14 @@ public class NDArray implements Iterable<Float> {
         return PresentUtil.toArray(this);
     }
 
+    public double[] toDoubleArray() {
+        return PresentUtil.toDoubleArray(this);
+    }
+
+    public int[] toIntArray() {
+        return PresentUtil.toIntArray(this);
+    }
+
     public float[][] toMatrix() {
         return PresentUtil.toMatrix(this);
     }
@@ -332,19 +685,20 @@ public class NDArray implements Iterable<Float> {
     public NDArray addVector(NDArray other) {
         NDArray res = NDArrays.zerosLike(this);
 
-        float[] A = this.data;
-        float[] B = other.data;
-        float[] C = res.data;
+        Storage A = this.storage;
+        Storage B = other.storage;
+        Storage C = res.storage;
 
+        int len = getSize();
         int i = 0;
-        for (; i < SPECIES.loopBound(data.length); i += SPECIES_LEN) {
-            var va = FloatVector.fromArray(SPECIES, this.data, i);
-            var vb = FloatVector.fromArray(SPECIES, other.data, i);
-            va.add(vb).intoArray(C, i);
+        for (; i < SPECIES.loopBound(len); i += SPECIES_LEN) {
+            var va = A.load(i);
+            var vb = B.load(i);
+            C.store(va.add(vb), i);
         }
 
-        for (; i < data.length; i++) {
-            C[i] = A[i] + B[i];
+        for (; i < len; i++) {
+            C.set(i, A.get(i) + B.get(i));
         }
 
         return res;
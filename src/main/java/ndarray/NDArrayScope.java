@@ -0,0 +1,100 @@
+package ndarray;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+import ndarray.storage.BufferPool;
+import ndarray.storage.HeapStorage;
+
+/**
+ * Recycles the buffers of intermediate arrays. While a scope is open on a thread, the arrays that
+ * NDArrays factories and operations create on that thread take their float[] from a per-thread
+ * {@link BufferPool}, and closing the scope gives them all back. Arrays made from a caller's
+ * float[], views and off-heap arrays are never recycled.
+ *
+ * <p>An array that is used after the scope closes has to be {@link #keep kept}, otherwise its
+ * buffer is handed to later arrays:
+ *
+ * <pre>{@code
+ * try (NDArrayScope scope = NDArrayScope.open()) {
+ *     NDArray h = x.matmul(w).maximum(0f);
+ *     return scope.keep(h.sum(1));
+ * }
+ * }</pre>
+ */
+public final class NDArrayScope implements AutoCloseable {
+
+    private static final ThreadLocal<NDArrayScope> CURRENT = new ThreadLocal<>();
+    private static final ThreadLocal<BufferPool> POOL = ThreadLocal.withInitial(BufferPool::new);
+
+    private final NDArrayScope parent;
+    private final BufferPool pool;
+
+    // by identity, all views of an array share its buffer
+    private final Set<float[]> buffers = Collections.newSetFromMap(new IdentityHashMap<>());
+    private boolean closed;
+
+    private NDArrayScope(NDArrayScope parent, BufferPool pool) {
+        this.parent = parent;
+        this.pool = pool;
+    }
+
+    /** Opens a scope on this thread, nested in the scope that is currently open, if any. */
+    public static NDArrayScope open() {
+        NDArrayScope scope = new NDArrayScope(CURRENT.get(), POOL.get());
+        CURRENT.set(scope);
+        return scope;
+    }
+
+    /**
+     * Takes the buffer under a out of this scope and returns a. It moves to the enclosing scope if
+     * there is one, and is left to the garbage collector otherwise.
+     */
+    public NDArray keep(NDArray a) {
+        if (a.storage instanceof HeapStorage heap && buffers.remove(heap.array())) {
+            if (parent != null) {
+                parent.buffers.add(heap.array());
+            }
+        }
+        return a;
+    }
+
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        if (CURRENT.get() != this) {
+            throw new IllegalStateException(
+                    "scopes must be closed innermost first, on the thread that opened them");
+        }
+        closed = true;
+
+        if (parent == null) {
+            CURRENT.remove();
+        } else {
+            CURRENT.set(parent);
+        }
+
+        for (float[] buffer : buffers) {
+            pool.give(buffer);
+        }
+        buffers.clear();
+    }
+
+    // a buffer for a new array of size floats, pooled if a scope is open on this thread
+    static float[] allocate(int size, boolean zeroed) {
+        NDArrayScope scope = CURRENT.get();
+        if (scope == null) {
+            return new float[size];
+        }
+
+        float[] buffer = scope.pool.take(size);
+        if (zeroed) {
+            Arrays.fill(buffer, 0, size, 0f);
+        }
+        scope.buffers.add(buffer);
+        return buffer;
+    }
+}
@@ -3,28 +3,65 @@ package ndarray;
 import static ndarray.util.ShapeUtil.*;
 import static ndarray.util.Util.*;
 
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.Arrays;
 import java.util.Iterator;
+import java.util.Set;
+import ndarray.iterator.StridedLoop;
 import ndarray.operator.FloatBinaryOperator;
-import ndarray.operator.FloatUnaryOperator;
+import ndarray.storage.ByteStorage;
+import ndarray.storage.DoubleStorage;
+import ndarray.storage.HalfStorage;
+import ndarray.storage.IntStorage;
+import ndarray.storage.Storage;
+import ndarray.util.DType;
 import ndarray.util.Flags;
+import ndarray.util.NpyUtil;
 import ndarray.util.ShapeUtil;
 
 public class NDArrays {
 
-    // copy shape, strides, contiguous
+    // copy shape, strides, contiguous and dtype
     public static NDArray onesLike(NDArray other) {
-        float[] data = new float[other.getSize()];
-        Arrays.fill(data, 1);
+        if (other.getDType() != DType.FLOAT32) {
+            NDArray res = NDArrays.emptyLike(other);
+            return NDArrays.copy(NDArrays.ofScalar(1), res);
+        }
+        float[] data = NDArrayScope.allocate(other.getSize(), false);
+        Arrays.fill(data, 0, other.getSize(), 1);
         return NDArrays.of(other.shape, data, Flags.getContiguous(other.flags));
     }
 
     public static NDArray zerosLike(NDArray other) {
+        if (other.getDType() != DType.FLOAT32) {
+            // storages of other types are always new, and zeroed
+            return NDArrays.emptyLike(other);
+        }
         return NDArrays.of(other.shape, Flags.getContiguous(other.flags));
     }
 
+    // like zerosLike, but the contents are unspecified when the buffer comes from a scope's pool
+    public static NDArray emptyLike(NDArray other) {
+        return NDArrays.emptyLike(other, other.getDType());
+    }
+
+    public static NDArray emptyLike(NDArray other, DType dtype) {
+        Flags.Contiguous contiguous = Flags.getContiguous(other.flags);
+        if (dtype != DType.FLOAT32) {
+            Storage storage = Storage.allocate(dtype, other.getSize());
+            return NDArrays.of(other.shape, storage, 0, contiguous);
+        }
+        float[] data = NDArrayScope.allocate(other.getSize(), false);
+        return NDArrays.of(other.shape, data, contiguous);
+    }
+
     public static NDArray arange(int start, int end) {
-        float[] data = new float[end - start];
+        float[] data = NDArrayScope.allocate(end - start, false);
         for (int i = 0; i < end - start; i++) {
             data[i] = start + i;
         }
@@ -37,11 +74,19 @@ public class NDArrays {
     }
 
     public static NDArray fill(int[] shape, float v) {
-        float[] data = new float[ShapeUtil.getSize(shape)];
-        Arrays.fill(data, v);
+        int size = ShapeUtil.getSize(shape);
+        float[] data = NDArrayScope.allocate(size, false);
+        Arrays.fill(data, 0, size, v);
         return NDArrays.of(shape, data, Flags.Contiguous.C);
     }
 
+    public static NDArray fill(int[] shape, float v, DType dtype) {
+        if (dtype == DType.FLOAT32) {
+            return NDArrays.fill(shape, v);
+        }
+        return NDArrays.copy(NDArrays.ofScalar(v), NDArrays.empty(shape, dtype));
+    }
+
     public static NDArray of(float[] data) {
         return NDArrays.of(arrOf(data.length), data);
     }
@@ -54,7 +99,7 @@ public class NDArrays {
         int m = matrix.length;
         int n = matrix[0].length;
 
-        float[] data = new float[m * n];
+        float[] data = NDArrayScope.allocate(m * n, false);
 
         for (int i = 0; i < m; i++) {
             if (matrix[i].length != n) {
@@ -75,11 +120,52 @@ public class NDArrays {
         return NDArrays.of(shape, data, Flags.Contiguous.C);
     }
 
+    public static NDArray of(int[] shape, double[] data) {
+        return NDArrays.of(shape, new DoubleStorage(data), 0, Flags.Contiguous.C);
+    }
+
+    public static NDArray of(int[] shape, int[] data) {
+        return NDArrays.of(shape, new IntStorage(data), 0, Flags.Contiguous.C);
+    }
+
+    /** An array over data as int8, uint8 or booleans. */
+    public static NDArray of(int[] shape, byte[] data, DType dtype) {
+        return NDArrays.of(shape, new ByteStorage(data, dtype), 0, Flags.Contiguous.C);
+    }
+
+    /** An array over the bits of float16 or bfloat16 values in data. */
+    public static NDArray of(int[] shape, short[] data, DType dtype) {
+        return NDArrays.of(shape, new HalfStorage(data, dtype), 0, Flags.Contiguous.C);
+    }
+
+    // a boolean mask, the values are copied
+    public static NDArray of(int[] shape, boolean[] mask) {
+        byte[] data = new byte[mask.length];
+        for (int i = 0; i < mask.length; i++) {
+            data[i] = (byte) (mask[i] ? 1 : 0);
+        }
+        return NDArrays.of(shape, data, DType.BOOL);
+    }
+
+    // a C-contiguous array whose contents are unspecified when the buffer comes from a scope's pool
+    public static NDArray empty(int[] shape) {
+        return NDArrays.of(shape, NDArrayScope.allocate(ShapeUtil.getSize(shape), false));
+    }
+
+    // like empty(shape) for float32, arrays of other types are never pooled and come zeroed
+    public static NDArray empty(int[] shape, DType dtype) {
+        if (dtype == DType.FLOAT32) {
+            return NDArrays.empty(shape);
+        }
+        Storage storage = Storage.allocate(dtype, ShapeUtil.getSize(shape));
+        return NDArrays.of(shape, storage, 0, Flags.Contiguous.C);
+    }
+
     public static NDArray of(int[] shape, Flags.Contiguous contiguous) {
         return new NDArray(
                 shape,
                 contiguous.calculateStrides(shape),
-                new float[ShapeUtil.getSize(shape)],
+                NDArrayScope.allocate(ShapeUtil.getSize(shape), true),
                 0,
                 Flags.setContiguous(Flags.ZERO, contiguous));
     }
@@ -89,139 +175,240 @@ public class NDArrays {
     }
 
     public static NDArray of(int[] shape, float[] data, int offset, Flags.Contiguous contiguous) {
+        return NDArrays.of(shape, Storage.of(data), offset, contiguous);
+    }
+
+    public static NDArray of(
+            int[] shape, Storage storage, int offset, Flags.Contiguous contiguous) {
         return new NDArray(
                 shape,
                 contiguous.calculateStrides(shape),
-                data,
+                storage,
                 offset,
                 Flags.setContiguous(Flags.ZERO, contiguous));
     }
 
-    public static NDArray stack(NDArray... ndArrays) {
-        if (ndArrays.length == 0 || ndArrays[0].getContiguous() != Flags.Contiguous.C) {
-            throw new IllegalArgumentException("can not merge NDArrays");
+    /** A C-contiguous array over the floats of segment, which can be native memory. */
+    public static NDArray of(int[] shape, MemorySegment segment) {
+        Storage storage = Storage.of(segment);
+        if (storage.size() < ShapeUtil.getSize(shape)) {
+            throw new IllegalArgumentException(
+                    "segment of %d floats is too small for shape %s"
+                            .formatted(storage.size(), Arrays.toString(shape)));
         }
+        return NDArrays.of(shape, storage, 0, Flags.Contiguous.C);
+    }
 
-        int len = ndArrays.length;
-
-        NDArray first = ndArrays[0];
-        int size = first.getSize();
-        float[] data = new float[len * size];
+    /**
+     * A zeroed C-contiguous array in off-heap memory owned by arena. Large operations run on the
+     * common pool, so the arena should be shared (or global) rather than confined.
+     */
+    public static NDArray allocate(int[] shape, Arena arena) {
+        return NDArrays.of(
+                shape, Storage.allocate(arena, ShapeUtil.getSize(shape)), 0, Flags.Contiguous.C);
+    }
 
-        for (int i = 0; i < len; i++) {
-            NDArray curt = ndArrays[i];
-            assert elementwiseOperable(first, curt);
+    // copies a into off-heap memory owned by arena, the copy is C-contiguous
+    public static NDArray copyOf(NDArray a, Arena arena) {
+        return NDArrays.copy(a, NDArrays.allocate(a.shape, arena));
+    }
 
-            System.arraycopy(curt.data, curt.offset, data, i * size, size);
+    /**
+     * Copies a, broadcast to the shape of out, into out and returns out, converted to the type of
+     * out. Between float64 and int32 arrays the elements are copied exactly, otherwise through
+     * float32.
+     */
+    public static NDArray copy(NDArray a, NDArray out) {
+        if (isWide(a.getDType()) && isWide(out.getDType())) {
+            return StridedLoop.forEachRun(
+                    a,
+                    out,
+                    (len, A, ia, sa, C, ic, sc) -> {
+                        for (int i = 0; i < len; i++) {
+                            C.setDouble(ic + i * sc, A.getDouble(ia + i * sa));
+                        }
+                    });
         }
+        return StridedLoop.forEachRun(
+                a,
+                out,
+                (len, A, ia, sa, C, ic, sc) -> {
+                    int i = 0;
+                    if (sc == 1) {
+                        int[] map = StridedLoop.indexMap(sa);
+                        for (; i < SPECIES.loopBound(len); i += SPECIES_LEN) {
+                            C.store(StridedLoop.load(A, ia + i * sa, sa, map), ic + i);
+                        }
+                    }
+                    for (; i < len; i++) {
+                        C.set(ic + i * sc, A.get(ia + i * sa));
+                    }
+                });
+    }
 
-        int[] newShape = new int[first.shape.length + 1];
-        newShape[0] = len;
-        System.arraycopy(first.shape, 0, newShape, 1, first.shape.length);
+    // types a float does not hold exactly
+    private static boolean isWide(DType dtype) {
+        return dtype == DType.FLOAT64 || dtype == DType.INT32;
+    }
 
-        return NDArrays.of(newShape, data);
+    /**
+     * Maps a raw little-endian float file, or a .npy file of {@code '<f4'} data, read-only. Nothing
+     * is read up front: pages are loaded on first access and shared through the page cache with
+     * every process mapping the same file. The mapping is released once the array is unreachable.
+     */
+    public static NDArray map(Path path, int[] shape, Flags.Contiguous order) throws IOException {
+        return NDArrays.map(path, shape, order, FileChannel.MapMode.READ_ONLY, Arena.ofAuto());
     }
 
-    public static NDArray perform(NDArray a, NDArray b, FloatBinaryOperator op) {
-        if (shapesEqual(a, b)) {
-            return performIteratively(a, b, op);
+    /**
+     * Maps path with the given mode and lifetime. {@code PRIVATE} maps copy-on-write, writes stay
+     * with this mapping and never reach the file, {@code READ_WRITE} writes through to the file. A
+     * .npy header has to agree with shape and order.
+     */
+    public static NDArray map(
+            Path path,
+            int[] shape,
+            Flags.Contiguous order,
+            FileChannel.MapMode mode,
+            Arena arena)
+            throws IOException {
+        MemorySegment file = mapFile(path, mode, arena);
+        long dataOffset = 0;
+        if (NpyUtil.isNpy(file)) {
+            NpyUtil.Header header = checkNpy(path, NpyUtil.readHeader(file));
+            if (!Arrays.equals(header.shape(), shape) || header.order() != order) {
+                throw new IllegalArgumentException(
+                        "%s holds shape %s in %s order, not %s in %s order"
+                                .formatted(
+                                        path,
+                                        Arrays.toString(header.shape()),
+                                        header.order(),
+                                        Arrays.toString(shape),
+                                        order));
+            }
+            dataOffset = header.dataOffset();
         }
+        return ofMapped(path, file.asSlice(dataOffset), shape, order);
+    }
 
-        return performBroadcastly(a, b, op);
+    /** Maps a .npy file read-only, taking shape and order from its header. */
+    public static NDArray map(Path path) throws IOException {
+        return NDArrays.map(path, FileChannel.MapMode.READ_ONLY, Arena.ofAuto());
     }
 
-    protected static float[] performIteratively(NDArray a, FloatUnaryOperator op) {
-        Iterator<Float> A = a.iterator();
-        float[] output = new float[a.getSize()];
+    public static NDArray map(Path path, FileChannel.MapMode mode, Arena arena)
+            throws IOException {
+        MemorySegment file = mapFile(path, mode, arena);
+        NpyUtil.Header header = checkNpy(path, NpyUtil.readHeader(file));
+        return ofMapped(path, file.asSlice(header.dataOffset()), header.shape(), header.order());
+    }
 
-        for (int i = 0; i < output.length; i++) {
-            float va = A.next();
-            output[i] = op.applyAsFloat(va);
+    private static MemorySegment mapFile(Path path, FileChannel.MapMode mode, Arena arena)
+            throws IOException {
+        // a copy-on-write mapping still needs a channel opened for writing
+        Set<StandardOpenOption> options =
+                mode == FileChannel.MapMode.READ_ONLY
+                        ? Set.of(StandardOpenOption.READ)
+                        : Set.of(StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try (FileChannel channel = FileChannel.open(path, options)) {
+            return channel.map(mode, 0, channel.size(), arena);
         }
-        return output;
     }
 
-    protected static NDArray performIteratively(NDArray a, NDArray b, FloatBinaryOperator op) {
-        assertShapesEqual(a, b);
-        NDArray res = NDArrays.of(a.shape);
-        Iterator<Float> A = a.iterator();
-        Iterator<Float> B = b.iterator();
-        float[] output = res.data;
-
-        for (int i = 0; i < output.length; i++) {
-            float va = A.next();
-            float vb = B.next();
-            output[i] = op.applyAsFloat(va, vb);
+    private static NpyUtil.Header checkNpy(Path path, NpyUtil.Header header) {
+        if (!header.descr().equals("<f4")) {
+            throw new IllegalArgumentException(
+                    "%s holds dtype %s, only little-endian float32 ('<f4') can be mapped"
+                            .formatted(path, header.descr()));
         }
-        return res;
+        return header;
     }
 
-    protected static NDArray performBroadcastly(NDArray a, NDArray b, FloatBinaryOperator op) {
-        boolean scalarA = a.isScalar();
-        boolean scalarB = b.isScalar();
-        if (scalarA || scalarB) {
-            if (scalarA && scalarB) {
-                return NDArrays.ofScalar(op.applyAsFloat(a.asScalar(), b.asScalar()));
-            }
-
-            if (scalarA) {
-                return performScalarWith(a, b, op);
-            }
+    private static NDArray ofMapped(
+            Path path, MemorySegment data, int[] shape, Flags.Contiguous order) {
+        long expected = (long) ShapeUtil.getSize(shape) * Float.BYTES;
+        if (data.byteSize() != expected) {
+            throw new IllegalArgumentException(
+                    "%s holds %d bytes of data, shape %s needs %d"
+                            .formatted(path, data.byteSize(), Arrays.toString(shape), expected));
+        }
+        return NDArrays.of(shape, Storage.of(data), 0, order);
+    }
 
-            return performWithScalar(a, b, op);
+    public static NDArray stack(NDArray... ndArrays) {
+        if (ndArrays.length == 0 || ndArrays[0].getContiguous() != Flags.Contiguous.C) {
+            throw new IllegalArgumentException("can not merge NDArrays");
         }
 
-        NDArray res = NDArrays.of(broadcastShapes(a.shape, b.shape));
-        int[] shapeA = a.shape;
-        int[] shapeB = b.shape;
-        int[] shapeC = res.shape;
+        int len = ndArrays.length;
 
-        int lenA = shapeA.length;
-        int lenB = shapeB.length;
-        int lenC = shapeC.length;
+        NDArray first = ndArrays[0];
+        int size = first.getSize();
+        int[] newShape = new int[first.shape.length + 1];
+        newShape[0] = len;
+        System.arraycopy(first.shape, 0, newShape, 1, first.shape.length);
 
-        int[] indicesA = new int[lenA];
-        int[] indicesB = new int[lenB];
-        int[] indicesC = new int[lenC];
+        if (first.getDType() != DType.FLOAT32) {
+            NDArray res = NDArrays.empty(newShape, first.getDType());
+            for (int i = 0; i < len; i++) {
+                assert elementwiseOperable(first, ndArrays[i]);
+                NDArrays.copy(ndArrays[i], res.getNDArray(arrOf(i)));
+            }
+            return res;
+        }
 
-        do {
-            System.arraycopy(indicesC, lenC - lenA, indicesA, 0, lenA);
-            System.arraycopy(indicesC, lenC - lenB, indicesB, 0, lenB);
+        float[] data = NDArrayScope.allocate(len * size, false);
 
-            ShapeUtil.constrainIndices(indicesA, shapeA);
-            ShapeUtil.constrainIndices(indicesB, shapeB);
+        for (int i = 0; i < len; i++) {
+            NDArray curt = ndArrays[i];
+            assert elementwiseOperable(first, curt);
 
-            res.set(indicesC, op.applyAsFloat(a.get(indicesA), b.get(indicesB)));
-        } while (ShapeUtil.increaseIndices(indicesC, shapeC));
+            curt.storage.read(curt.offset, data, i * size, size);
+        }
 
-        return res;
+        return NDArrays.of(newShape, data);
     }
 
-    protected static NDArray performScalarWith(NDArray a, NDArray b, FloatBinaryOperator op) {
-        float va = a.asScalar();
-        NDArray res = NDArrays.of(a.shape);
+    public static NDArray perform(NDArray a, NDArray b, FloatBinaryOperator op) {
+        return NDArrays.perform(a, b, op, NDArrays.empty(broadcastShapes(a.shape, b.shape)));
+    }
 
+    protected static NDArray performIteratively(NDArray a, NDArray b, FloatBinaryOperator op) {
+        assertShapesEqual(a, b);
+        Iterator<Float> A = a.iterator();
         Iterator<Float> B = b.iterator();
-        float[] output = res.data;
+        int size = a.getSize();
+        float[] output = NDArrayScope.allocate(size, false);
 
-        for (int i = 0; i < output.length; i++) {
+        for (int i = 0; i < size; i++) {
+            float va = A.next();
             float vb = B.next();
             output[i] = op.applyAsFloat(va, vb);
         }
-        return res;
+        return NDArrays.of(a.shape, output);
     }
 
-    protected static NDArray performWithScalar(NDArray a, NDArray b, FloatBinaryOperator op) {
-        float vb = b.asScalar();
-        NDArray res = NDArrays.of(a.shape);
-
-        Iterator<Float> A = a.iterator();
-        float[] output = res.data;
+    protected static NDArray performBroadcastly(NDArray a, NDArray b, FloatBinaryOperator op) {
+        return NDArrays.perform(a, b, op);
+    }
 
-        for (int i = 0; i < output.length; i++) {
-            float va = A.next();
-            output[i] = op.applyAsFloat(va, vb);
-        }
-        return res;
+    /**
+     * Writes op over a and b broadcast against each other into out, through the strides of all
+     * three. out may be a or b itself, but must not overlap them otherwise.
+     */
+    public static NDArray perform(NDArray a, NDArray b, FloatBinaryOperator op, NDArray out) {
+        assertOutShape(out, broadcastShapes(a.shape, b.shape));
+
+        return StridedLoop.forEachRun(
+                a,
+                b,
+                out,
+                (len, A, ia, sa, B, ib, sb, C, ic, sc) -> {
+                    for (int i = 0; i < len; i++) {
+                        float va = A.get(ia + i * sa);
+                        float vb = B.get(ib + i * sb);
+                        C.set(ic + i * sc, op.applyAsFloat(va, vb));
+                    }
+                });
     }
 }
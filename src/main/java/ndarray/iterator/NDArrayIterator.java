@@ -5,6 +5,7 @@ import static ndarray.util.ShapeUtil.calculateIndices;
 import java.util.Iterator;
 import java.util.NoSuchElementException;
 import ndarray.NDArray;
+import ndarray.storage.Storage;
 import ndarray.util.Flags;
 
 public class NDArrayIterator implements Iterator<Float> {
@@ -19,7 +20,7 @@ public class NDArrayIterator implements Iterator<Float> {
     private final int[] shape;
     private final int[] indices;
 
-    private final float[] data;
+    private final Storage storage;
 
     public NDArrayIterator(NDArray ndArray) {
         this.ndArray = ndArray;
@@ -27,7 +28,7 @@ public class NDArrayIterator implements Iterator<Float> {
         this.isCContiguous = ndArray.getContiguous() == Flags.Contiguous.C;
         this.shape = ndArray.getShape();
         this.indices = isCContiguous ? null : new int[shape.length];
-        this.data = ndArray.getData().array();
+        this.storage = ndArray.getData().storage();
         this.offset = ndArray.getData().offset();
     }
 
@@ -44,7 +45,7 @@ public class NDArrayIterator implements Iterator<Float> {
         }
 
         if (isCContiguous) {
-            return data[offset + curt++];
+            return storage.get(offset + curt++);
         } else {
             return ndArray.get(calculateIndices(curt++, shape, indices));
         }
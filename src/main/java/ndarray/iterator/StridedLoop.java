@@ -0,0 +1,254 @@
+package ndarray.iterator;
+
+import static ndarray.util.Util.SPECIES;
+import static ndarray.util.Util.SPECIES_LEN;
+
+import java.util.Arrays;
+import jdk.incubator.vector.FloatVector;
+import ndarray.NDArray;
+import ndarray.operator.ElementWise;
+import ndarray.storage.Storage;
+
+/**
+ * Loops over the elements of an element-wise operation straight through the storages and strides
+ * of its operands, which are broadcast to the shape of the output. Each operand is seen through
+ * strides over the output axes, 0 along the axes it is broadcast over. The axes are put in the
+ * memory order of the output and adjacent axes that are contiguous in all the arrays are merged, so
+ * a kernel gets the longest runs the layouts allow: the whole array for matching layouts, one
+ * unit-stride row per step for a row-vector operand.
+ *
+ * <p>When an operand is laid out across the innermost axis, like a transposed view next to a C
+ * array, the two innermost axes are walked in tiles of {@link #TILE} columns, so the lines of that
+ * operand a tile touches are still in cache when the next row reads them.
+ *
+ * <p>Large loops are split between runs, or between tiled pairs of axes, into chunks that run on
+ * the pool, see {@link ElementWise}.
+ */
+public final class StridedLoop {
+
+    static final int TILE = 64;
+
+    /** Computes one run of len elements, the positions and strides index into the storages. */
+    @FunctionalInterface
+    public interface UnaryRun {
+        void run(int len, Storage A, int a, int aStride, Storage C, int c, int cStride);
+    }
+
+    /** Computes one run of len elements, the positions and strides index into the storages. */
+    @FunctionalInterface
+    public interface BinaryRun {
+        void run(
+                int len,
+                Storage A,
+                int a,
+                int aStride,
+                Storage B,
+                int b,
+                int bStride,
+                Storage C,
+                int c,
+                int cStride);
+    }
+
+    private StridedLoop() {}
+
+    public static NDArray forEachRun(NDArray a, NDArray out, UnaryRun run) {
+        // a second operand with the strides of a never stops axes from merging
+        return forEachRun(
+                a,
+                a,
+                out,
+                (len, A, ia, sa, B, ib, sb, C, ic, sc) -> run.run(len, A, ia, sa, C, ic, sc));
+    }
+
+    public static NDArray forEachRun(NDArray a, NDArray b, NDArray out, BinaryRun run) {
+        if (out.getSize() == 0) {
+            return out;
+        }
+
+        int[] shape = out.getShape();
+        int[][] strides = {
+            broadcastStrides(a, shape), broadcastStrides(b, shape), out.getStrides()
+        };
+
+        // axes of length 1 are dropped, the rest go outermost first in the memory order of out
+        int[] axes = new int[shape.length];
+        int n = 0;
+        for (int i = 0; i < shape.length; i++) {
+            if (shape[i] == 1) {
+                continue;
+            }
+            int j = n++;
+            for (; j > 0 && Math.abs(strides[2][axes[j - 1]]) < Math.abs(strides[2][i]); j--) {
+                axes[j] = axes[j - 1];
+            }
+            axes[j] = i;
+        }
+
+        int dims = 0;
+        int[] lens = new int[Math.max(n, 1)];
+        int[][] steps = new int[3][lens.length];
+        for (int x = 0; x < n; x++) {
+            int axis = axes[x];
+            if (dims > 0 && mergeable(strides, dims - 1, axis, shape, steps)) {
+                lens[dims - 1] *= shape[axis];
+                for (int k = 0; k < 3; k++) {
+                    steps[k][dims - 1] = strides[k][axis];
+                }
+            } else {
+                lens[dims] = shape[axis];
+                for (int k = 0; k < 3; k++) {
+                    steps[k][dims] = strides[k][axis];
+                }
+                dims++;
+            }
+        }
+        if (dims == 0) {
+            // every axis has length 1, a single element
+            lens[0] = 1;
+            dims = 1;
+        }
+
+        int inner = dims - 1;
+        boolean tiled = inner > 0 && (transposed(steps[0], inner) || transposed(steps[1], inner));
+
+        // each step of the counter covers a run, or a tiled pair of axes
+        int outer = tiled ? inner - 1 : inner;
+        int block = tiled ? lens[inner] * lens[inner - 1] : lens[inner];
+
+        var loop = new Loop(a, b, out, Arrays.copyOf(lens, dims), steps, outer, tiled, run);
+        ElementWise.forEachChunk(out.getSize() / block, block, loop::runs);
+        return out;
+    }
+
+    private record Loop(
+            NDArray a,
+            NDArray b,
+            NDArray out,
+            int[] lens,
+            int[][] steps,
+            int outer,
+            boolean tiled,
+            BinaryRun run) {
+
+        // the runs from inclusive to exclusive, counting over the outer axes
+        void runs(int from, int to) {
+            int[] sa = steps[0], sb = steps[1], sc = steps[2];
+            int ia = a.getData().offset();
+            int ib = b.getData().offset();
+            int ic = out.getData().offset();
+
+            int[] counter = new int[lens.length];
+            for (int d = outer - 1, r = from; d >= 0; d--) {
+                counter[d] = r % lens[d];
+                r /= lens[d];
+                ia += counter[d] * sa[d];
+                ib += counter[d] * sb[d];
+                ic += counter[d] * sc[d];
+            }
+
+            Storage A = a.getData().storage();
+            Storage B = b.getData().storage();
+            Storage C = out.getData().storage();
+            int inner = lens.length - 1;
+            for (int r = from; r < to; r++) {
+                if (tiled) {
+                    int rows = lens[inner - 1];
+                    int cols = lens[inner];
+                    int row = inner - 1;
+                    for (int j = 0; j < cols; j += TILE) {
+                        int len = Math.min(TILE, cols - j);
+                        for (int i = 0; i < rows; i++) {
+                            run.run(
+                                    len,
+                                    A,
+                                    ia + i * sa[row] + j * sa[inner],
+                                    sa[inner],
+                                    B,
+                                    ib + i * sb[row] + j * sb[inner],
+                                    sb[inner],
+                                    C,
+                                    ic + i * sc[row] + j * sc[inner],
+                                    sc[inner]);
+                        }
+                    }
+                } else {
+                    run.run(lens[inner], A, ia, sa[inner], B, ib, sb[inner], C, ic, sc[inner]);
+                }
+
+                for (int d = outer - 1; d >= 0; d--) {
+                    if (++counter[d] < lens[d]) {
+                        ia += sa[d];
+                        ib += sb[d];
+                        ic += sc[d];
+                        break;
+                    }
+                    counter[d] = 0;
+                    ia -= sa[d] * (lens[d] - 1);
+                    ib -= sb[d] * (lens[d] - 1);
+                    ic -= sc[d] * (lens[d] - 1);
+                }
+            }
+        }
+    }
+
+    /** The lane offsets of a gather with the given stride, for {@link #load}. */
+    public static int[] indexMap(int stride) {
+        int[] map = new int[SPECIES_LEN];
+        for (int i = 0; i < map.length; i++) {
+            map[i] = i * stride;
+        }
+        return map;
+    }
+
+    /**
+     * Loads the vector at index of a run with the given stride: a plain load for unit stride, the
+     * element broadcast for stride 0, and a gather through indexMap otherwise.
+     */
+    public static FloatVector load(Storage s, int index, int stride, int[] indexMap) {
+        return switch (stride) {
+            case 1 -> s.load(index);
+            case 0 -> FloatVector.broadcast(SPECIES, s.get(index));
+            default -> s.load(index, indexMap);
+        };
+    }
+
+    /** The strides of x over the axes of shape, 0 along the axes x is broadcast over. */
+    public static int[] broadcastStrides(NDArray x, int[] shape) {
+        int[] xShape = x.getShape();
+        int[] xStrides = x.getStrides();
+        if (xShape.length > shape.length) {
+            throw new IllegalArgumentException(
+                    "shape %s can not be broadcast to %s"
+                            .formatted(Arrays.toString(xShape), Arrays.toString(shape)));
+        }
+
+        int[] res = new int[shape.length];
+        int diff = shape.length - xShape.length;
+        for (int i = 0; i < xShape.length; i++) {
+            if (xShape[i] != 1 && xShape[i] != shape[i + diff]) {
+                throw new IllegalArgumentException(
+                        "shape %s can not be broadcast to %s"
+                                .formatted(Arrays.toString(xShape), Arrays.toString(shape)));
+            }
+            res[i + diff] = xShape[i] == 1 ? 0 : xStrides[i];
+        }
+        return res;
+    }
+
+    // whether the next axis continues the merged axis d in all three arrays
+    private static boolean mergeable(int[][] strides, int d, int axis, int[] shape, int[][] steps) {
+        for (int k = 0; k < 3; k++) {
+            if (steps[k][d] != strides[k][axis] * shape[axis]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // whether an operand is closer to contiguous along the row axis than along the runs
+    private static boolean transposed(int[] steps, int inner) {
+        int row = Math.abs(steps[inner - 1]);
+        return row != 0 && row < Math.abs(steps[inner]);
+    }
+}
@@ -0,0 +1,101 @@
+package ndarray.operator;
+
+import static ndarray.util.Util.SPECIES_LEN;
+
+import ndarray.util.ConcurrentUtil;
+
+/**
+ * When element-wise operations go to the pool. An operation over at least the threshold number of
+ * elements is split into chunks of about the chunk size, small enough that the operands of one
+ * chunk stay in a core's L2 cache, and the chunks run in parallel. Smaller operations run on the
+ * calling thread.
+ */
+public final class ElementWise {
+
+    public static final String PARALLEL_THRESHOLD_PROPERTY =
+            "ndarray.elementwise.parallelThreshold";
+    public static final String CHUNK_SIZE_PROPERTY = "ndarray.elementwise.chunkSize";
+
+    // a few times the cost of a round trip through the pool for an add
+    private static final int DEFAULT_PARALLEL_THRESHOLD = 1 << 16;
+
+    // 128 KB of each of three operands
+    private static final int DEFAULT_CHUNK_SIZE = 1 << 15;
+
+    private static volatile int parallelThreshold = initialParallelThreshold();
+    private static volatile int chunkSize =
+            Integer.getInteger(CHUNK_SIZE_PROPERTY, DEFAULT_CHUNK_SIZE);
+
+    /** Computes the elements from inclusive to exclusive. */
+    @FunctionalInterface
+    public interface Chunk {
+        void run(int from, int to);
+    }
+
+    private ElementWise() {}
+
+    public static int getParallelThreshold() {
+        return parallelThreshold;
+    }
+
+    /** Operations on fewer elements run on the calling thread, 0 always goes to the pool. */
+    public static void setParallelThreshold(int size) {
+        if (size < 0) {
+            throw new IllegalArgumentException(
+                    "parallel threshold must not be negative: %d".formatted(size));
+        }
+        parallelThreshold = size;
+    }
+
+    public static int getChunkSize() {
+        return chunkSize;
+    }
+
+    /** Elements computed by one task, rounded to whole vectors. */
+    public static void setChunkSize(int size) {
+        if (size <= 0) {
+            throw new IllegalArgumentException("chunk size must be positive: %d".formatted(size));
+        }
+        chunkSize = size;
+    }
+
+    private static int initialParallelThreshold() {
+        Integer value = Integer.getInteger(PARALLEL_THRESHOLD_PROPERTY);
+        if (value != null) {
+            return value;
+        }
+        return Runtime.getRuntime().availableProcessors() == 1
+                ? Integer.MAX_VALUE
+                : DEFAULT_PARALLEL_THRESHOLD;
+    }
+
+    /**
+     * Runs chunk over [0, len), in one piece below the threshold and otherwise in chunks of whole
+     * vectors spread over the pool, so only the last chunk has a scalar tail.
+     */
+    public static void forEachChunk(int len, Chunk chunk) {
+        forEachChunk(len, 1, chunk);
+    }
+
+    /**
+     * Runs chunk over [0, len) where each index stands for unit elements, chunks split only
+     * between indices.
+     */
+    public static void forEachChunk(int len, int unit, Chunk chunk) {
+        if (len == 0) {
+            return;
+        }
+        if ((long) len * unit < parallelThreshold) {
+            chunk.run(0, len);
+            return;
+        }
+
+        int step = chunkSize;
+        if (unit == 1) {
+            step = Math.max(SPECIES_LEN, step / SPECIES_LEN * SPECIES_LEN);
+        } else {
+            step = Math.max(1, step / unit);
+        }
+        ConcurrentUtil.loopFor(0, len, step, chunk::run);
+    }
+}
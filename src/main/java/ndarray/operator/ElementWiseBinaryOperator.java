@@ -1,13 +1,24 @@
 package ndarray.operator;
 
-import static ndarray.NDArrays.perform;
+import static ndarray.util.ShapeUtil.broadcastShapes;
+import static ndarray.util.Util.DOUBLE_SPECIES;
+import static ndarray.util.Util.DOUBLE_SPECIES_LEN;
+import static ndarray.util.Util.INT_SPECIES;
+import static ndarray.util.Util.assertOutShape;
 import static ndarray.util.Util.elementwiseOperable;
 
+import jdk.incubator.vector.DoubleVector;
 import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.IntVector;
 import jdk.incubator.vector.VectorOperators;
 import jdk.incubator.vector.VectorSpecies;
 import ndarray.NDArray;
 import ndarray.NDArrays;
+import ndarray.iterator.StridedLoop;
+import ndarray.storage.DoubleStorage;
+import ndarray.storage.IntStorage;
+import ndarray.storage.Storage;
+import ndarray.util.DType;
 
 public enum ElementWiseBinaryOperator {
     ADD(VectorOperators.ADD) {
@@ -60,35 +71,280 @@ public enum ElementWiseBinaryOperator {
         this.vectorOperator = vectorOperator;
     }
 
+    // a switch rather than lanewise(vectorOperator): the Vector API only compiles constant
+    // operators to SIMD instructions, and the switch on this is hoisted out of the loops
+    public FloatVector processVector(FloatVector a, FloatVector b) {
+        return switch (this) {
+            case ADD -> a.add(b);
+            case SUB -> a.sub(b);
+            case MUL -> a.mul(b);
+            case DIV -> a.div(b);
+            case MAX -> a.max(b);
+            case MIN -> a.min(b);
+        };
+    }
+
+    public double processDouble(double a, double b) {
+        return switch (this) {
+            case ADD -> a + b;
+            case SUB -> a - b;
+            case MUL -> a * b;
+            case DIV -> a / b;
+            case MAX -> Math.max(a, b);
+            case MIN -> Math.min(a, b);
+        };
+    }
+
+    public DoubleVector processVector(DoubleVector a, DoubleVector b) {
+        return switch (this) {
+            case ADD -> a.add(b);
+            case SUB -> a.sub(b);
+            case MUL -> a.mul(b);
+            case DIV -> a.div(b);
+            case MAX -> a.max(b);
+            case MIN -> a.min(b);
+        };
+    }
+
+    // wraps like Java's int arithmetic, a quotient truncates and throws on 0
+    public int processInt(int a, int b) {
+        return switch (this) {
+            case ADD -> a + b;
+            case SUB -> a - b;
+            case MUL -> a * b;
+            case DIV -> a / b;
+            case MAX -> Math.max(a, b);
+            case MIN -> Math.min(a, b);
+        };
+    }
+
+    public IntVector processVector(IntVector a, IntVector b) {
+        return switch (this) {
+            case ADD -> a.add(b);
+            case SUB -> a.sub(b);
+            case MUL -> a.mul(b);
+            case DIV -> a.div(b);
+            case MAX -> a.max(b);
+            case MIN -> a.min(b);
+        };
+    }
+
+    /** The promoted type of a and b, and float32 for the quotient of integers. */
+    public DType resultType(DType a, DType b) {
+        DType type = DType.promote(a, b);
+        return this == DIV ? type.toFloatingPoint() : type;
+    }
+
+    /**
+     * Like {@link #resultType(DType, DType)}, except that a scalar does not widen an array of the
+     * same kind, as in PyTorch: a float16 array times a float scalar stays float16.
+     */
+    public DType resultType(DType a, boolean aScalar, DType b, boolean bScalar) {
+        if (aScalar != bScalar && a.isFloatingPoint() == b.isFloatingPoint()) {
+            return resultType(aScalar ? b : a, aScalar ? b : a);
+        }
+        return resultType(a, b);
+    }
+
     public NDArray performBinaryOperator(NDArray a, NDArray b) {
-        if (elementwiseOperable(a, b)) {
-            return performElementwise(a, b);
+        DType type = resultType(a.getDType(), a.isScalar(), b.getDType(), b.isScalar());
+        if (elementwiseOperable(a, b) || (b.isScalar() && elementwiseOperable(a))) {
+            return performBinaryOperator(a, b, NDArrays.emptyLike(a, type));
+        }
+        if (a.isScalar() && elementwiseOperable(b)) {
+            return performBinaryOperator(a, b, NDArrays.emptyLike(b, type));
         }
 
-        return perform(a, b, this::processSingle);
+        int[] shape = broadcastShapes(a.getShape(), b.getShape());
+        return performBinaryOperator(a, b, NDArrays.empty(shape, type));
     }
 
-    private NDArray performElementwise(NDArray a, NDArray b) {
-        NDArray res = NDArrays.zerosLike(a);
+    /**
+     * Writes the result into out and returns it. out must have the broadcast shape of a and b, it
+     * may be a or b itself but must not overlap them otherwise. A float64 out is computed in
+     * double, an int32 one in int from integers and in double from floats, so it is exact.
+     */
+    public NDArray performBinaryOperator(NDArray a, NDArray b, NDArray out) {
+        if (out.getDType() == DType.FLOAT64) {
+            assertOutShape(out, broadcastShapes(a.getShape(), b.getShape()));
+            return StridedLoop.forEachRun(a, b, out, this::performDoubleRun);
+        }
+        if (out.getDType() == DType.INT32) {
+            assertOutShape(out, broadcastShapes(a.getShape(), b.getShape()));
+            // quotients in double, which go to a float out unless asked otherwise
+            boolean ints =
+                    this != DIV
+                            && !a.getDType().isFloatingPoint()
+                            && !b.getDType().isFloatingPoint();
+            return StridedLoop.forEachRun(
+                    a, b, out, ints ? this::performIntRun : this::performDoubleRun);
+        }
+        if (elementwiseOperable(a, b) && elementwiseOperable(a, out)) {
+            return performElementwise(a, b, out);
+        }
+
+        assertOutShape(out, broadcastShapes(a.getShape(), b.getShape()));
+        return StridedLoop.forEachRun(a, b, out, this::performRun);
+    }
 
-        float[] A = a.getData().array();
-        float[] B = b.getData().array();
-        float[] C = res.getData().array();
+    private NDArray performElementwise(NDArray a, NDArray b, NDArray out) {
+        Storage A = a.getData().storage();
+        Storage B = b.getData().storage();
+        Storage C = out.getData().storage();
 
         int aOffset = a.getData().offset();
         int bOffset = b.getData().offset();
+        int cOffset = out.getData().offset();
+
+        ElementWise.forEachChunk(
+                out.getSize(),
+                (from, to) ->
+                        performRun(
+                                to - from,
+                                A,
+                                aOffset + from,
+                                1,
+                                B,
+                                bOffset + from,
+                                1,
+                                C,
+                                cOffset + from,
+                                1));
+        return out;
+    }
+
+    // one run of the strided loop, vectorized when it is unit-stride in out: operands with unit
+    // stride are loaded, broadcast ones (stride 0) splatted and any others gathered
+    void performRun(
+            int len,
+            Storage A,
+            int a,
+            int aStride,
+            Storage B,
+            int b,
+            int bStride,
+            Storage C,
+            int c,
+            int cStride) {
+        int i = 0;
+        if (cStride == 1) {
+            int bound = SPECIES.loopBound(len);
+            if (aStride == 1 && bStride == 1) {
+                for (; i < bound; i += SPECIES_LEN) {
+                    C.store(processVector(A.load(a + i), B.load(b + i)), c + i);
+                }
+            } else if (aStride == 1 && bStride == 0) {
+                var vb = FloatVector.broadcast(SPECIES, B.get(b));
+                for (; i < bound; i += SPECIES_LEN) {
+                    C.store(processVector(A.load(a + i), vb), c + i);
+                }
+            } else if (aStride == 0 && bStride == 1) {
+                var va = FloatVector.broadcast(SPECIES, A.get(a));
+                for (; i < bound; i += SPECIES_LEN) {
+                    C.store(processVector(va, B.load(b + i)), c + i);
+                }
+            } else if (bound > 0) {
+                int[] aMap = StridedLoop.indexMap(aStride);
+                int[] bMap = StridedLoop.indexMap(bStride);
+                for (; i < bound; i += SPECIES_LEN) {
+                    var va = StridedLoop.load(A, a + i * aStride, aStride, aMap);
+                    var vb = StridedLoop.load(B, b + i * bStride, bStride, bMap);
+                    C.store(processVector(va, vb), c + i);
+                }
+            }
+        }
+
+        for (; i < len; i++) {
+            float va = A.get(a + i * aStride);
+            float vb = B.get(b + i * bStride);
+            C.set(c + i * cStride, processSingle(va, vb));
+        }
+    }
 
+    // performRun in double, vectorized when the operands are float64 with unit stride or
+    // broadcast
+    void performDoubleRun(
+            int len,
+            Storage A,
+            int a,
+            int aStride,
+            Storage B,
+            int b,
+            int bStride,
+            Storage C,
+            int c,
+            int cStride) {
         int i = 0;
-        for (; i < SPECIES.loopBound(C.length); i += SPECIES_LEN) {
-            var va = FloatVector.fromArray(SPECIES, A, i + aOffset);
-            var vb = FloatVector.fromArray(SPECIES, B, i + bOffset);
-            va.lanewise(vectorOperator, vb).intoArray(C, i);
+        if (C instanceof DoubleStorage out
+                && cStride == 1
+                && (aStride == 0 || A instanceof DoubleStorage && aStride == 1)
+                && (bStride == 0 || B instanceof DoubleStorage && bStride == 1)) {
+            double[] x = aStride == 0 ? null : ((DoubleStorage) A).array();
+            double[] y = bStride == 0 ? null : ((DoubleStorage) B).array();
+            var va = DoubleVector.broadcast(DOUBLE_SPECIES, A.getDouble(a));
+            var vb = DoubleVector.broadcast(DOUBLE_SPECIES, B.getDouble(b));
+            out.version().written();
+            for (int bound = DOUBLE_SPECIES.loopBound(len); i < bound; i += DOUBLE_SPECIES_LEN) {
+                if (x != null) {
+                    va = DoubleVector.fromArray(DOUBLE_SPECIES, x, a + i);
+                }
+                if (y != null) {
+                    vb = DoubleVector.fromArray(DOUBLE_SPECIES, y, b + i);
+                }
+                processVector(va, vb).intoArray(out.array(), c + i);
+            }
         }
 
-        for (; i < C.length; i++) {
-            C[i] = processSingle(A[i + aOffset], B[i + bOffset]);
+        for (; i < len; i++) {
+            double va = A.getDouble(a + i * aStride);
+            double vb = B.getDouble(b + i * bStride);
+            C.setDouble(c + i * cStride, processDouble(va, vb));
         }
+    }
+
+    // performRun in int, vectorized when out is int32 with unit stride and the operands have unit
+    // stride or are broadcast. Int32 operands are loaded as ints, the others are bytes and exact
+    // in the float lanes they load into
+    void performIntRun(
+            int len,
+            Storage A,
+            int a,
+            int aStride,
+            Storage B,
+            int b,
+            int bStride,
+            Storage C,
+            int c,
+            int cStride) {
+        int i = 0;
+        if (C instanceof IntStorage out
+                && cStride == 1
+                && (aStride == 0 || aStride == 1)
+                && (bStride == 0 || bStride == 1)) {
+            int[] x = A instanceof IntStorage ints ? ints.array() : null;
+            int[] y = B instanceof IntStorage ints ? ints.array() : null;
+            var va = IntVector.broadcast(INT_SPECIES, (int) A.getDouble(a));
+            var vb = IntVector.broadcast(INT_SPECIES, (int) B.getDouble(b));
+            out.version().written();
+            for (int bound = INT_SPECIES.loopBound(len); i < bound; i += INT_SPECIES.length()) {
+                if (aStride == 1) {
+                    va = x != null ? IntVector.fromArray(INT_SPECIES, x, a + i) : toInts(A, a + i);
+                }
+                if (bStride == 1) {
+                    vb = y != null ? IntVector.fromArray(INT_SPECIES, y, b + i) : toInts(B, b + i);
+                }
+                processVector(va, vb).intoArray(out.array(), c + i);
+            }
+        }
+
+        for (; i < len; i++) {
+            int va = (int) A.getDouble(a + i * aStride);
+            int vb = (int) B.getDouble(b + i * bStride);
+            C.setDouble(c + i * cStride, processInt(va, vb));
+        }
+    }
 
-        return res;
+    private static IntVector toInts(Storage s, int index) {
+        return (IntVector) s.load(index).convert(VectorOperators.F2I, 0);
     }
 }
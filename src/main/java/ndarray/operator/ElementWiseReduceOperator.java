@@ -1,16 +1,16 @@
 package ndarray.operator;
 
-import static ndarray.util.ShapeUtil.copyIndices;
-import static ndarray.util.ShapeUtil.reduceShape;
+import static ndarray.util.Util.INT_SPECIES;
 import static ndarray.util.Util.SPECIES;
 import static ndarray.util.Util.SPECIES_LEN;
 
 import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.IntVector;
 import jdk.incubator.vector.VectorOperators;
 import ndarray.NDArray;
-import ndarray.NDArrays;
-import ndarray.util.Flags;
-import ndarray.util.ShapeUtil;
+import ndarray.storage.IntStorage;
+import ndarray.storage.Storage;
+import ndarray.util.DType;
 
 public enum ElementWiseReduceOperator {
     SUM(VectorOperators.ADD) {
@@ -35,6 +35,66 @@ public enum ElementWiseReduceOperator {
         float getInit() {
             return Float.NEGATIVE_INFINITY;
         }
+    },
+
+    MIN(VectorOperators.MIN) {
+        @Override
+        float processSingle(float a, float b) {
+            return Math.min(a, b);
+        }
+
+        @Override
+        float getInit() {
+            return Float.POSITIVE_INFINITY;
+        }
+    },
+
+    PROD(VectorOperators.MUL) {
+        @Override
+        float processSingle(float a, float b) {
+            return a * b;
+        }
+
+        @Override
+        float getInit() {
+            return 1;
+        }
+    },
+
+    // the L1 norm
+    SUM_ABS(VectorOperators.ADD) {
+        @Override
+        float processSingle(float a, float b) {
+            return a + Math.abs(b);
+        }
+
+        @Override
+        float getInit() {
+            return 0;
+        }
+
+        @Override
+        ElementWiseReduceOperator combiner() {
+            return SUM;
+        }
+    },
+
+    // the square of the L2 norm
+    SUM_SQUARES(VectorOperators.ADD) {
+        @Override
+        float processSingle(float a, float b) {
+            return a + b * b;
+        }
+
+        @Override
+        float getInit() {
+            return 0;
+        }
+
+        @Override
+        ElementWiseReduceOperator combiner() {
+            return SUM;
+        }
     };
 
     public final VectorOperators.Associative vectorOperator;
@@ -43,62 +103,218 @@ public enum ElementWiseReduceOperator {
 
     abstract float getInit();
 
+    // combines two results, processSingle maps its second argument for SUM_ABS and SUM_SQUARES
+    ElementWiseReduceOperator combiner() {
+        return this;
+    }
+
+    double processDouble(double a, double b) {
+        return switch (this) {
+            case SUM -> a + b;
+            case MAX -> Math.max(a, b);
+            case MIN -> Math.min(a, b);
+            case PROD -> a * b;
+            case SUM_ABS -> a + Math.abs(b);
+            case SUM_SQUARES -> a + b * b;
+        };
+    }
+
+    // wraps like Java's int arithmetic
+    int processInt(int a, int b) {
+        return switch (this) {
+            case SUM -> a + b;
+            case MAX -> Math.max(a, b);
+            case MIN -> Math.min(a, b);
+            case PROD -> a * b;
+            case SUM_ABS -> a + Math.abs(b);
+            case SUM_SQUARES -> a + b * b;
+        };
+    }
+
+    /** The type of the result over x: int32 for sums of integers, floats for norms. */
+    public DType resultType(DType x) {
+        return switch (this) {
+            case SUM, PROD -> x.toAccumulator();
+            case MAX, MIN -> x;
+            case SUM_ABS, SUM_SQUARES -> x.toFloatingPoint();
+        };
+    }
+
+    // the vectors of a run, len a multiple of SPECIES_LEN, reduced to one value. The loops below
+    // serve all operators with a switch in them, like those of the unary operators
+    float reduceVectors(Storage A, int a, int aStride, int[] map, int len, boolean compensated) {
+        if (this == SUM && compensated) {
+            return Reduction.compensatedSum(A, a, aStride, map, len);
+        }
+        var acc = FloatVector.broadcast(SPECIES, getInit());
+        for (int i = 0; i < len; i += SPECIES_LEN) {
+            var v = load(A, a, aStride, map, i);
+            acc =
+                    switch (this) {
+                        case SUM -> acc.add(v);
+                        case MAX -> acc.max(v);
+                        case MIN -> acc.min(v);
+                        case PROD -> acc.mul(v);
+                        case SUM_ABS -> acc.add(v.abs());
+                        case SUM_SQUARES -> acc.add(v.mul(v));
+                    };
+        }
+        return switch (this) {
+            case SUM, SUM_ABS, SUM_SQUARES -> acc.reduceLanes(VectorOperators.ADD);
+            case MAX -> acc.reduceLanes(VectorOperators.MAX);
+            case MIN -> acc.reduceLanes(VectorOperators.MIN);
+            case PROD -> acc.reduceLanes(VectorOperators.MUL);
+        };
+    }
+
+    // the vectors of a run combined lane-wise into the unit-stride run at c
+    void accumulateVectors(Storage A, int a, int aStride, int[] map, Storage C, int c, int len) {
+        for (int i = 0; i < len; i += SPECIES_LEN) {
+            var acc = C.load(c + i);
+            var v = load(A, a, aStride, map, i);
+            var r =
+                    switch (this) {
+                        case SUM -> acc.add(v);
+                        case MAX -> acc.max(v);
+                        case MIN -> acc.min(v);
+                        case PROD -> acc.mul(v);
+                        case SUM_ABS -> acc.add(v.abs());
+                        case SUM_SQUARES -> acc.add(v.mul(v));
+                    };
+            C.store(r, c + i);
+        }
+    }
+
+    private static FloatVector load(Storage A, int a, int aStride, int[] map, int i) {
+        return aStride == 1 ? A.load(a + i) : A.load(a + i * aStride, map);
+    }
+
     ElementWiseReduceOperator(VectorOperators.Associative op) {
         this.vectorOperator = op;
     }
 
     public NDArray reduceAlongDimension(NDArray ndArray, int dim, boolean keepDims) {
-        int[] shape = ndArray.getShape();
-        int len = shape.length;
-        dim = dim < 0 ? len + dim : dim;
+        return reduce(ndArray, new int[] {dim}, keepDims);
+    }
 
-        if (dim < 0 || dim >= len) {
-            throw new IllegalArgumentException(
-                    "dim %d is out of bounds for array of dimension %d".formatted(dim, len));
+    /** Reduces ndArray over all its axes to a scalar. */
+    public NDArray reduce(NDArray ndArray) {
+        int[] dims = new int[ndArray.getDim()];
+        for (int i = 0; i < dims.length; i++) {
+            dims[i] = i;
         }
+        return reduce(ndArray, dims, false);
+    }
 
-        int[] newShape = reduceShape(shape, dim, keepDims);
-
-        Flags.Contiguous contiguous = ndArray.getContiguous();
-        if ((dim == len - 1 && contiguous == Flags.Contiguous.C)
-                || (dim == 0 && contiguous == Flags.Contiguous.F)) {
-            int axisLen = shape[dim];
-            float[] resData = new float[ShapeUtil.getSize(newShape)];
+    /**
+     * Reduces ndArray over the axes in dims, negative ones counted from the end, in any layout.
+     * Large reductions run on the pool, the result only depends on the layout and the chunk size,
+     * not on the threads, see {@link Reduction}.
+     */
+    public NDArray reduce(NDArray ndArray, int[] dims, boolean keepDims) {
+        return Reduction.reduce(this, ndArray, dims, keepDims);
+    }
 
-            float[] data = ndArray.getData().array();
-            int offset = ndArray.getData().offset();
+    /** Reduces len elements from offset, a sum compensated as set for this thread. */
+    public float elementWiseReduce(Storage A, int offset, int len) {
+        return reduceRun(A, offset, 1, null, len, Reduction.isCompensatedSum());
+    }
 
-            for (int i = 0; i < resData.length; i++) {
-                resData[i] = elementWiseReduce(data, offset + i * axisLen, axisLen);
-            }
-            return NDArrays.of(newShape, resData, contiguous);
+    // one run with the given stride reduced to one value, the vectors and then the scalar tail.
+    // Whether a sum is compensated is read on the thread that started it and handed down
+    float reduceRun(Storage A, int a, int aStride, int[] map, int len, boolean compensated) {
+        int bound = SPECIES.loopBound(len);
+        float res = bound > 0 ? reduceVectors(A, a, aStride, map, bound, compensated) : getInit();
+        for (int i = bound; i < len; i++) {
+            res = processSingle(res, A.get(a + i * aStride));
         }
+        return res;
+    }
 
-        NDArray res = NDArrays.fill(newShape, getInit());
-        int[] resIndices = new int[res.getShape().length];
-        for (int[] indices : ndArray.indices()) {
-            copyIndices(indices, resIndices, dim, keepDims);
-
-            float f = ndArray.get(indices);
-            float curt = res.get(resIndices);
-            res.set(resIndices, processSingle(curt, f));
+    // one run combined element by element into the run at c, vectorized when that is unit-stride
+    void accumulateRun(
+            Storage A, int a, int aStride, int[] map, Storage C, int c, int cStride, int len) {
+        int i = 0;
+        if (cStride == 1) {
+            i = SPECIES.loopBound(len);
+            accumulateVectors(A, a, aStride, map, C, c, i);
+        }
+        for (; i < len; i++) {
+            int ci = c + i * cStride;
+            C.set(ci, processSingle(C.get(ci), A.get(a + i * aStride)));
         }
+    }
 
+    // reduceRun in int for the integer results, int32 loaded as ints and the bytes of the other
+    // integers through float lanes, which hold them exactly
+    int reduceIntRun(Storage A, int a, int aStride, int[] map, int len) {
+        int[] ints = A instanceof IntStorage s ? s.array() : null;
+        int bound = INT_SPECIES.loopBound(len);
+        int res = (int) getInit();
+        if (bound > 0) {
+            var acc = IntVector.broadcast(INT_SPECIES, res);
+            for (int i = 0; i < bound; i += INT_SPECIES.length()) {
+                var v = loadInts(A, ints, a, aStride, map, i);
+                acc =
+                        switch (this) {
+                            case SUM -> acc.add(v);
+                            case MAX -> acc.max(v);
+                            case MIN -> acc.min(v);
+                            case PROD -> acc.mul(v);
+                            case SUM_ABS -> acc.add(v.abs());
+                            case SUM_SQUARES -> acc.add(v.mul(v));
+                        };
+            }
+            res =
+                    switch (this) {
+                        case SUM, SUM_ABS, SUM_SQUARES -> acc.reduceLanes(VectorOperators.ADD);
+                        case MAX -> acc.reduceLanes(VectorOperators.MAX);
+                        case MIN -> acc.reduceLanes(VectorOperators.MIN);
+                        case PROD -> acc.reduceLanes(VectorOperators.MUL);
+                    };
+        }
+        for (int i = bound; i < len; i++) {
+            res = processInt(res, (int) A.getDouble(a + i * aStride));
+        }
         return res;
     }
 
-    public float elementWiseReduce(float[] A, int offset, int len) {
+    // accumulateRun in int, vectorized when C is int32 with unit stride
+    void accumulateIntRun(
+            Storage A, int a, int aStride, int[] map, Storage C, int c, int cStride, int len) {
         int i = 0;
-        FloatVector temp = FloatVector.broadcast(SPECIES, getInit());
-        for (; i < SPECIES.loopBound(len); i += SPECIES_LEN) {
-            var v = FloatVector.fromArray(SPECIES, A, offset + i);
-            temp = v.lanewise(vectorOperator, temp);
+        if (C instanceof IntStorage out && cStride == 1) {
+            int[] ints = A instanceof IntStorage s ? s.array() : null;
+            int[] res = out.array();
+            out.version().written();
+            for (int bound = INT_SPECIES.loopBound(len); i < bound; i += INT_SPECIES.length()) {
+                var acc = IntVector.fromArray(INT_SPECIES, res, c + i);
+                var v = loadInts(A, ints, a, aStride, map, i);
+                var r =
+                        switch (this) {
+                            case SUM -> acc.add(v);
+                            case MAX -> acc.max(v);
+                            case MIN -> acc.min(v);
+                            case PROD -> acc.mul(v);
+                            case SUM_ABS -> acc.add(v.abs());
+                            case SUM_SQUARES -> acc.add(v.mul(v));
+                        };
+                r.intoArray(res, c + i);
+            }
         }
-
-        float res = temp.reduceLanes(vectorOperator);
         for (; i < len; i++) {
-            res = processSingle(A[offset + i], res);
+            int ci = c + i * cStride;
+            int x = (int) A.getDouble(a + i * aStride);
+            C.setDouble(ci, processInt((int) C.getDouble(ci), x));
         }
-        return res;
+    }
+
+    private static IntVector loadInts(Storage A, int[] ints, int a, int aStride, int[] map, int i) {
+        if (ints == null) {
+            return (IntVector) load(A, a, aStride, map, i).convert(VectorOperators.F2I, 0);
+        }
+        return aStride == 1
+                ? IntVector.fromArray(INT_SPECIES, ints, a + i)
+                : IntVector.fromArray(INT_SPECIES, ints, a + i * aStride, map, 0);
     }
 }
@@ -2,55 +2,244 @@ package ndarray.operator;
 
 import static ndarray.util.Util.SPECIES;
 import static ndarray.util.Util.SPECIES_LEN;
+import static ndarray.util.Util.assertOutShape;
 import static ndarray.util.Util.elementwiseOperable;
 
 import jdk.incubator.vector.FloatVector;
 import jdk.incubator.vector.VectorOperators;
 import ndarray.NDArray;
 import ndarray.NDArrays;
+import ndarray.iterator.StridedLoop;
+import ndarray.storage.Storage;
+import ndarray.util.DType;
 
 public enum ElementWiseUnaryOperator {
     LOG(VectorOperators.LOG) {
         @Override
-        float processSingle(float f) {
+        public float processSingle(float f) {
             return (float) Math.log(f);
         }
     },
     EXP(VectorOperators.EXP) {
         @Override
-        float processSingle(float f) {
+        public float processSingle(float f) {
             return (float) Math.exp(f);
         }
     },
+    TANH(VectorOperators.TANH) {
+        @Override
+        public float processSingle(float f) {
+            return (float) Math.tanh(f);
+        }
+    },
+    SIGMOID {
+        @Override
+        public float processSingle(float f) {
+            return (float) sigmoid(f);
+        }
+    },
+    RELU {
+        @Override
+        public float processSingle(float f) {
+            return Math.max(f, 0);
+        }
+    },
+    // tanh approximation, https://arxiv.org/abs/1606.08415, as x * sigmoid(2 * inner) since
+    // 0.5 * (1 + tanh(inner)) cancels to nothing for large negative x
+    GELU {
+        @Override
+        public float processSingle(float f) {
+            float inner = SQRT_2_OVER_PI * (f + COEFFICIENT * f * f * f);
+            return f * (float) sigmoid(2 * inner);
+        }
+    },
+    SQRT(VectorOperators.SQRT) {
+        @Override
+        public float processSingle(float f) {
+            return (float) Math.sqrt(f);
+        }
+    },
+    RSQRT {
+        @Override
+        public float processSingle(float f) {
+            return (float) (1 / Math.sqrt(f));
+        }
+    },
+    ABS(VectorOperators.ABS) {
+        @Override
+        public float processSingle(float f) {
+            return Math.abs(f);
+        }
+    },
+    NEG(VectorOperators.NEG) {
+        @Override
+        public float processSingle(float f) {
+            return -f;
+        }
+    },
+    SQUARE {
+        @Override
+        public float processSingle(float f) {
+            return f * f;
+        }
+    },
     ;
 
+    private static final float SQRT_2_OVER_PI = 0.7978846f;
+    private static final float COEFFICIENT = 0.044715f;
+
     public final VectorOperators.Unary vectorOperator;
 
-    abstract float processSingle(float f);
+    public abstract float processSingle(float f);
+
+    // a switch rather than lanewise(vectorOperator), like the binary operators: the Vector API only
+    // compiles constant operators to SIMD instructions
+    public FloatVector processVector(FloatVector v) {
+        return switch (this) {
+            case LOG -> v.lanewise(VectorOperators.LOG);
+            case EXP -> v.lanewise(VectorOperators.EXP);
+            case TANH -> v.lanewise(VectorOperators.TANH);
+            case SIGMOID -> sigmoid(v);
+            case RELU -> v.max(0);
+            case GELU -> gelu(v);
+            case SQRT -> v.sqrt();
+            case RSQRT -> FloatVector.broadcast(SPECIES, 1).div(v.sqrt());
+            case ABS -> v.abs();
+            case NEG -> v.neg();
+            case SQUARE -> v.mul(v);
+        };
+    }
+
+    // the vectors of a run, len a multiple of SPECIES_LEN, one loop for all operators with the
+    // switch of processVector in it. A call to processVector would not do: once it is compiled on
+    // its own it is too much code for C2 to inline, and every vector passed to it gets boxed
+    void performVectors(Storage A, int a, int aStride, int[] map, Storage C, int c, int len) {
+        for (int i = 0; i < len; i += SPECIES_LEN) {
+            var v = aStride == 1 ? A.load(a + i) : A.load(a + i * aStride, map);
+            var r =
+                    switch (this) {
+                        case LOG -> v.lanewise(VectorOperators.LOG);
+                        case EXP -> v.lanewise(VectorOperators.EXP);
+                        case TANH -> v.lanewise(VectorOperators.TANH);
+                        case SIGMOID -> sigmoid(v);
+                        case RELU -> v.max(0);
+                        case GELU -> gelu(v);
+                        case SQRT -> v.sqrt();
+                        case RSQRT -> FloatVector.broadcast(SPECIES, 1).div(v.sqrt());
+                        case ABS -> v.abs();
+                        case NEG -> v.neg();
+                        case SQUARE -> v.mul(v);
+                    };
+            C.store(r, c + i);
+        }
+    }
+
+    public double processDouble(double d) {
+        return switch (this) {
+            case LOG -> Math.log(d);
+            case EXP -> Math.exp(d);
+            case TANH -> Math.tanh(d);
+            case SIGMOID -> sigmoid(d);
+            case RELU -> Math.max(d, 0);
+            case GELU -> d * sigmoid(2 * Math.sqrt(2 / Math.PI) * (d + 0.044715 * d * d * d));
+            case SQRT -> Math.sqrt(d);
+            case RSQRT -> 1 / Math.sqrt(d);
+            case ABS -> Math.abs(d);
+            case NEG -> -d;
+            case SQUARE -> d * d;
+        };
+    }
+
+    /** The type of x for the operators that keep integers integers, else float32 for them. */
+    public DType resultType(DType x) {
+        return switch (this) {
+            case RELU, ABS, NEG, SQUARE -> x;
+            default -> x.toFloatingPoint();
+        };
+    }
+
+    // 1 / (1 + e^-x) for x >= 0 and e^x / (1 + e^x) below, e^-|x| neither overflows nor loses the
+    // tiny results of large negative x
+    private static double sigmoid(double x) {
+        double e = Math.exp(-Math.abs(x));
+        return x >= 0 ? 1 / (1 + e) : e / (1 + e);
+    }
+
+    private static FloatVector sigmoid(FloatVector v) {
+        var e = v.abs().neg().lanewise(VectorOperators.EXP);
+        var s = FloatVector.broadcast(SPECIES, 1).div(e.add(1));
+        return s.blend(e.mul(s), v.lt(0));
+    }
+
+    private static FloatVector gelu(FloatVector v) {
+        var inner = v.mul(v).mul(v).mul(COEFFICIENT).add(v).mul(SQRT_2_OVER_PI);
+        return sigmoid(inner.add(inner)).mul(v);
+    }
+
+    ElementWiseUnaryOperator() {
+        this(null);
+    }
 
     ElementWiseUnaryOperator(VectorOperators.Unary op) {
         this.vectorOperator = op;
     }
 
     public NDArray performElementwise(NDArray ndArray) {
-        assert elementwiseOperable(ndArray);
-        NDArray res = NDArrays.zerosLike(ndArray);
-        float[] A = ndArray.getData().array();
-        float[] B = res.getData().array();
+        DType type = resultType(ndArray.getDType());
+        NDArray out =
+                elementwiseOperable(ndArray)
+                        ? NDArrays.emptyLike(ndArray, type)
+                        : NDArrays.empty(ndArray.getShape(), type);
+        return performElementwise(ndArray, out);
+    }
+
+    /**
+     * Writes the result into out and returns it. out must have the shape of ndArray, it may be
+     * ndArray itself but must not overlap it otherwise. A float64 or int32 out is computed in
+     * double, which holds every int32 exactly.
+     */
+    public NDArray performElementwise(NDArray ndArray, NDArray out) {
+        assertOutShape(out, ndArray.getShape());
+        if (out.getDType() == DType.FLOAT64 || out.getDType() == DType.INT32) {
+            return StridedLoop.forEachRun(
+                    ndArray,
+                    out,
+                    (len, A, a, aStride, C, c, cStride) -> {
+                        for (int i = 0; i < len; i++) {
+                            double x = A.getDouble(a + i * aStride);
+                            C.setDouble(c + i * cStride, processDouble(x));
+                        }
+                    });
+        }
+        if (!elementwiseOperable(ndArray, out)) {
+            return StridedLoop.forEachRun(ndArray, out, this::performRun);
+        }
+
+        Storage A = ndArray.getData().storage();
+        Storage C = out.getData().storage();
 
         int offset = ndArray.getData().offset();
+        int outOffset = out.getData().offset();
 
-        int len = A.length;
+        ElementWise.forEachChunk(
+                ndArray.getSize(),
+                (from, to) -> performRun(to - from, A, offset + from, 1, C, outOffset + from, 1));
+        return out;
+    }
+
+    /**
+     * One run of the strided loop, len elements of A from a with stride aStride written to C from c
+     * with stride cStride, vectorized when it is unit-stride in C.
+     */
+    public void performRun(int len, Storage A, int a, int aStride, Storage C, int c, int cStride) {
         int i = 0;
-        for (; i < SPECIES.loopBound(len); i += SPECIES_LEN) {
-            var va = FloatVector.fromArray(SPECIES, A, offset + i);
-            va.lanewise(vectorOperator).intoArray(B, i);
+        if (cStride == 1) {
+            i = SPECIES.loopBound(len);
+            performVectors(A, a, aStride, StridedLoop.indexMap(aStride), C, c, i);
         }
 
         for (; i < len; i++) {
-            B[i] = processSingle(A[offset + i]);
+            C.set(c + i * cStride, processSingle(A.get(a + i * aStride)));
         }
-
-        return res;
     }
 }
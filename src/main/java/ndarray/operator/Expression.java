@@ -0,0 +1,610 @@
+package ndarray.operator;
+
+import static ndarray.util.ShapeUtil.broadcastShapes;
+import static ndarray.util.ShapeUtil.reduceShape;
+import static ndarray.util.Util.assertOutShape;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import ndarray.NDArray;
+import ndarray.NDArrays;
+import ndarray.iterator.StridedLoop;
+import ndarray.storage.HeapStorage;
+import ndarray.storage.Storage;
+import ndarray.util.DType;
+import ndarray.util.ShapeUtil;
+
+/**
+ * A chain of element-wise operations evaluated lazily, started with {@link NDArray#lazy()}. The
+ * operations only build a tree over their operands, broadcasting like the eager ones, and the tree
+ * is computed in one pass once {@link #materialize()}, a reduction or a matmul needs the values.
+ *
+ * <p>The pass walks the output in blocks of {@link #BLOCK} elements and runs every operation of the
+ * tree over a block into a scratch buffer that stays in L1, so the operands are read from memory
+ * once and only the result is written back, where the eager operations write and read back every
+ * intermediate array. A reduction along the last axis reduces the blocks as they are computed and
+ * never writes the values at all:
+ *
+ * <pre>{@code
+ * NDArray logsumexp = x.lazy().sub(c.reshape(-1, 1)).exp().sum(1).log().add(c);
+ * }</pre>
+ *
+ * <p>The pass computes in float32 and gives the type the eager operations would. A tree of float64
+ * or int32 type, or a reduction to one, is run through the eager operations, which compute it
+ * exactly.
+ */
+public final class Expression {
+
+    // elements per block, the scratch buffers of a tree of a few operations stay in L1
+    static final int BLOCK = 1024;
+
+    // shorter runs go through the eager operators
+    static final int MIN_RUN = 64;
+
+    private sealed interface Node permits Leaf, Unary, Binary {}
+
+    private record Leaf(NDArray a) implements Node {}
+
+    private record Unary(ElementWiseUnaryOperator op, Node x) implements Node {}
+
+    private record Binary(ElementWiseBinaryOperator op, Node a, Node b) implements Node {}
+
+    // the operations in evaluation order, operands are numbered leaves first and then by step
+    private sealed interface Step permits UnaryStep, BinaryStep {}
+
+    private record UnaryStep(ElementWiseUnaryOperator op, int x) implements Step {}
+
+    private record BinaryStep(ElementWiseBinaryOperator op, int a, int b) implements Step {}
+
+    private final Node node;
+    private final int[] shape;
+
+    private Expression(Node node, int[] shape) {
+        this.node = node;
+        this.shape = shape;
+    }
+
+    public static Expression of(NDArray a) {
+        return new Expression(new Leaf(a), a.getShape());
+    }
+
+    public int[] getShape() {
+        return shape.clone();
+    }
+
+    public Expression add(Expression other) {
+        return binary(ElementWiseBinaryOperator.ADD, other);
+    }
+
+    public Expression add(NDArray other) {
+        return add(of(other));
+    }
+
+    public Expression add(float other) {
+        return add(NDArrays.ofScalar(other));
+    }
+
+    public Expression sub(Expression other) {
+        return binary(ElementWiseBinaryOperator.SUB, other);
+    }
+
+    public Expression sub(NDArray other) {
+        return sub(of(other));
+    }
+
+    public Expression sub(float other) {
+        return sub(NDArrays.ofScalar(other));
+    }
+
+    public Expression mul(Expression other) {
+        return binary(ElementWiseBinaryOperator.MUL, other);
+    }
+
+    public Expression mul(NDArray other) {
+        return mul(of(other));
+    }
+
+    public Expression mul(float other) {
+        return mul(NDArrays.ofScalar(other));
+    }
+
+    public Expression div(Expression other) {
+        return binary(ElementWiseBinaryOperator.DIV, other);
+    }
+
+    public Expression div(NDArray other) {
+        return div(of(other));
+    }
+
+    public Expression div(float other) {
+        return div(NDArrays.ofScalar(other));
+    }
+
+    public Expression maximum(Expression other) {
+        return binary(ElementWiseBinaryOperator.MAX, other);
+    }
+
+    public Expression maximum(NDArray other) {
+        return maximum(of(other));
+    }
+
+    public Expression maximum(float other) {
+        return maximum(NDArrays.ofScalar(other));
+    }
+
+    public Expression minimum(Expression other) {
+        return binary(ElementWiseBinaryOperator.MIN, other);
+    }
+
+    public Expression minimum(NDArray other) {
+        return minimum(of(other));
+    }
+
+    public Expression minimum(float other) {
+        return minimum(NDArrays.ofScalar(other));
+    }
+
+    public Expression log() {
+        return unary(ElementWiseUnaryOperator.LOG);
+    }
+
+    public Expression exp() {
+        return unary(ElementWiseUnaryOperator.EXP);
+    }
+
+    public Expression tanh() {
+        return unary(ElementWiseUnaryOperator.TANH);
+    }
+
+    public Expression sigmoid() {
+        return unary(ElementWiseUnaryOperator.SIGMOID);
+    }
+
+    public Expression gelu() {
+        return unary(ElementWiseUnaryOperator.GELU);
+    }
+
+    public Expression sqrt() {
+        return unary(ElementWiseUnaryOperator.SQRT);
+    }
+
+    public Expression rsqrt() {
+        return unary(ElementWiseUnaryOperator.RSQRT);
+    }
+
+    public Expression abs() {
+        return unary(ElementWiseUnaryOperator.ABS);
+    }
+
+    public Expression neg() {
+        return unary(ElementWiseUnaryOperator.NEG);
+    }
+
+    public Expression square() {
+        return unary(ElementWiseUnaryOperator.SQUARE);
+    }
+
+    private Expression unary(ElementWiseUnaryOperator op) {
+        return new Expression(new Unary(op, node), shape);
+    }
+
+    private Expression binary(ElementWiseBinaryOperator op, Expression other) {
+        return new Expression(
+                new Binary(op, node, other.node), broadcastShapes(shape, other.shape));
+    }
+
+    /** The values in a new C-contiguous array, or the array itself for a bare leaf. */
+    public NDArray materialize() {
+        if (node instanceof Leaf leaf) {
+            return leaf.a;
+        }
+        DType type = type(node);
+        if (isWide(type)) {
+            return evaluateEagerly(node);
+        }
+        return materialize(NDArrays.empty(shape, type));
+    }
+
+    public DType getDType() {
+        return type(node);
+    }
+
+    /**
+     * Writes the values into out and returns it. out must have the shape of this expression, it may
+     * be one of the operands but must not overlap them otherwise.
+     */
+    public NDArray materialize(NDArray out) {
+        assertOutShape(out, shape);
+        if (node instanceof Leaf leaf) {
+            return NDArrays.copy(leaf.a, out);
+        }
+        if (isWide(type(node))) {
+            return NDArrays.copy(evaluateEagerly(node), out);
+        }
+        return evaluate(out, null);
+    }
+
+    public NDArray matmul(NDArray other) {
+        return materialize().matmul(other);
+    }
+
+    public NDArray sum() {
+        return reduce(ElementWiseReduceOperator.SUM);
+    }
+
+    public NDArray sum(int dim) {
+        return reduce(ElementWiseReduceOperator.SUM, dim, false);
+    }
+
+    public NDArray sum(int dim, boolean keepDims) {
+        return reduce(ElementWiseReduceOperator.SUM, dim, keepDims);
+    }
+
+    public NDArray max() {
+        return reduce(ElementWiseReduceOperator.MAX);
+    }
+
+    public NDArray max(int dim) {
+        return reduce(ElementWiseReduceOperator.MAX, dim, false);
+    }
+
+    public NDArray max(int dim, boolean keepDims) {
+        return reduce(ElementWiseReduceOperator.MAX, dim, keepDims);
+    }
+
+    // over all the elements: along the last axis fused, then over what is left
+    private NDArray reduce(ElementWiseReduceOperator op) {
+        if (shape.length == 0) {
+            return materialize();
+        }
+        if (isWide(type(node)) || isWide(op.resultType(type(node)))) {
+            return op.reduce(materialize());
+        }
+        NDArray rows = reduceRows(op, -1, false);
+        float res =
+                op.elementWiseReduce(
+                        rows.getData().storage(), rows.getData().offset(), rows.getSize());
+        return NDArrays.fill(new int[0], res, op.resultType(type(node)));
+    }
+
+    private NDArray reduce(ElementWiseReduceOperator op, int dim, boolean keepDims) {
+        NDArray res = reduceRows(op, dim, keepDims);
+        DType type = op.resultType(type(node));
+        return res.getDType() == type ? res : res.astype(type);
+    }
+
+    // the blocks of rows longer than a block are added up in the result, which is float32 for
+    // 16-bit floats so they are rounded once
+    private NDArray reduceRows(ElementWiseReduceOperator op, int dim, boolean keepDims) {
+        int len = shape.length;
+        int axis = dim < 0 ? len + dim : dim;
+        DType type = type(node);
+        DType resultType = op.resultType(type);
+        if (len == 0
+                || axis != len - 1
+                || node instanceof Leaf
+                || isWide(type)
+                || isWide(resultType)) {
+            return op.reduceAlongDimension(materialize(), dim, keepDims);
+        }
+
+        NDArray res =
+                NDArrays.empty(
+                        reduceShape(shape, axis, keepDims),
+                        resultType.byteSize() == 2 ? DType.FLOAT32 : resultType);
+        if (shape[axis] == 1) {
+            // nothing to reduce over
+            materialize(res.reshape(shape));
+        } else {
+            evaluate(res, op);
+        }
+        return res;
+    }
+
+    /**
+     * Computes the tree into out, or reduces it along the last axis into out when op is not null,
+     * with one element of out per row then.
+     */
+    private NDArray evaluate(NDArray out, ElementWiseReduceOperator op) {
+        if (ShapeUtil.getSize(shape) == 0) {
+            return out;
+        }
+
+        List<NDArray> leaves = new ArrayList<>();
+        List<Step> program = new ArrayList<>();
+        compile(node, leaves, program);
+
+        // the leaves and then out, seen through strides over the axes of shape
+        int n = leaves.size() + 1;
+        Storage[] storages = new Storage[n];
+        int[] offsets = new int[n];
+        int[][] strides = new int[n][];
+        for (int k = 0; k < n; k++) {
+            NDArray a = k < n - 1 ? leaves.get(k) : out;
+            storages[k] = a.getData().storage();
+            offsets[k] = a.getData().offset();
+            strides[k] = k < n - 1 ? StridedLoop.broadcastStrides(a, shape) : a.getStrides();
+        }
+
+        // a reduction writes one element per row and is not stepped through with the runs, the
+        // rows are consecutive in its C-contiguous out
+        int arrays = op == null ? n : n - 1;
+
+        // axes of length 1 are dropped and adjacent axes that continue each other are merged, the
+        // axes keep their order so the runs go through the elements in C order
+        int dims = 0;
+        int[] lens = new int[Math.max(shape.length, 1)];
+        int[][] steps = new int[n][lens.length];
+        for (int axis = 0; axis < shape.length; axis++) {
+            if (shape[axis] == 1) {
+                continue;
+            }
+            boolean merge = dims > 0;
+            for (int k = 0; k < arrays && merge; k++) {
+                merge = steps[k][dims - 1] == strides[k][axis] * shape[axis];
+            }
+            if (merge) {
+                lens[dims - 1] *= shape[axis];
+            } else {
+                lens[dims++] = shape[axis];
+            }
+            for (int k = 0; k < arrays; k++) {
+                steps[k][dims - 1] = strides[k][axis];
+            }
+        }
+        if (dims == 0) {
+            lens[0] = 1;
+            dims = 1;
+        }
+
+        int runLen = lens[dims - 1];
+        if (runLen < MIN_RUN) {
+            // too short for the blocks to pay for themselves, one operation after another
+            if (op == null) {
+                return eager(node, out);
+            }
+            NDArray res = op.reduceAlongDimension(eager(node, null), -1, false);
+            return NDArrays.copy(res.reshape(out.getShape()), out);
+        }
+
+        int rowLen = shape[shape.length - 1];
+        var loop =
+                new Loop(
+                        storages,
+                        offsets,
+                        Arrays.copyOf(lens, dims),
+                        steps,
+                        program.toArray(Step[]::new),
+                        op,
+                        op == ElementWiseReduceOperator.SUM && Reduction.isCompensatedSum(),
+                        rowLen);
+        ElementWise.forEachChunk(ShapeUtil.getSize(shape) / runLen, runLen, loop::runs);
+        return out;
+    }
+
+    // types a float does not hold exactly
+    private static boolean isWide(DType type) {
+        return type == DType.FLOAT64 || type == DType.INT32;
+    }
+
+    // evaluates node with the eager operators, into out if it is not null
+    private static NDArray eager(Node node, NDArray out) {
+        return switch (node) {
+            case Leaf leaf -> leaf.a;
+            case Unary unary -> {
+                NDArray x = eager(unary.x, null);
+                yield out == null
+                        ? unary.op.performElementwise(x)
+                        : unary.op.performElementwise(x, out);
+            }
+            case Binary binary -> {
+                NDArray a = eager(binary.a, null);
+                NDArray b = eager(binary.b, null);
+                yield out == null
+                        ? binary.op.performBinaryOperator(a, b)
+                        : binary.op.performBinaryOperator(a, b, out);
+            }
+        };
+    }
+
+    // the type the eager operations would give
+    private static DType type(Node node) {
+        return switch (node) {
+            case Leaf leaf -> leaf.a.getDType();
+            case Unary unary -> unary.op.resultType(type(unary.x));
+            case Binary binary -> binary.op.resultType(
+                    type(binary.a), isScalar(binary.a), type(binary.b), isScalar(binary.b));
+        };
+    }
+
+    private static boolean isScalar(Node node) {
+        return switch (node) {
+            case Leaf leaf -> leaf.a.isScalar();
+            case Unary unary -> isScalar(unary.x);
+            case Binary binary -> isScalar(binary.a) && isScalar(binary.b);
+        };
+    }
+
+    private static NDArray evaluateEagerly(Node node) {
+        return switch (node) {
+            case Leaf leaf -> leaf.a;
+            case Unary unary -> unary.op.performElementwise(evaluateEagerly(unary.x));
+            case Binary binary -> binary.op.performBinaryOperator(
+                    evaluateEagerly(binary.a), evaluateEagerly(binary.b));
+        };
+    }
+
+    // numbers the leaves and appends the operations below node, returns the operand of node
+    private static int compile(Node node, List<NDArray> leaves, List<Step> program) {
+        return switch (node) {
+            case Leaf leaf -> {
+                leaves.add(leaf.a);
+                yield -leaves.size();
+            }
+            case Unary unary -> {
+                int x = compile(unary.x, leaves, program);
+                program.add(new UnaryStep(unary.op, x));
+                yield program.size() - 1;
+            }
+            case Binary binary -> {
+                int a = compile(binary.a, leaves, program);
+                int b = compile(binary.b, leaves, program);
+                program.add(new BinaryStep(binary.op, a, b));
+                yield program.size() - 1;
+            }
+        };
+    }
+
+    private record Loop(
+            Storage[] storages,
+            int[] offsets,
+            int[] lens,
+            int[][] steps,
+            Step[] program,
+            ElementWiseReduceOperator op,
+            boolean compensated,
+            int rowLen) {
+
+        // the runs from inclusive to exclusive, counting over the outer axes
+        void runs(int from, int to) {
+            int n = storages.length;
+            int inner = lens.length - 1;
+
+            int[] pos = offsets.clone();
+            int[] counter = new int[lens.length];
+            for (int d = inner - 1, r = from; d >= 0; d--) {
+                counter[d] = r % lens[d];
+                r /= lens[d];
+                for (int k = 0; k < n; k++) {
+                    pos[k] += counter[d] * steps[k][d];
+                }
+            }
+
+            Storage[] scratch = new Storage[program.length];
+            for (int s = 0; s < scratch.length; s++) {
+                scratch[s] = new HeapStorage(new float[BLOCK]);
+            }
+
+            for (int r = from; r < to; r++) {
+                if (op == null) {
+                    run(pos, scratch);
+                } else {
+                    reduceRun(pos, scratch, (long) r * lens[inner]);
+                }
+
+                for (int d = inner - 1; d >= 0; d--) {
+                    if (++counter[d] < lens[d]) {
+                        for (int k = 0; k < n; k++) {
+                            pos[k] += steps[k][d];
+                        }
+                        break;
+                    }
+                    counter[d] = 0;
+                    for (int k = 0; k < n; k++) {
+                        pos[k] -= steps[k][d] * (lens[d] - 1);
+                    }
+                }
+            }
+        }
+
+        // one run, the last operation writes straight into out
+        private void run(int[] pos, Storage[] scratch) {
+            int len = lens[lens.length - 1];
+            int out = storages.length - 1;
+            int stride = steps[out][lens.length - 1];
+            for (int j = 0; j < len; j += BLOCK) {
+                int m = Math.min(BLOCK, len - j);
+                perform(pos, scratch, j, m, storages[out], pos[out] + j * stride, stride);
+            }
+        }
+
+        // one run of whole rows starting at element start, each reduced into its element of out
+        private void reduceRun(int[] pos, Storage[] scratch, long start) {
+            int len = lens[lens.length - 1];
+            Storage out = storages[storages.length - 1];
+            int offset = offsets[storages.length - 1];
+            Storage res = scratch[scratch.length - 1];
+
+            // the blocks of a long row are added with a compensation, see Reduction
+            float comp = 0;
+
+            // whole rows per block where they fit
+            int block = rowLen <= BLOCK ? BLOCK / rowLen * rowLen : BLOCK;
+            for (int j = 0; j < len; j += block) {
+                int m = Math.min(block, len - j);
+                perform(pos, scratch, j, m, res, 0, 1);
+
+                for (int i = 0; i < m; ) {
+                    long e = start + j + i;
+                    int row = (int) (e / rowLen);
+                    int col = (int) (e % rowLen);
+                    int k = Math.min(m - i, rowLen - col);
+                    float v = op.reduceRun(res, i, 1, null, k, compensated);
+                    if (col == 0) {
+                        out.set(offset + row, v);
+                        comp = 0;
+                    } else if (compensated) {
+                        float acc = out.get(offset + row);
+                        float y = v - comp;
+                        float t = acc + y;
+                        comp = Float.isInfinite(t) ? 0 : (t - acc) - y;
+                        out.set(offset + row, t);
+                    } else {
+                        float acc = out.get(offset + row);
+                        out.set(offset + row, op.combiner().processSingle(acc, v));
+                    }
+                    i += k;
+                }
+            }
+        }
+
+        // the operations over m elements from j of the run, the last one into C
+        private void perform(
+                int[] pos, Storage[] scratch, int j, int m, Storage C, int c, int cStride) {
+            int last = program.length - 1;
+            for (int s = 0; s <= last; s++) {
+                Storage S = s == last ? C : scratch[s];
+                int o = s == last ? c : 0;
+                int so = s == last ? cStride : 1;
+                switch (program[s]) {
+                    case UnaryStep u ->
+                            u.op.performRun(
+                                    m,
+                                    storage(u.x, scratch),
+                                    position(u.x, pos, j),
+                                    stride(u.x),
+                                    S,
+                                    o,
+                                    so);
+                    case BinaryStep b ->
+                            b.op.performRun(
+                                    m,
+                                    storage(b.a, scratch),
+                                    position(b.a, pos, j),
+                                    stride(b.a),
+                                    storage(b.b, scratch),
+                                    position(b.b, pos, j),
+                                    stride(b.b),
+                                    S,
+                                    o,
+                                    so);
+                }
+            }
+        }
+
+        // operands below 0 are the leaves, -1 the first, the others the results of the steps
+
+        private Storage storage(int operand, Storage[] scratch) {
+            return operand < 0 ? storages[-operand - 1] : scratch[operand];
+        }
+
+        private int position(int operand, int[] pos, int j) {
+            return operand < 0 ? pos[-operand - 1] + j * stride(operand) : 0;
+        }
+
+        private int stride(int operand) {
+            return operand < 0 ? steps[-operand - 1][lens.length - 1] : 1;
+        }
+    }
+}
@@ -0,0 +1,1002 @@
+package ndarray.operator;
+
+import static ndarray.util.Util.INT_SPECIES;
+import static ndarray.util.Util.SPECIES;
+import static ndarray.util.Util.SPECIES_LEN;
+
+import java.util.Arrays;
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import ndarray.NDArray;
+import ndarray.NDArrays;
+import ndarray.iterator.StridedLoop;
+import ndarray.storage.HeapStorage;
+import ndarray.storage.IntStorage;
+import ndarray.storage.Storage;
+import ndarray.util.DType;
+
+/**
+ * The loop of a reduction over any set of axes of an array in any layout. The axes go outermost
+ * first in the memory order of the array, and adjacent axes that are both reduced or both kept and
+ * contiguous in the array and in the result are merged. When the innermost axis is reduced, each
+ * run along it is reduced to one value with vectors across the run. When it is kept, each run is
+ * combined lane-wise into its row of the result, so summing the rows of a C array is vectorized as
+ * well as summing its columns.
+ *
+ * <p>The work is split between the elements of the result and, when there are too few of them to
+ * fill the chunks, between contiguous partitions of the reduced elements if the result is at most
+ * a chunk, or else slices of a kept inner axis. Each partition reduces into its own copy of the
+ * result and the copies are combined in partition order. The partitions and slices only depend on
+ * the shape, the layout and the chunk size, so a reduction gives the same bits on one thread as on
+ * the whole pool.
+ *
+ * <p>Sums can be made compensated, see {@link #withCompensatedSum}. Float64 arrays are reduced in
+ * double, element by element, and reductions to int32 in int, which wraps like Java's arithmetic.
+ */
+public final class Reduction {
+
+    public static final String COMPENSATED_SUM_PROPERTY = "ndarray.reduction.compensatedSum";
+
+    // copies of the result a reduction is split into at most, plenty to spread over a pool
+    static final int MAX_PARTITIONS = 64;
+
+    // elements of a row a slice of a kept inner axis covers at least, long enough runs to
+    // amortize a call per row
+    static final int MIN_SLICE = 1024;
+
+    // elements a vector lane, or an element of the result, adds up on its own before the
+    // compensated add: a block is this many vectors of a run, or this many rows
+    static final int SUM_BLOCK = 64;
+
+    // 0, 1, 2, ... the indices of the lanes
+    private static final float[] IOTA = new float[SPECIES_LEN];
+
+    static {
+        for (int i = 0; i < IOTA.length; i++) {
+            IOTA[i] = i;
+        }
+    }
+
+    // for the threads outside any scope
+    private static final boolean COMPENSATED_SUM = Boolean.getBoolean(COMPENSATED_SUM_PROPERTY);
+
+    private static final ThreadLocal<Scope> CURRENT = new ThreadLocal<>();
+
+    /** Whether the sums started on a thread are compensated, until the scope is closed. */
+    public static final class Scope implements AutoCloseable {
+        private final Scope parent;
+        private final boolean compensated;
+
+        private Scope(Scope parent, boolean compensated) {
+            this.parent = parent;
+            this.compensated = compensated;
+        }
+
+        /** Goes back to the setting of the enclosing scope, or to the default. */
+        @Override
+        public void close() {
+            if (CURRENT.get() != this) {
+                throw new IllegalStateException("scopes must be closed in the reverse order");
+            }
+            CURRENT.set(parent);
+        }
+    }
+
+    private Reduction() {}
+
+    /**
+     * Whether the sums started on this thread are compensated, outside any scope as the property
+     * {@value #COMPENSATED_SUM_PROPERTY} says.
+     */
+    public static boolean isCompensatedSum() {
+        Scope scope = CURRENT.get();
+        return scope != null ? scope.compensated : COMPENSATED_SUM;
+    }
+
+    /**
+     * Whether the sums, and the means built on them, started on this thread carry a compensation
+     * term (Kahan), until the returned scope is closed. Scopes nest, and the loops of a sum on the
+     * pool follow the thread that started it. Each vector lane, and each element of a result that
+     * rows are summed into, adds {@value #SUM_BLOCK} elements with plain adds and only the block
+     * sums are compensated, so it costs about as much as the plain loop.
+     *
+     * <pre>{@code
+     * try (var scope = Reduction.withCompensatedSum(true)) {
+     *     NDArray total = x.sum();
+     * }
+     * }</pre>
+     */
+    public static Scope withCompensatedSum(boolean compensated) {
+        Scope scope = new Scope(CURRENT.get(), compensated);
+        CURRENT.set(scope);
+        return scope;
+    }
+
+    static NDArray reduce(ElementWiseReduceOperator op, NDArray a, int[] dims, boolean keepDims) {
+        DType type = op.resultType(a.getDType());
+        // the initial values of max and min do not fit in a byte, and 16-bit floats would round
+        // the partial results, those reduce into float32
+        NDArray out = reduce(op, a, dims, keepDims, type.byteSize() <= 2 ? DType.FLOAT32 : type);
+        return out.getDType() == type ? out : out.astype(type);
+    }
+
+    private static NDArray reduce(
+            ElementWiseReduceOperator op, NDArray a, int[] dims, boolean keepDims, DType type) {
+        Plan plan = Plan.of(a, dims, keepDims);
+        NDArray out = NDArrays.fill(plan.outShape, op.getInit(), type);
+        if (plan.empty()) {
+            return out;
+        }
+        if (a.getDType() == DType.FLOAT64 || type == DType.FLOAT64) {
+            return reduceDoubles(op, plan, a, out);
+        }
+        if (type == DType.INT32) {
+            return reduceInts(op, plan, a, out);
+        }
+
+        ElementWiseReduceOperator combiner = op.combiner();
+        Storage[] parts = plan.parts(out.getData().storage(), op.getInit());
+        // the compensation of each partial sum, the sum is the part minus it
+        Storage[] comps =
+                op == ElementWiseReduceOperator.SUM
+                                && isCompensatedSum()
+                                && out.getDType() == DType.FLOAT32
+                        ? plan.parts(new HeapStorage(new float[out.getSize()]), 0)
+                        : null;
+        Storage A = a.getData().storage();
+        plan.forEachUnit(
+                (start, c, width, p, from, to) -> {
+                    Storage C = parts[p];
+                    if (plan.reduced) {
+                        // runs along the reduced inner axis, a partition may start and end
+                        // inside one
+                        float acc = C.get(c);
+                        float comp = 0;
+                        for (long e = from; e < to; ) {
+                            int j = (int) (e % plan.len);
+                            int k = (int) Math.min(plan.len - j, to - e);
+                            int i = start + plan.offset(e / plan.len) + j * plan.inStride;
+                            float v = op.reduceRun(A, i, plan.inStride, plan.map, k, comps != null);
+                            if (comps == null) {
+                                acc = combiner.processSingle(acc, v);
+                            } else {
+                                float y = v - comp;
+                                float t = acc + y;
+                                comp = Float.isInfinite(t) ? 0 : (t - acc) - y;
+                                acc = t;
+                            }
+                            e += k;
+                        }
+                        C.set(c, acc);
+                        if (comps != null) {
+                            comps[p].set(c, comp);
+                        }
+                    } else if (comps == null) {
+                        for (long r = from; r < to; r++) {
+                            int i = start + plan.offset(r);
+                            op.accumulateRun(
+                                    A, i, plan.inStride, plan.map, C, c, plan.outStride, width);
+                        }
+                    } else {
+                        // as many rows per block as a lane sums elements of a run
+                        float[] block = new float[width];
+                        Storage B = new HeapStorage(block);
+                        for (long r = from; r < to; r += SUM_BLOCK) {
+                            long end = Math.min(to, r + SUM_BLOCK);
+                            Arrays.fill(block, 0);
+                            for (long q = r; q < end; q++) {
+                                int i = start + plan.offset(q);
+                                op.accumulateRun(
+                                        A, i, plan.inStride, plan.map, B, 0, 1, width);
+                            }
+                            compensatedAccumulate(
+                                    B, null, 0, C, comps[p], c, plan.outStride, width);
+                        }
+                    }
+                });
+
+        if (comps != null) {
+            Storage C = parts[0];
+            Storage Q = comps[0];
+            ElementWise.forEachChunk(
+                    out.getSize(),
+                    (from, to) -> {
+                        int len = to - from;
+                        for (int p = 1; p < parts.length; p++) {
+                            compensatedAccumulate(parts[p], comps[p], from, C, Q, from, 1, len);
+                        }
+
+                        // and the compensation of the total taken off
+                        int i = from;
+                        for (int bound = from + SPECIES.loopBound(len); i < bound; ) {
+                            C.store(C.load(i).sub(Q.load(i)), i);
+                            i += SPECIES_LEN;
+                        }
+                        for (; i < to; i++) {
+                            C.set(i, C.get(i) - Q.get(i));
+                        }
+                    });
+        } else if (parts.length > 1) {
+            Storage C = parts[0];
+            ElementWise.forEachChunk(
+                    out.getSize(),
+                    (from, to) -> {
+                        for (int p = 1; p < parts.length; p++) {
+                            combiner.accumulateRun(parts[p], from, 1, null, C, from, 1, to - from);
+                        }
+                    });
+        }
+        return out;
+    }
+
+    // reduce in double, with the same partitions
+    private static NDArray reduceDoubles(
+            ElementWiseReduceOperator op, Plan plan, NDArray a, NDArray out) {
+        ElementWiseReduceOperator combiner = op.combiner();
+        Storage[] parts = plan.parts(out.getData().storage(), op.getInit());
+        Storage A = a.getData().storage();
+        plan.forEachUnit(
+                (start, c, width, p, from, to) -> {
+                    Storage C = parts[p];
+                    if (plan.reduced) {
+                        double acc = C.getDouble(c);
+                        for (long e = from; e < to; e++) {
+                            int j = (int) (e % plan.len);
+                            int i = start + plan.offset(e / plan.len) + j * plan.inStride;
+                            acc = op.processDouble(acc, A.getDouble(i));
+                        }
+                        C.setDouble(c, acc);
+                    } else {
+                        for (long r = from; r < to; r++) {
+                            int i = start + plan.offset(r);
+                            for (int j = 0; j < width; j++) {
+                                int ci = c + j * plan.outStride;
+                                double x = A.getDouble(i + j * plan.inStride);
+                                C.setDouble(ci, op.processDouble(C.getDouble(ci), x));
+                            }
+                        }
+                    }
+                });
+
+        if (parts.length > 1) {
+            Storage C = parts[0];
+            ElementWise.forEachChunk(
+                    out.getSize(),
+                    (from, to) -> {
+                        for (int i = from; i < to; i++) {
+                            double acc = C.getDouble(i);
+                            for (int p = 1; p < parts.length; p++) {
+                                acc = combiner.processDouble(acc, parts[p].getDouble(i));
+                            }
+                            C.setDouble(i, acc);
+                        }
+                    });
+        }
+        return out;
+    }
+
+    // reduce in int, with the same partitions. Sums and products wrap, which gives the same bits
+    // in any order
+    private static NDArray reduceInts(
+            ElementWiseReduceOperator op, Plan plan, NDArray a, NDArray out) {
+        ElementWiseReduceOperator combiner = op.combiner();
+        Storage[] parts = plan.parts(out.getData().storage(), op.getInit());
+        Storage A = a.getData().storage();
+        plan.forEachUnit(
+                (start, c, width, p, from, to) -> {
+                    Storage C = parts[p];
+                    if (plan.reduced) {
+                        int acc = (int) C.getDouble(c);
+                        for (long e = from; e < to; ) {
+                            int j = (int) (e % plan.len);
+                            int k = (int) Math.min(plan.len - j, to - e);
+                            int i = start + plan.offset(e / plan.len) + j * plan.inStride;
+                            int v = op.reduceIntRun(A, i, plan.inStride, plan.map, k);
+                            acc = combiner.processInt(acc, v);
+                            e += k;
+                        }
+                        C.setDouble(c, acc);
+                    } else {
+                        for (long r = from; r < to; r++) {
+                            int i = start + plan.offset(r);
+                            op.accumulateIntRun(
+                                    A, i, plan.inStride, plan.map, C, c, plan.outStride, width);
+                        }
+                    }
+                });
+
+        if (parts.length > 1) {
+            Storage C = parts[0];
+            ElementWise.forEachChunk(
+                    out.getSize(),
+                    (from, to) -> {
+                        for (int i = from; i < to; i++) {
+                            int acc = (int) C.getDouble(i);
+                            for (int p = 1; p < parts.length; p++) {
+                                acc = combiner.processInt(acc, (int) parts[p].getDouble(i));
+                            }
+                            C.setDouble(i, acc);
+                        }
+                    });
+        }
+        return out;
+    }
+
+    /**
+     * The mean of a over the axes in dims, float32 for integers. The sums of 16-bit floats are kept
+     * in float32, they overflow long before the means do, and those of integers in double, where
+     * they neither wrap nor round.
+     */
+    public static NDArray mean(NDArray a, int[] dims, boolean keepDims) {
+        DType type = a.getDType().toFloatingPoint();
+        var sum = ElementWiseReduceOperator.SUM;
+        NDArray res =
+                switch (a.getDType()) {
+                    case FLOAT16, BFLOAT16 -> reduce(sum, a, dims, keepDims, DType.FLOAT32);
+                    case FLOAT32, FLOAT64 -> sum.reduce(a, dims, keepDims);
+                    default -> reduce(sum, a, dims, keepDims, DType.FLOAT64);
+                };
+        res.divi((float) a.getSize() / res.getSize());
+        return res.getDType() == type ? res : res.astype(type);
+    }
+
+    /**
+     * The population variance of a over the axes in dims, in a single pass with Welford's
+     * updates: each run or lane keeps a running mean and sum of squared deviations, and those of
+     * lanes, runs and partitions are merged with the formula of Chan et al. Float64 arrays take
+     * two passes in double, the mean and then the mean of the squared deviations.
+     */
+    public static NDArray variance(NDArray a, int[] dims, boolean keepDims) {
+        if (a.getDType() == DType.FLOAT64) {
+            NDArray d = a.sub(a.mean(dims, true));
+            return d.muli(d).mean(dims, keepDims);
+        }
+
+        // the moments are kept in float32, 16-bit floats get the result rounded at the end
+        DType type = a.getDType().toFloatingPoint();
+        Plan plan = Plan.of(a, dims, keepDims);
+        NDArray out = NDArrays.fill(plan.outShape, Float.NaN);
+        if (plan.empty()) {
+            return type == DType.FLOAT32 ? out : out.astype(type);
+        }
+
+        int size = out.getSize();
+        Storage[] means = plan.parts(new HeapStorage(new float[size]), 0);
+        Storage[] m2s = plan.parts(new HeapStorage(new float[size]), 0);
+        Storage A = a.getData().storage();
+        plan.forEachUnit(
+                (start, c, width, p, from, to) -> {
+                    if (plan.reduced) {
+                        float[] moments = new float[3];
+                        for (long e = from; e < to; ) {
+                            int j = (int) (e % plan.len);
+                            int k = (int) Math.min(plan.len - j, to - e);
+                            int i = start + plan.offset(e / plan.len) + j * plan.inStride;
+                            runMoments(A, i, plan.inStride, plan.map, k, moments);
+                            e += k;
+                        }
+                        means[p].set(c, moments[1]);
+                        m2s[p].set(c, moments[2]);
+                    } else {
+                        for (long r = from; r < to; r++) {
+                            int i = start + plan.offset(r);
+                            rowMoments(
+                                    A,
+                                    i,
+                                    plan.inStride,
+                                    plan.map,
+                                    means[p],
+                                    m2s[p],
+                                    c,
+                                    plan.outStride,
+                                    width,
+                                    r - from + 1);
+                        }
+                    }
+                });
+
+        // every element of the result got the same count from a partition
+        float count = (float) (a.getSize() / size);
+        Storage C = out.getData().storage();
+        ElementWise.forEachChunk(
+                size,
+                (from, to) -> {
+                    float[] moments = new float[3];
+                    for (int i = from; i < to; i++) {
+                        moments[0] = 0;
+                        moments[1] = 0;
+                        moments[2] = 0;
+                        for (int p = 0; p < means.length; p++) {
+                            float n = plan.reducible(p + 1) - plan.reducible(p);
+                            merge(moments, n, means[p].get(i), m2s[p].get(i));
+                        }
+                        C.set(i, moments[2] / count);
+                    }
+                });
+        return type == DType.FLOAT32 ? out : out.astype(type);
+    }
+
+    /**
+     * The index along dim of the first maximum of a, in an int32 array. NaN counts as greater than
+     * any number, so the index of the first NaN wins, as in NumPy.
+     */
+    public static NDArray argmax(NDArray a, int dim, boolean keepDims) {
+        return arg(a, dim, keepDims, true);
+    }
+
+    /** The index along dim of the first minimum of a, NaN counts as less than any number. */
+    public static NDArray argmin(NDArray a, int dim, boolean keepDims) {
+        return arg(a, dim, keepDims, false);
+    }
+
+    // like a reduction over dim with partitions of whole runs or rows of the result, each
+    // partition keeps its best values and their indices, and the partitions are compared in order
+    private static NDArray arg(NDArray a, int dim, boolean keepDims, boolean max) {
+        Plan plan = Plan.of(a, new int[] {dim}, keepDims);
+        NDArray out = NDArrays.empty(plan.outShape, DType.INT32);
+        if (plan.empty()) {
+            if (out.getSize() > 0) {
+                String name = max ? "argmax" : "argmin";
+                throw new IllegalArgumentException(
+                        "cannot take the %s of empty dim %d".formatted(name, dim));
+            }
+            return out;
+        }
+
+        int size = out.getSize();
+        float init = max ? Float.NEGATIVE_INFINITY : Float.POSITIVE_INFINITY;
+        // float64 and int32 values are compared in double, one by one
+        boolean exact = a.getDType() == DType.FLOAT64 || a.getDType() == DType.INT32;
+        Storage first = Storage.allocate(exact ? DType.FLOAT64 : DType.FLOAT32, size);
+        for (int i = 0; i < size; i++) {
+            first.set(i, init);
+        }
+        Storage[] values = plan.parts(first, init);
+        // the indices go straight into the int32 result, exact along any axis
+        Storage[] indices = plan.parts(out.getData().storage(), 0);
+        Storage A = a.getData().storage();
+        plan.forEachUnit(
+                (start, c, width, p, from, to) -> {
+                    if (plan.reduced) {
+                        // the partition is a part of the only run
+                        int i = start + (int) from * plan.inStride;
+                        int k = (int) (to - from);
+                        int best = argRun(A, i, plan.inStride, plan.map, k, max, exact);
+                        values[p].setDouble(c, A.getDouble(i + best * plan.inStride));
+                        indices[p].setDouble(c, from + best);
+                    } else {
+                        for (int j = 0; j < width; j++) {
+                            indices[p].setDouble(c + j * plan.outStride, from);
+                        }
+                        for (long r = from; r < to; r++) {
+                            int i = start + plan.offset(r);
+                            argAccumulate(
+                                    A,
+                                    i,
+                                    plan.inStride,
+                                    plan.map,
+                                    values[p],
+                                    indices[p],
+                                    c,
+                                    plan.outStride,
+                                    width,
+                                    r,
+                                    max,
+                                    exact);
+                        }
+                    }
+                });
+
+        if (values.length > 1) {
+            ElementWise.forEachChunk(
+                    size,
+                    (from, to) -> {
+                        for (int i = from; i < to; i++) {
+                            double best = values[0].getDouble(i);
+                            for (int p = 1; p < values.length; p++) {
+                                double v = values[p].getDouble(i);
+                                if (beats(v, best, max)) {
+                                    best = v;
+                                    indices[0].setDouble(i, indices[p].getDouble(i));
+                                }
+                            }
+                        }
+                    });
+        }
+        return out;
+    }
+
+    // the index of the first maximum, or minimum, in a run. Lanes keep their best values and
+    // indices, as floats which are exact up to 2^24, and longer runs and exact ones go one by one
+    private static int argRun(
+            Storage A, int a, int stride, int[] map, int len, boolean max, boolean exact) {
+        int bound = len <= 1 << 24 && !exact ? SPECIES.loopBound(len) : 0;
+        int best = 0;
+        double bestValue = A.getDouble(a);
+        if (bound > 0) {
+            var index = FloatVector.fromArray(SPECIES, IOTA, 0);
+            var step = FloatVector.broadcast(SPECIES, SPECIES_LEN);
+            var values = stride == 1 ? A.load(a) : A.load(a, map);
+            var indices = index;
+            for (int i = SPECIES_LEN; i < bound; i += SPECIES_LEN) {
+                index = index.add(step);
+                var x = stride == 1 ? A.load(a + i) : A.load(a + i * stride, map);
+                var m = beats(x, values, max);
+                values = values.blend(x, m);
+                indices = indices.blend(index, m);
+            }
+
+            // the lanes, on a tie the lowest index
+            double[] v = values.toDoubleArray();
+            float[] idx = indices.toArray();
+            bestValue = v[0];
+            best = (int) idx[0];
+            for (int l = 1; l < SPECIES_LEN; l++) {
+                boolean tie = v[l] == bestValue || (v[l] != v[l] && bestValue != bestValue);
+                if (beats(v[l], bestValue, max) || (tie && idx[l] < best)) {
+                    bestValue = v[l];
+                    best = (int) idx[l];
+                }
+            }
+        }
+        for (int i = Math.max(bound, 1); i < len; i++) {
+            double x = A.getDouble(a + i * stride);
+            if (beats(x, bestValue, max)) {
+                bestValue = x;
+                best = i;
+            }
+        }
+        return best;
+    }
+
+    // the r-th row along the reduced axis compared lane-wise with the best values in V and their
+    // int32 indices in C, both at c
+    private static void argAccumulate(
+            Storage A,
+            int a,
+            int stride,
+            int[] map,
+            Storage V,
+            Storage C,
+            int c,
+            int cStride,
+            int len,
+            long r,
+            boolean max,
+            boolean exact) {
+        int i = 0;
+        if (C instanceof IntStorage out && cStride == 1 && !exact) {
+            int bound = SPECIES.loopBound(len);
+            int[] indices = out.array();
+            var index = IntVector.broadcast(INT_SPECIES, (int) r);
+            out.version().written();
+            for (; i < bound; i += SPECIES_LEN) {
+                var x = stride == 1 ? A.load(a + i) : A.load(a + i * stride, map);
+                var best = V.load(c + i);
+                var m = beats(x, best, max);
+                V.store(best.blend(x, m), c + i);
+                var current = IntVector.fromArray(INT_SPECIES, indices, c + i);
+                current.blend(index, m.cast(INT_SPECIES)).intoArray(indices, c + i);
+            }
+        }
+        for (; i < len; i++) {
+            double x = A.getDouble(a + i * stride);
+            int ci = c + i * cStride;
+            if (beats(x, V.getDouble(ci), max)) {
+                V.setDouble(ci, x);
+                C.setDouble(ci, r);
+            }
+        }
+    }
+
+    // whether x replaces best: greater, or less for argmin, or NaN where best is a number
+    private static VectorMask<Float> beats(FloatVector x, FloatVector best, boolean max) {
+        var m = max ? x.compare(VectorOperators.GT, best) : x.compare(VectorOperators.LT, best);
+        return m.or(x.test(VectorOperators.IS_NAN).andNot(best.test(VectorOperators.IS_NAN)));
+    }
+
+    private static boolean beats(double x, double best, boolean max) {
+        return (max ? x > best : x < best) || (x != x && best == best);
+    }
+
+    /**
+     * log(sum(exp(a))) over the axes in dims, shifted by the maximum so it neither overflows nor
+     * underflows. Along the last axis alone the shifted exponentials are summed as they are
+     * computed, see {@link Expression}.
+     */
+    public static NDArray logSumExp(NDArray a, int[] dims, boolean keepDims) {
+        if (!a.getDType().isFloatingPoint()) {
+            a = a.astype(DType.FLOAT32);
+        }
+        Plan plan = Plan.of(a, dims, keepDims);
+        NDArray max = ElementWiseReduceOperator.MAX.reduce(a, dims, true);
+
+        // a shift of 0 where the maximum is infinite, so all -inf gives -inf rather than NaN
+        Storage M = max.getData().storage();
+        for (int i = 0; i < max.getSize(); i++) {
+            if (Double.isInfinite(M.getDouble(i))) {
+                M.setDouble(i, 0);
+            }
+        }
+
+        int rank = a.getDim();
+        NDArray sum =
+                dims.length == 1 && (dims[0] == rank - 1 || dims[0] == -1)
+                        ? a.lazy().sub(max).exp().sum(-1, true)
+                        : ElementWiseReduceOperator.SUM.reduce(a.sub(max).expi(), dims, true);
+        return sum.logi().addi(max).reshape(plan.outShape);
+    }
+
+    // the vectors of a run summed in blocks, each lane adds up a block with plain adds and the
+    // block sums go into the lanes with Kahan's compensation, len a multiple of SPECIES_LEN. The
+    // few lanes are then added plainly
+    static float compensatedSum(Storage A, int a, int aStride, int[] map, int len) {
+        var acc = FloatVector.zero(SPECIES);
+        var comp = FloatVector.zero(SPECIES);
+        for (int b = 0; b < len; b += SUM_BLOCK * SPECIES_LEN) {
+            int end = Math.min(len, b + SUM_BLOCK * SPECIES_LEN);
+            var block = FloatVector.zero(SPECIES);
+            for (int i = b; i < end; i += SPECIES_LEN) {
+                block = block.add(aStride == 1 ? A.load(a + i) : A.load(a + i * aStride, map));
+            }
+            var y = block.sub(comp);
+            var t = acc.add(y);
+            comp = t.sub(acc).sub(y).blend(0, t.test(VectorOperators.IS_INFINITE));
+            acc = t;
+        }
+
+        return acc.sub(comp).reduceLanes(VectorOperators.ADD);
+    }
+
+    // the sums at b, less their compensations in P if any, added into the run at c with Kahan's
+    // compensation, Q holds the compensations. Like the other compensated adds, an infinite sum
+    // drops its compensation, as inf - inf would be NaN
+    private static void compensatedAccumulate(
+            Storage B, Storage P, int b, Storage C, Storage Q, int c, int cStride, int len) {
+        int i = 0;
+        if (cStride == 1) {
+            int bound = SPECIES.loopBound(len);
+            for (; i < bound; i += SPECIES_LEN) {
+                var x = P == null ? B.load(b + i) : B.load(b + i).sub(P.load(b + i));
+                var acc = C.load(c + i);
+                var y = x.sub(Q.load(c + i));
+                var t = acc.add(y);
+                Q.store(t.sub(acc).sub(y).blend(0, t.test(VectorOperators.IS_INFINITE)), c + i);
+                C.store(t, c + i);
+            }
+        }
+        for (; i < len; i++) {
+            int ci = c + i * cStride;
+            float acc = C.get(ci);
+            float x = P == null ? B.get(b + i) : B.get(b + i) - P.get(b + i);
+            float y = x - Q.get(ci);
+            float t = acc + y;
+            Q.set(ci, Float.isInfinite(t) ? 0 : (t - acc) - y);
+            C.set(ci, t);
+        }
+    }
+
+    // the moments of a run merged into moments, the count, mean and sum of squared deviations
+    private static void runMoments(
+            Storage A, int a, int stride, int[] map, int len, float[] moments) {
+        int bound = SPECIES.loopBound(len);
+        float n = 0;
+        float mean = 0;
+        float m2 = 0;
+        if (bound > 0) {
+            var vm = FloatVector.zero(SPECIES);
+            var vq = FloatVector.zero(SPECIES);
+            for (int i = 0, k = 1; i < bound; i += SPECIES_LEN, k++) {
+                var x = stride == 1 ? A.load(a + i) : A.load(a + i * stride, map);
+                var d = x.sub(vm);
+                vm = vm.add(d.div(k));
+                vq = d.fma(x.sub(vm), vq);
+            }
+
+            // the lanes have the same count and their own means
+            n = bound;
+            mean = vm.reduceLanes(VectorOperators.ADD) / SPECIES_LEN;
+            var dm = vm.sub(mean);
+            float spread = dm.mul(dm).reduceLanes(VectorOperators.ADD);
+            m2 = vq.reduceLanes(VectorOperators.ADD) + spread * (bound / SPECIES_LEN);
+        }
+        for (int i = bound; i < len; i++) {
+            float x = A.get(a + i * stride);
+            n++;
+            float d = x - mean;
+            mean += d / n;
+            m2 += d * (x - mean);
+        }
+        merge(moments, n, mean, m2);
+    }
+
+    // one more run, the count-th, folded into the running means and M2 of the row at c
+    private static void rowMoments(
+            Storage A,
+            int a,
+            int stride,
+            int[] map,
+            Storage M,
+            Storage Q,
+            int c,
+            int cStride,
+            int len,
+            float count) {
+        int i = 0;
+        if (cStride == 1) {
+            int bound = SPECIES.loopBound(len);
+            for (; i < bound; i += SPECIES_LEN) {
+                var x = stride == 1 ? A.load(a + i) : A.load(a + i * stride, map);
+                var m = M.load(c + i);
+                var d = x.sub(m);
+                m = m.add(d.div(count));
+                M.store(m, c + i);
+                Q.store(d.fma(x.sub(m), Q.load(c + i)), c + i);
+            }
+        }
+        for (; i < len; i++) {
+            float x = A.get(a + i * stride);
+            int ci = c + i * cStride;
+            float m = M.get(ci);
+            float d = x - m;
+            m += d / count;
+            M.set(ci, m);
+            Q.set(ci, Q.get(ci) + d * (x - m));
+        }
+    }
+
+    // the moments of a part with count n, mean and M2 merged into moments, Chan et al.
+    private static void merge(float[] moments, float n, float mean, float m2) {
+        if (n == 0) {
+            return;
+        }
+        float total = moments[0] + n;
+        float d = mean - moments[1];
+        moments[1] += d * n / total;
+        moments[2] += m2 + d * d * moments[0] * n / total;
+        moments[0] = total;
+    }
+
+    /**
+     * Computes the part from inclusive to exclusive of partition p for the result at c, and the
+     * width elements after it along a kept inner axis.
+     */
+    @FunctionalInterface
+    private interface Unit {
+        void run(int start, int c, int width, int p, long from, long to);
+    }
+
+    private record Plan(
+            int[] outShape,
+            int size,
+            int offset,
+            int[] keptLens,
+            int[] keptIns,
+            int[] keptOuts,
+            int[] redLens,
+            int[] redIns,
+            int len,
+            int inStride,
+            int outStride,
+            boolean reduced,
+            int[] map,
+            long reducible,
+            int slices,
+            int partitions) {
+
+        static Plan of(NDArray a, int[] dims, boolean keepDims) {
+            int[] shape = a.getShape();
+            int rank = shape.length;
+
+            boolean[] reduced = new boolean[rank];
+            for (int dim : dims) {
+                int d = dim < 0 ? rank + dim : dim;
+                if (d < 0 || d >= rank) {
+                    throw new IllegalArgumentException(
+                            "dim %d is out of bounds for array of dimension %d"
+                                    .formatted(dim, rank));
+                }
+                if (reduced[d]) {
+                    throw new IllegalArgumentException("dim %d is repeated".formatted(dim));
+                }
+                reduced[d] = true;
+            }
+
+            int[] outShape = new int[rank];
+            int outRank = 0;
+            for (int i = 0; i < rank; i++) {
+                if (!reduced[i] || keepDims) {
+                    outShape[outRank++] = reduced[i] ? 1 : shape[i];
+                }
+            }
+            outShape = Arrays.copyOf(outShape, outRank);
+
+            // C strides of the result over the axes of a, 0 along the reduced ones
+            int[] inStrides = a.getStrides();
+            int[] outStrides = new int[rank];
+            for (int i = rank - 1, stride = 1; i >= 0; i--) {
+                if (!reduced[i]) {
+                    outStrides[i] = stride;
+                    stride *= shape[i];
+                }
+            }
+
+            // axes of length 1 are dropped, the rest go outermost first in the memory order of a
+            int[] axes = new int[rank];
+            int n = 0;
+            for (int i = 0; i < rank; i++) {
+                if (shape[i] == 1) {
+                    continue;
+                }
+                int j = n++;
+                for (; j > 0 && Math.abs(inStrides[axes[j - 1]]) < Math.abs(inStrides[i]); j--) {
+                    axes[j] = axes[j - 1];
+                }
+                axes[j] = i;
+            }
+
+            int merged = 0;
+            int[] lens = new int[Math.max(n, 1)];
+            int[] ins = new int[lens.length];
+            int[] outs = new int[lens.length];
+            boolean[] red = new boolean[lens.length];
+            for (int x = 0; x < n; x++) {
+                int axis = axes[x];
+                int d = merged - 1;
+                if (d >= 0
+                        && red[d] == reduced[axis]
+                        && ins[d] == inStrides[axis] * shape[axis]
+                        && outs[d] == outStrides[axis] * shape[axis]) {
+                    lens[d] *= shape[axis];
+                } else {
+                    d = merged++;
+                    lens[d] = shape[axis];
+                    red[d] = reduced[axis];
+                }
+                ins[d] = inStrides[axis];
+                outs[d] = outStrides[axis];
+            }
+            if (merged == 0) {
+                // a single element, kept as it is
+                lens[0] = 1;
+                merged = 1;
+            }
+
+            // the outer axes split into the kept and the reduced ones
+            int inner = merged - 1;
+            int kept = 0;
+            for (int d = 0; d < inner; d++) {
+                kept += red[d] ? 0 : 1;
+            }
+            int[] keptLens = new int[kept];
+            int[] keptIns = new int[kept];
+            int[] keptOuts = new int[kept];
+            int[] redLens = new int[inner - kept];
+            int[] redIns = new int[inner - kept];
+            long keptRows = 1;
+            long redRows = 1;
+            for (int d = 0, k = 0, r = 0; d < inner; d++) {
+                if (red[d]) {
+                    redLens[r] = lens[d];
+                    redIns[r++] = ins[d];
+                    redRows *= lens[d];
+                } else {
+                    keptLens[k] = lens[d];
+                    keptIns[k] = ins[d];
+                    keptOuts[k++] = outs[d];
+                    keptRows *= lens[d];
+                }
+            }
+
+            // what a partition divides: whole runs, or single elements of a reduced run. Only a
+            // result of at most a chunk is copied for them
+            long reducible = red[inner] ? redRows * lens[inner] : redRows;
+            long units = Math.max(1, a.getSize() / ElementWise.getChunkSize());
+            long partitions = 1;
+            int slices = 1;
+            if (keptRows * (red[inner] ? 1 : lens[inner]) <= ElementWise.getChunkSize()) {
+                partitions = units / Math.max(1, keptRows);
+                partitions = Math.max(1, Math.min(Math.min(reducible, partitions), MAX_PARTITIONS));
+            } else if (!red[inner]) {
+                // a larger one is split in slices of whole vectors of its kept inner axis instead,
+                // which need no copies
+                long wide = Math.max(1, lens[inner] / MIN_SLICE);
+                slices = (int) Math.min(wide, Math.max(1, units / keptRows));
+            }
+
+            return new Plan(
+                    outShape,
+                    a.getSize(),
+                    a.getData().offset(),
+                    keptLens,
+                    keptIns,
+                    keptOuts,
+                    redLens,
+                    redIns,
+                    lens[inner],
+                    ins[inner],
+                    outs[inner],
+                    red[inner],
+                    ins[inner] == 1 ? null : StridedLoop.indexMap(ins[inner]),
+                    reducible,
+                    slices,
+                    (int) partitions);
+        }
+
+        boolean empty() {
+            return size == 0 || Arrays.stream(outShape).anyMatch(len -> len == 0);
+        }
+
+        // first, the result itself, then a copy of its type filled with init for each other
+        // partition
+        Storage[] parts(Storage first, float init) {
+            Storage[] parts = new Storage[partitions];
+            parts[0] = first;
+            for (int p = 1; p < partitions; p++) {
+                if (first.dtype() == DType.FLOAT32) {
+                    float[] part = new float[first.size()];
+                    Arrays.fill(part, init);
+                    parts[p] = new HeapStorage(part);
+                } else {
+                    parts[p] = Storage.allocate(first.dtype(), first.size());
+                    for (int i = 0; init != 0 && i < first.size(); i++) {
+                        parts[p].set(i, init);
+                    }
+                }
+            }
+            return parts;
+        }
+
+        // where partition p starts among the reducible elements
+        long reducible(int p) {
+            return reducible * p / partitions;
+        }
+
+        void forEachUnit(Unit unit) {
+            long rows = 1;
+            for (int len : keptLens) {
+                rows *= len;
+            }
+            int tasks = (int) (rows * slices * partitions);
+            ElementWise.forEachChunk(
+                    tasks,
+                    Math.max(1, size / tasks),
+                    (from, to) -> {
+                        for (int u = from; u < to; u++) {
+                            int row = u / (slices * partitions);
+                            int s = u / partitions % slices;
+                            int p = u % partitions;
+                            int j = slice(s);
+                            int start = offset + j * inStride;
+                            int c = j * outStride;
+                            for (int d = keptLens.length - 1, r = row; d >= 0; d--) {
+                                int i = r % keptLens[d];
+                                r /= keptLens[d];
+                                start += i * keptIns[d];
+                                c += i * keptOuts[d];
+                            }
+                            int width = reduced ? 1 : slice(s + 1) - j;
+                            unit.run(start, c, width, p, reducible(p), reducible(p + 1));
+                        }
+                    });
+        }
+
+        // where slice s of a kept inner axis starts, on a whole vector
+        int slice(int s) {
+            long vectors = (len + SPECIES_LEN - 1) / SPECIES_LEN;
+            return (int) Math.min(len, vectors * s / slices * SPECIES_LEN);
+        }
+
+        // the offset of a combination of indices of the reduced outer axes
+        int offset(long r) {
+            int res = 0;
+            for (int d = redLens.length - 1; d >= 0; d--) {
+                res += (int) (r % redLens[d]) * redIns[d];
+                r /= redLens[d];
+            }
+            return res;
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package ndarray.storage;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Free float[] buffers grouped by size class, for use by a single thread. The classes step by a
+ * quarter of a power of two (16, 20, 24, 28, 32, 40, ...), so a buffer is at most a quarter longer
+ * than the size asked for. Buffers given back beyond {@code ndarray.pool.maxBytes} (256 MB by
+ * default) are left to the garbage collector.
+ */
+public final class BufferPool {
+
+    public static final String MAX_BYTES_PROPERTY = "ndarray.pool.maxBytes";
+
+    private static final long MAX_BYTES = Long.getLong(MAX_BYTES_PROPERTY, 256L << 20);
+
+    private static final int MIN_CLASS = 16;
+
+    private final Map<Integer, ArrayDeque<float[]>> free = new HashMap<>();
+    private long bytes;
+
+    /** A buffer of at least size floats, with whatever it held before. */
+    public float[] take(int size) {
+        int sizeClass = sizeClass(size);
+        ArrayDeque<float[]> buffers = free.get(sizeClass);
+        float[] buffer = buffers == null ? null : buffers.pollLast();
+        if (buffer == null) {
+            return new float[sizeClass];
+        }
+        bytes -= (long) buffer.length * Float.BYTES;
+        return buffer;
+    }
+
+    public void give(float[] buffer) {
+        long size = (long) buffer.length * Float.BYTES;
+        if (bytes + size > MAX_BYTES || sizeClass(buffer.length) != buffer.length) {
+            return;
+        }
+        free.computeIfAbsent(buffer.length, k -> new ArrayDeque<>()).addLast(buffer);
+        bytes += size;
+    }
+
+    public long pooledBytes() {
+        return bytes;
+    }
+
+    static int sizeClass(int size) {
+        if (size <= MIN_CLASS) {
+            return MIN_CLASS;
+        }
+        if (size > 1 << 30) {
+            return size;
+        }
+        // keep the top three bits of size - 1 and round up
+        int shift = 29 - Integer.numberOfLeadingZeros(size - 1);
+        return ((size - 1 >> shift) + 1) << shift;
+    }
+}
@@ -0,0 +1,145 @@
+package ndarray.storage;
+
+import static ndarray.util.Util.SPECIES;
+import static ndarray.util.Util.SPECIES_LEN;
+
+import java.lang.foreign.MemorySegment;
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorShape;
+import jdk.incubator.vector.VectorSpecies;
+import ndarray.util.DType;
+
+/**
+ * Bytes as int8, uint8 or booleans. A boolean reads as 1 when its byte is not zero, and stores 1
+ * for any value that is not zero, NaN included.
+ */
+public record ByteStorage(byte[] array, DType dtype, Version version) implements Storage {
+
+    // a byte per float lane, at least the smallest vector shape
+    private static final VectorSpecies<Byte> BYTES =
+            VectorSpecies.of(byte.class, VectorShape.forBitSize(Math.max(64, SPECIES_LEN * 8)));
+    private static final VectorSpecies<Integer> INTS =
+            VectorSpecies.of(int.class, SPECIES.vectorShape());
+
+    // the byte lanes that hold float lanes, all of them unless the floats are fewer than 8
+    private static final boolean WIDE = BYTES.length() > SPECIES_LEN;
+    private static final VectorMask<Byte> FIRST = BYTES.indexInRange(0, SPECIES_LEN);
+
+    public ByteStorage {
+        if (dtype != DType.BOOL && dtype != DType.UINT8 && dtype != DType.INT8) {
+            throw new IllegalArgumentException("%s is not held in bytes".formatted(dtype));
+        }
+    }
+
+    public ByteStorage(byte[] array, DType dtype) {
+        this(array, dtype, new Version());
+    }
+
+    @Override
+    public int size() {
+        return array.length;
+    }
+
+    @Override
+    public float get(int index) {
+        return switch (dtype) {
+            case BOOL -> array[index] != 0 ? 1 : 0;
+            case UINT8 -> array[index] & 0xFF;
+            default -> array[index];
+        };
+    }
+
+    @Override
+    public void set(int index, float v) {
+        version.written();
+        array[index] = dtype == DType.BOOL ? (byte) (v != 0 ? 1 : 0) : (byte) v;
+    }
+
+    @Override
+    public FloatVector load(int index) {
+        return toFloats(
+                WIDE
+                        ? ByteVector.fromArray(BYTES, array, index, FIRST)
+                        : ByteVector.fromArray(BYTES, array, index));
+    }
+
+    @Override
+    public FloatVector load(int index, VectorMask<Float> mask) {
+        var m = VectorMask.fromLong(BYTES, mask.toLong());
+        return toFloats(ByteVector.fromArray(BYTES, array, index, m));
+    }
+
+    // gathers of bytes take an index per byte lane
+    @Override
+    public FloatVector load(int index, int[] indexMap) {
+        float[] lanes = new float[SPECIES_LEN];
+        for (int i = 0; i < lanes.length; i++) {
+            lanes[i] = get(index + indexMap[i]);
+        }
+        return FloatVector.fromArray(SPECIES, lanes, 0);
+    }
+
+    @Override
+    public void store(FloatVector v, int index) {
+        version.written();
+        if (WIDE) {
+            toBytes(v).intoArray(array, index, FIRST);
+        } else {
+            toBytes(v).intoArray(array, index);
+        }
+    }
+
+    @Override
+    public void store(FloatVector v, int index, VectorMask<Float> mask) {
+        version.written();
+        toBytes(v).intoArray(array, index, VectorMask.fromLong(BYTES, mask.toLong()));
+    }
+
+    @Override
+    public void read(int index, float[] dst, int dstIndex, int len) {
+        for (int i = 0; i < len; i++) {
+            dst[dstIndex + i] = get(index + i);
+        }
+    }
+
+    @Override
+    public void write(int index, float[] src, int srcIndex, int len) {
+        version.written();
+        for (int i = 0; i < len; i++) {
+            set(index + i, src[srcIndex + i]);
+        }
+    }
+
+    @Override
+    public boolean isOffHeap() {
+        return false;
+    }
+
+    @Override
+    public MemorySegment segment() {
+        return MemorySegment.ofArray(array);
+    }
+
+    private FloatVector toFloats(ByteVector b) {
+        if (dtype == DType.INT8) {
+            return (FloatVector) b.convertShape(VectorOperators.B2F, SPECIES, 0);
+        }
+        var i = (IntVector) b.convertShape(VectorOperators.ZERO_EXTEND_B2I, INTS, 0);
+        if (dtype == DType.BOOL) {
+            i = i.min(1);
+        }
+        return (FloatVector) i.convert(VectorOperators.I2F, 0);
+    }
+
+    // truncated and wrapped like a cast, booleans to 0 or 1 first
+    private ByteVector toBytes(FloatVector v) {
+        if (dtype == DType.BOOL) {
+            v = FloatVector.zero(SPECIES).blend(1, v.compare(VectorOperators.NE, 0));
+        }
+        return (ByteVector) v.convertShape(VectorOperators.F2B, BYTES, 0);
+    }
+}
@@ -0,0 +1,153 @@
+package ndarray.storage;
+
+import static ndarray.util.Util.DOUBLE_SPECIES;
+import static ndarray.util.Util.DOUBLE_SPECIES_LEN;
+import static ndarray.util.Util.SPECIES;
+import static ndarray.util.Util.SPECIES_LEN;
+
+import java.lang.foreign.MemorySegment;
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import ndarray.util.DType;
+
+// a vector of floats is loaded from, and stored to, as many vectors of doubles as it takes
+public record DoubleStorage(double[] array, Version version) implements Storage {
+
+    private static final int PARTS = SPECIES_LEN / DOUBLE_SPECIES_LEN;
+
+    // the lanes of the float vector each vector of doubles converts to
+    private static final VectorMask<Float>[] LANES = lanes();
+
+    @SuppressWarnings("unchecked")
+    private static VectorMask<Float>[] lanes() {
+        VectorMask<Float>[] lanes = new VectorMask[PARTS];
+        for (int p = 0; p < PARTS; p++) {
+            lanes[p] = SPECIES.indexInRange(-p * DOUBLE_SPECIES_LEN, DOUBLE_SPECIES_LEN);
+        }
+        return lanes;
+    }
+
+    public DoubleStorage(double[] array) {
+        this(array, new Version());
+    }
+
+    @Override
+    public DType dtype() {
+        return DType.FLOAT64;
+    }
+
+    @Override
+    public int size() {
+        return array.length;
+    }
+
+    @Override
+    public float get(int index) {
+        return (float) array[index];
+    }
+
+    @Override
+    public void set(int index, float v) {
+        version.written();
+        array[index] = v;
+    }
+
+    @Override
+    public double getDouble(int index) {
+        return array[index];
+    }
+
+    @Override
+    public void setDouble(int index, double v) {
+        version.written();
+        array[index] = v;
+    }
+
+    @Override
+    public FloatVector load(int index) {
+        FloatVector v = toFloats(DoubleVector.fromArray(DOUBLE_SPECIES, array, index), 0);
+        for (int p = 1; p < PARTS; p++) {
+            int i = index + p * DOUBLE_SPECIES_LEN;
+            v = v.blend(toFloats(DoubleVector.fromArray(DOUBLE_SPECIES, array, i), p), LANES[p]);
+        }
+        return v;
+    }
+
+    @Override
+    public FloatVector load(int index, VectorMask<Float> mask) {
+        long bits = mask.toLong();
+        FloatVector v = FloatVector.zero(SPECIES);
+        for (int p = 0; p < PARTS; p++) {
+            int i = index + p * DOUBLE_SPECIES_LEN;
+            var m = VectorMask.fromLong(DOUBLE_SPECIES, bits >>> (p * DOUBLE_SPECIES_LEN));
+            v = v.blend(toFloats(DoubleVector.fromArray(DOUBLE_SPECIES, array, i, m), p), LANES[p]);
+        }
+        return v;
+    }
+
+    @Override
+    public FloatVector load(int index, int[] indexMap) {
+        FloatVector v = FloatVector.zero(SPECIES);
+        for (int p = 0; p < PARTS; p++) {
+            int mapOffset = p * DOUBLE_SPECIES_LEN;
+            var d = DoubleVector.fromArray(DOUBLE_SPECIES, array, index, indexMap, mapOffset);
+            v = v.blend(toFloats(d, p), LANES[p]);
+        }
+        return v;
+    }
+
+    @Override
+    public void store(FloatVector v, int index) {
+        version.written();
+        for (int p = 0; p < PARTS; p++) {
+            toDoubles(v, p).intoArray(array, index + p * DOUBLE_SPECIES_LEN);
+        }
+    }
+
+    @Override
+    public void store(FloatVector v, int index, VectorMask<Float> mask) {
+        version.written();
+        long bits = mask.toLong();
+        for (int p = 0; p < PARTS; p++) {
+            var m = VectorMask.fromLong(DOUBLE_SPECIES, bits >>> (p * DOUBLE_SPECIES_LEN));
+            toDoubles(v, p).intoArray(array, index + p * DOUBLE_SPECIES_LEN, m);
+        }
+    }
+
+    @Override
+    public void read(int index, float[] dst, int dstIndex, int len) {
+        for (int i = 0; i < len; i++) {
+            dst[dstIndex + i] = (float) array[index + i];
+        }
+    }
+
+    @Override
+    public void write(int index, float[] src, int srcIndex, int len) {
+        version.written();
+        for (int i = 0; i < len; i++) {
+            array[index + i] = src[srcIndex + i];
+        }
+    }
+
+    @Override
+    public boolean isOffHeap() {
+        return false;
+    }
+
+    @Override
+    public MemorySegment segment() {
+        return MemorySegment.ofArray(array);
+    }
+
+    // the doubles into lanes from part * DOUBLE_SPECIES_LEN on, the other lanes are zero
+    private static FloatVector toFloats(DoubleVector d, int part) {
+        return (FloatVector) d.convertShape(VectorOperators.D2F, SPECIES, -part);
+    }
+
+    // the lanes from part * DOUBLE_SPECIES_LEN on
+    private static DoubleVector toDoubles(FloatVector v, int part) {
+        return (DoubleVector) v.convertShape(VectorOperators.F2D, DOUBLE_SPECIES, part);
+    }
+}
@@ -0,0 +1,195 @@
+package ndarray.storage;
+
+import static ndarray.util.Util.SPECIES;
+import static ndarray.util.Util.SPECIES_LEN;
+
+import java.lang.foreign.MemorySegment;
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.ShortVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorShape;
+import jdk.incubator.vector.VectorSpecies;
+import ndarray.util.DType;
+
+/**
+ * The bits of float16 or bfloat16 values. They widen to floats exactly, and floats are rounded to
+ * the nearest even when stored, so a value keeps the precision of the type between operations and
+ * nothing more. The conversions work on the bits in int lanes: a bfloat16 is the upper half of a
+ * float, a float16 has its exponent rebiased.
+ */
+public record HalfStorage(short[] array, DType dtype, Version version) implements Storage {
+
+    // a short per float lane, at least the smallest vector shape
+    private static final VectorSpecies<Short> SHORTS =
+            VectorSpecies.of(short.class, VectorShape.forBitSize(Math.max(64, SPECIES_LEN * 16)));
+    private static final VectorSpecies<Integer> INTS =
+            VectorSpecies.of(int.class, SPECIES.vectorShape());
+
+    // the short lanes that hold float lanes, all of them unless the floats are fewer than 4
+    private static final boolean WIDE = SHORTS.length() > SPECIES_LEN;
+    private static final VectorMask<Short> FIRST = SHORTS.indexInRange(0, SPECIES_LEN);
+
+    // float16 exponents are biased by 15 and float exponents by 127, 2^(127 - 15) moves the
+    // shifted bits of a float16 from one bias to the other, subnormals included
+    private static final float REBIAS = 0x1p112f;
+    // adding it to a float below the float16 normals leaves the rounded float16 bits at the bottom
+    private static final int SUBNORMAL = (127 - 15 + 23 - 10 + 1) << 23;
+
+    public HalfStorage {
+        if (dtype != DType.FLOAT16 && dtype != DType.BFLOAT16) {
+            throw new IllegalArgumentException("%s is not held in shorts".formatted(dtype));
+        }
+    }
+
+    public HalfStorage(short[] array, DType dtype) {
+        this(array, dtype, new Version());
+    }
+
+    @Override
+    public int size() {
+        return array.length;
+    }
+
+    @Override
+    public float get(int index) {
+        return dtype == DType.FLOAT16
+                ? Float.float16ToFloat(array[index])
+                : Float.intBitsToFloat(array[index] << 16);
+    }
+
+    @Override
+    public void set(int index, float v) {
+        version.written();
+        array[index] = dtype == DType.FLOAT16 ? Float.floatToFloat16(v) : toBFloat16(v);
+    }
+
+    @Override
+    public FloatVector load(int index) {
+        return toFloats(
+                WIDE
+                        ? ShortVector.fromArray(SHORTS, array, index, FIRST)
+                        : ShortVector.fromArray(SHORTS, array, index));
+    }
+
+    @Override
+    public FloatVector load(int index, VectorMask<Float> mask) {
+        var m = VectorMask.fromLong(SHORTS, mask.toLong());
+        return toFloats(ShortVector.fromArray(SHORTS, array, index, m));
+    }
+
+    // gathers of shorts take an index per short lane
+    @Override
+    public FloatVector load(int index, int[] indexMap) {
+        float[] lanes = new float[SPECIES_LEN];
+        for (int i = 0; i < lanes.length; i++) {
+            lanes[i] = get(index + indexMap[i]);
+        }
+        return FloatVector.fromArray(SPECIES, lanes, 0);
+    }
+
+    @Override
+    public void store(FloatVector v, int index) {
+        version.written();
+        if (WIDE) {
+            toShorts(v).intoArray(array, index, FIRST);
+        } else {
+            toShorts(v).intoArray(array, index);
+        }
+    }
+
+    @Override
+    public void store(FloatVector v, int index, VectorMask<Float> mask) {
+        version.written();
+        toShorts(v).intoArray(array, index, VectorMask.fromLong(SHORTS, mask.toLong()));
+    }
+
+    @Override
+    public void read(int index, float[] dst, int dstIndex, int len) {
+        int i = 0;
+        for (; i <= len - SPECIES_LEN; i += SPECIES_LEN) {
+            load(index + i).intoArray(dst, dstIndex + i);
+        }
+        for (; i < len; i++) {
+            dst[dstIndex + i] = get(index + i);
+        }
+    }
+
+    @Override
+    public void write(int index, float[] src, int srcIndex, int len) {
+        version.written();
+        int i = 0;
+        for (; i <= len - SPECIES_LEN; i += SPECIES_LEN) {
+            store(FloatVector.fromArray(SPECIES, src, srcIndex + i), index + i);
+        }
+        for (; i < len; i++) {
+            set(index + i, src[srcIndex + i]);
+        }
+    }
+
+    @Override
+    public boolean isOffHeap() {
+        return false;
+    }
+
+    @Override
+    public MemorySegment segment() {
+        return MemorySegment.ofArray(array);
+    }
+
+    // rounded to the nearest even, NaN stays a quiet NaN
+    static short toBFloat16(float v) {
+        int bits = Float.floatToRawIntBits(v);
+        if (v != v) {
+            return (short) ((bits >>> 16) | 0x40);
+        }
+        return (short) ((bits + 0x7FFF + ((bits >>> 16) & 1)) >>> 16);
+    }
+
+    private FloatVector toFloats(ShortVector s) {
+        var h = (IntVector) s.convertShape(VectorOperators.ZERO_EXTEND_S2I, INTS, 0);
+        return dtype == DType.FLOAT16 ? fromFloat16(h) : fromBFloat16(h);
+    }
+
+    private ShortVector toShorts(FloatVector v) {
+        var h = dtype == DType.FLOAT16 ? toFloat16(v) : toBFloat16(v);
+        return (ShortVector) h.convertShape(VectorOperators.I2S, SHORTS, 0);
+    }
+
+    private static FloatVector fromBFloat16(IntVector h) {
+        return h.lanewise(VectorOperators.LSHL, 16).reinterpretAsFloats();
+    }
+
+    private static FloatVector fromFloat16(IntVector h) {
+        var sign = h.and(0x8000).lanewise(VectorOperators.LSHL, 16);
+        var bits = h.and(0x7FFF).lanewise(VectorOperators.LSHL, 13);
+        var finite = bits.reinterpretAsFloats().mul(REBIAS).reinterpretAsInts();
+        // infinities and NaN keep their mantissa under the float exponent of all ones
+        var special = bits.compare(VectorOperators.GE, 0x7C00 << 13);
+        return finite.blend(bits.or(0x7F800000), special).or(sign).reinterpretAsFloats();
+    }
+
+    private static IntVector toBFloat16(FloatVector v) {
+        var bits = v.reinterpretAsInts();
+        var odd = bits.lanewise(VectorOperators.LSHR, 16).and(1);
+        var h = bits.add(odd.add(0x7FFF)).lanewise(VectorOperators.LSHR, 16);
+        var nan = v.test(VectorOperators.IS_NAN).cast(INTS);
+        return h.blend(bits.lanewise(VectorOperators.LSHR, 16).or(0x40), nan);
+    }
+
+    private static IntVector toFloat16(FloatVector v) {
+        var bits = v.reinterpretAsInts();
+        var sign = bits.and(0x80000000).lanewise(VectorOperators.LSHR, 16);
+        var x = bits.and(0x7FFFFFFF);
+        // normals: the exponent rebiased and the 13 dropped bits rounded to the nearest even, a
+        // carry out of the mantissa goes into the exponent and can make it infinite
+        var odd = x.lanewise(VectorOperators.LSHR, 13).and(1);
+        var h = x.add(((15 - 127) << 23) + 0xFFF).add(odd).lanewise(VectorOperators.LSHR, 13);
+        var magic = Float.intBitsToFloat(SUBNORMAL);
+        var small = x.reinterpretAsFloats().add(magic).reinterpretAsInts().sub(SUBNORMAL);
+        h = h.blend(small, x.compare(VectorOperators.LT, (127 - 14) << 23));
+        h = h.blend(0x7C00, x.compare(VectorOperators.GE, (127 + 16) << 23));
+        return h.blend(0x7E00, x.compare(VectorOperators.GT, 0x7F800000)).or(sign);
+    }
+}
@@ -0,0 +1,78 @@
+package ndarray.storage;
+
+import static ndarray.util.Util.SPECIES;
+
+import java.lang.foreign.MemorySegment;
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorMask;
+
+public record HeapStorage(float[] array, Version version) implements Storage {
+
+    public HeapStorage(float[] array) {
+        this(array, new Version());
+    }
+
+    @Override
+    public int size() {
+        return array.length;
+    }
+
+    @Override
+    public float get(int index) {
+        return array[index];
+    }
+
+    @Override
+    public void set(int index, float v) {
+        version.written();
+        array[index] = v;
+    }
+
+    @Override
+    public FloatVector load(int index) {
+        return FloatVector.fromArray(SPECIES, array, index);
+    }
+
+    @Override
+    public FloatVector load(int index, VectorMask<Float> mask) {
+        return FloatVector.fromArray(SPECIES, array, index, mask);
+    }
+
+    @Override
+    public FloatVector load(int index, int[] indexMap) {
+        return FloatVector.fromArray(SPECIES, array, index, indexMap, 0);
+    }
+
+    @Override
+    public void store(FloatVector v, int index) {
+        version.written();
+        v.intoArray(array, index);
+    }
+
+    @Override
+    public void store(FloatVector v, int index, VectorMask<Float> mask) {
+        version.written();
+        v.intoArray(array, index, mask);
+    }
+
+    @Override
+    public void read(int index, float[] dst, int dstIndex, int len) {
+        System.arraycopy(array, index, dst, dstIndex, len);
+    }
+
+    @Override
+    public void write(int index, float[] src, int srcIndex, int len) {
+        version.written();
+        System.arraycopy(src, srcIndex, array, index, len);
+    }
+
+    @Override
+    public boolean isOffHeap() {
+        return false;
+    }
+
+    @Override
+    public MemorySegment segment() {
+        return MemorySegment.ofArray(array);
+    }
+}
@@ -0,0 +1,115 @@
+package ndarray.storage;
+
+import static ndarray.util.Util.SPECIES;
+
+import java.lang.foreign.MemorySegment;
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+import ndarray.util.DType;
+
+// ints convert lane by lane to the floats of a vector of the same size
+public record IntStorage(int[] array, Version version) implements Storage {
+
+    private static final VectorSpecies<Integer> INTS =
+            VectorSpecies.of(int.class, SPECIES.vectorShape());
+
+    public IntStorage(int[] array) {
+        this(array, new Version());
+    }
+
+    @Override
+    public DType dtype() {
+        return DType.INT32;
+    }
+
+    @Override
+    public int size() {
+        return array.length;
+    }
+
+    @Override
+    public float get(int index) {
+        return array[index];
+    }
+
+    @Override
+    public void set(int index, float v) {
+        version.written();
+        array[index] = (int) v;
+    }
+
+    @Override
+    public double getDouble(int index) {
+        return array[index];
+    }
+
+    @Override
+    public void setDouble(int index, double v) {
+        version.written();
+        array[index] = (int) v;
+    }
+
+    @Override
+    public FloatVector load(int index) {
+        return toFloats(IntVector.fromArray(INTS, array, index));
+    }
+
+    @Override
+    public FloatVector load(int index, VectorMask<Float> mask) {
+        return toFloats(IntVector.fromArray(INTS, array, index, mask.cast(INTS)));
+    }
+
+    @Override
+    public FloatVector load(int index, int[] indexMap) {
+        return toFloats(IntVector.fromArray(INTS, array, index, indexMap, 0));
+    }
+
+    @Override
+    public void store(FloatVector v, int index) {
+        version.written();
+        toInts(v).intoArray(array, index);
+    }
+
+    @Override
+    public void store(FloatVector v, int index, VectorMask<Float> mask) {
+        version.written();
+        toInts(v).intoArray(array, index, mask.cast(INTS));
+    }
+
+    @Override
+    public void read(int index, float[] dst, int dstIndex, int len) {
+        for (int i = 0; i < len; i++) {
+            dst[dstIndex + i] = array[index + i];
+        }
+    }
+
+    @Override
+    public void write(int index, float[] src, int srcIndex, int len) {
+        version.written();
+        for (int i = 0; i < len; i++) {
+            array[index + i] = (int) src[srcIndex + i];
+        }
+    }
+
+    @Override
+    public boolean isOffHeap() {
+        return false;
+    }
+
+    @Override
+    public MemorySegment segment() {
+        return MemorySegment.ofArray(array);
+    }
+
+    private static FloatVector toFloats(IntVector v) {
+        return (FloatVector) v.convert(VectorOperators.I2F, 0);
+    }
+
+    // truncated toward zero, like a cast
+    private static IntVector toInts(FloatVector v) {
+        return (IntVector) v.convert(VectorOperators.F2I, 0);
+    }
+}
@@ -0,0 +1,97 @@
+package ndarray.storage;
+
+import static ndarray.util.Util.SPECIES;
+
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.ByteOrder;
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorMask;
+
+// floats are little-endian, as in raw float files and .npy '<f4' data, and native on x86 and ARM
+public record SegmentStorage(MemorySegment segment, Version version) implements Storage {
+
+    private static final ByteOrder ORDER = ByteOrder.LITTLE_ENDIAN;
+
+    // a mapped file may put the data at any byte offset
+    private static final ValueLayout.OfFloat LAYOUT =
+            ValueLayout.JAVA_FLOAT_UNALIGNED.withOrder(ORDER);
+
+    public SegmentStorage {
+        if (segment.byteSize() % Float.BYTES != 0
+                || segment.byteSize() / Float.BYTES > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException(
+                    "segment of %d bytes does not hold an int-indexed float array"
+                            .formatted(segment.byteSize()));
+        }
+    }
+
+    public SegmentStorage(MemorySegment segment) {
+        this(segment, new Version());
+    }
+
+    @Override
+    public int size() {
+        return (int) (segment.byteSize() / Float.BYTES);
+    }
+
+    @Override
+    public float get(int index) {
+        return segment.getAtIndex(LAYOUT, index);
+    }
+
+    @Override
+    public void set(int index, float v) {
+        version.written();
+        segment.setAtIndex(LAYOUT, index, v);
+    }
+
+    @Override
+    public FloatVector load(int index) {
+        return FloatVector.fromMemorySegment(SPECIES, segment, (long) index * Float.BYTES, ORDER);
+    }
+
+    @Override
+    public FloatVector load(int index, VectorMask<Float> mask) {
+        return FloatVector.fromMemorySegment(
+                SPECIES, segment, (long) index * Float.BYTES, ORDER, mask);
+    }
+
+    // there are no gathers from a MemorySegment
+    @Override
+    public FloatVector load(int index, int[] indexMap) {
+        float[] lanes = new float[SPECIES.length()];
+        for (int i = 0; i < lanes.length; i++) {
+            lanes[i] = get(index + indexMap[i]);
+        }
+        return FloatVector.fromArray(SPECIES, lanes, 0);
+    }
+
+    @Override
+    public void store(FloatVector v, int index) {
+        version.written();
+        v.intoMemorySegment(segment, (long) index * Float.BYTES, ORDER);
+    }
+
+    @Override
+    public void store(FloatVector v, int index, VectorMask<Float> mask) {
+        version.written();
+        v.intoMemorySegment(segment, (long) index * Float.BYTES, ORDER, mask);
+    }
+
+    @Override
+    public void read(int index, float[] dst, int dstIndex, int len) {
+        MemorySegment.copy(segment, LAYOUT, (long) index * Float.BYTES, dst, dstIndex, len);
+    }
+
+    @Override
+    public void write(int index, float[] src, int srcIndex, int len) {
+        version.written();
+        MemorySegment.copy(src, srcIndex, segment, LAYOUT, (long) index * Float.BYTES, len);
+    }
+
+    @Override
+    public boolean isOffHeap() {
+        return true;
+    }
+}
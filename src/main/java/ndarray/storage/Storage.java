@@ -0,0 +1,87 @@
+package ndarray.storage;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorMask;
+import ndarray.util.DType;
+
+/**
+ * The flat buffer under an NDArray, either a float[] on the heap or a MemorySegment, which can be
+ * off-heap memory owned by an Arena or a mapped file, or an array of another {@link DType}. Vector
+ * loads and stores cover {@code Util.SPECIES_LEN} elements starting at an element index, and the
+ * storages of other types convert their elements to and from the float lanes as they go.
+ */
+public sealed interface Storage
+        permits HeapStorage, SegmentStorage, DoubleStorage, IntStorage, HalfStorage, ByteStorage {
+
+    // cache line alignment for off-heap buffers
+    long ALIGNMENT = 64;
+
+    static Storage of(float[] array) {
+        return new HeapStorage(array);
+    }
+
+    static Storage of(MemorySegment segment) {
+        return new SegmentStorage(segment);
+    }
+
+    /** Zeroed off-heap storage of size floats, freed when the arena is closed. */
+    static Storage allocate(Arena arena, int size) {
+        return new SegmentStorage(arena.allocate((long) size * Float.BYTES, ALIGNMENT));
+    }
+
+    /** Zeroed storage of size elements of dtype on the heap. */
+    static Storage allocate(DType dtype, int size) {
+        return switch (dtype) {
+            case FLOAT32 -> new HeapStorage(new float[size]);
+            case FLOAT64 -> new DoubleStorage(new double[size]);
+            case INT32 -> new IntStorage(new int[size]);
+            case FLOAT16, BFLOAT16 -> new HalfStorage(new short[size], dtype);
+            case BOOL, UINT8, INT8 -> new ByteStorage(new byte[size], dtype);
+        };
+    }
+
+    default DType dtype() {
+        return DType.FLOAT32;
+    }
+
+    int size();
+
+    // moved by the writes below, so copies of the data can tell whether they are stale
+    Version version();
+
+    float get(int index);
+
+    void set(int index, float v);
+
+    // the element itself for float64 and int32, which floats do not hold exactly
+    default double getDouble(int index) {
+        return get(index);
+    }
+
+    default void setDouble(int index, double v) {
+        set(index, (float) v);
+    }
+
+    FloatVector load(int index);
+
+    FloatVector load(int index, VectorMask<Float> mask);
+
+    // lane i from index + indexMap[i]
+    FloatVector load(int index, int[] indexMap);
+
+    void store(FloatVector v, int index);
+
+    void store(FloatVector v, int index, VectorMask<Float> mask);
+
+    // copies len floats starting at index into dst
+    void read(int index, float[] dst, int dstIndex, int len);
+
+    // copies len floats of src to the storage starting at index
+    void write(int index, float[] src, int srcIndex, int len);
+
+    boolean isOffHeap();
+
+    MemorySegment segment();
+}
@@ -0,0 +1,31 @@
+package ndarray.storage;
+
+/**
+ * Tells copies of a storage, like the packed panels of a matmul operand, whether it has been
+ * written since they were taken. Only the first write after a {@link #snapshot} moves the count,
+ * the others just read a flag, so the writes of parallel loops do not fight over a cache line.
+ */
+public final class Version {
+
+    // plain fields, the writes of a parallel loop are seen once the loop has joined
+    private boolean watched;
+    private int count;
+
+    /** The count a copy taken now stays current for, until the next write. */
+    public int snapshot() {
+        watched = true;
+        return count;
+    }
+
+    public boolean isCurrent(int snapshot) {
+        return count == snapshot;
+    }
+
+    /** Called by every write to the storage, writes that go around it must call it themselves. */
+    public void written() {
+        if (watched) {
+            watched = false;
+            count++;
+        }
+    }
+}
@@ -1,21 +1,314 @@
 package ndarray.util;
 
-import java.util.concurrent.ExecutionException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.IntConsumer;
-import java.util.stream.IntStream;
 
-// https://github.com/lessthanoptimal/ejml/blob/SNAPSHOT/main/ejml-core/src/pabeles/concurrency/ConcurrencyOps.java
-public class ConcurrentUtil {
+/**
+ * Where the parallel loops of the library run. A loop splits its range into chunks of a grain of
+ * indices; the calling thread takes chunks like the helpers it hands to the executor, so a loop
+ * never waits on a chunk nobody has started and a busy executor only means fewer helpers.
+ *
+ * <p>By default the helpers run on a {@link ForkJoinPool} of {@value #POOL_SIZE_PROPERTY} threads,
+ * all the cores unless set. A service that keeps its own threads can run operations on its
+ * executor instead, for the loops they start on the calling thread:
+ *
+ * <pre>{@code
+ * try (var scope = ConcurrentUtil.executeOn(executor, 4)) {
+ *     NDArray y = x.matmul(w).sum(1);
+ * }
+ * }</pre>
+ *
+ * <p>Loops do not multiply the threads when they nest. The chunks of a loop run with the threads
+ * of the loop shared out between them, so a loop inside a chunk runs inline once the outer one
+ * has a chunk per thread. A loop started on a worker of some other {@link ForkJoinPool}, a
+ * parallel stream say, runs inline unless {@link #executeOn} says otherwise, and code that already
+ * spreads its work over threads of its own can run each share {@link #sequential()}.
+ */
+public final class ConcurrentUtil {
 
-    private static final ForkJoinPool POOL = new ForkJoinPool();
+    public static final String POOL_SIZE_PROPERTY = "ndarray.concurrent.poolSize";
 
+    // chunks per thread when the caller gives no grain, some slack to even out the load
+    private static final int CHUNKS_PER_THREAD = 4;
+
+    private static final ThreadLocal<Scope> CURRENT = new ThreadLocal<>();
+
+    private static volatile ForkJoinPool pool = new ForkJoinPool(initialPoolSize());
+
+    /** Computes the indices from inclusive to exclusive. */
+    @FunctionalInterface
+    public interface Range {
+        void run(int from, int to);
+    }
+
+    /** Computes the rows from rowFrom and the columns from colFrom, to exclusive. */
+    @FunctionalInterface
+    public interface Tile {
+        void run(int rowFrom, int rowTo, int colFrom, int colTo);
+    }
+
+    /** The executor of the loops started on a thread until the scope is closed. */
+    public static final class Scope implements AutoCloseable {
+        private final Scope parent;
+        private final Executor executor;
+        private final int parallelism;
+
+        private Scope(Scope parent, Executor executor, int parallelism) {
+            this.parent = parent;
+            this.executor = executor;
+            this.parallelism = parallelism;
+        }
+
+        /** Goes back to the executor of the enclosing scope, or to the pool. */
+        @Override
+        public void close() {
+            if (CURRENT.get() != this) {
+                throw new IllegalStateException("scopes must be closed in the reverse order");
+            }
+            CURRENT.set(parent);
+        }
+    }
+
+    private ConcurrentUtil() {}
+
+    public static int getPoolSize() {
+        return pool.getParallelism();
+    }
+
+    /** Replaces the pool by one of size threads, the loops running on the old one finish there. */
+    public static synchronized void setPoolSize(int size) {
+        if (size <= 0) {
+            throw new IllegalArgumentException("pool size must be positive: %d".formatted(size));
+        }
+        if (size != pool.getParallelism()) {
+            ForkJoinPool old = pool;
+            pool = new ForkJoinPool(size);
+            old.shutdown();
+        }
+    }
+
+    /**
+     * Runs the loops started on this thread on executor, with at most parallelism threads each,
+     * the caller included, until the returned scope is closed. Scopes nest.
+     */
+    public static Scope executeOn(Executor executor, int parallelism) {
+        if (parallelism <= 0) {
+            throw new IllegalArgumentException(
+                    "parallelism must be positive: %d".formatted(parallelism));
+        }
+        Scope scope = new Scope(CURRENT.get(), executor, parallelism);
+        CURRENT.set(scope);
+        return scope;
+    }
+
+    /**
+     * Caps the threads of the loops started on this thread at parallelism, on the executor they
+     * would use anyway, until the returned scope is closed. It never raises the cap, so inside
+     * {@link #sequential()} or the chunk of a loop it can only lower the share already given.
+     */
+    public static Scope withParallelism(int parallelism) {
+        Scope scope = CURRENT.get();
+        return executeOn(
+                scope != null ? scope.executor : pool, Math.min(parallelism, getParallelism()));
+    }
+
+    /** Runs the loops started on this thread inline until the returned scope is closed. */
+    public static Scope sequential() {
+        return withParallelism(1);
+    }
+
+    /** The threads a loop started on this thread may use, the caller included. */
+    public static int getParallelism() {
+        Scope scope = CURRENT.get();
+        if (scope != null) {
+            return scope.parallelism;
+        }
+        // already one of many tasks of a pool, another fan-out would only oversubscribe it
+        return Thread.currentThread() instanceof ForkJoinWorkerThread ? 1 : pool.getParallelism();
+    }
+
+    /** Runs an empty task on the executor and waits for it, the least a helper costs. */
+    public static void roundTrip() {
+        Scope scope = CURRENT.get();
+        CompletableFuture.runAsync(() -> {}, scope != null ? scope.executor : pool).join();
+    }
+
+    /** Runs consumer for each index in [start, endExclusive), in chunks of a grain of its own. */
     public static void loopFor(int start, int endExclusive, IntConsumer consumer) {
-        try {
-            POOL.submit(() -> IntStream.range(start, endExclusive).parallel().forEach(consumer))
-                    .get();
-        } catch (InterruptedException | ExecutionException e) {
-            throw new RuntimeException(e);
+        loopFor(
+                start,
+                endExclusive,
+                (from, to) -> {
+                    for (int i = from; i < to; i++) {
+                        consumer.accept(i);
+                    }
+                });
+    }
+
+    /** Runs range over [start, endExclusive) in a few chunks per thread. */
+    public static void loopFor(int start, int endExclusive, Range range) {
+        long len = (long) endExclusive - start;
+        int grain = (int) Math.max(1, len / ((long) getParallelism() * CHUNKS_PER_THREAD));
+        loopFor(start, endExclusive, grain, range);
+    }
+
+    /** Runs range over [start, endExclusive) in chunks of grain indices, the last one shorter. */
+    public static void loopFor(int start, int endExclusive, int grain, Range range) {
+        if (grain <= 0) {
+            throw new IllegalArgumentException("grain must be positive: %d".formatted(grain));
+        }
+        long len = (long) endExclusive - start;
+        if (len <= 0) {
+            return;
+        }
+
+        int chunks = (int) ((len + grain - 1) / grain);
+        int parallelism = getParallelism();
+        int threads = Math.min(chunks, parallelism);
+        if (threads == 1) {
+            range.run(start, endExclusive);
+            return;
+        }
+
+        // the loops nested in the chunks share the threads out
+        Scope scope = CURRENT.get();
+        Executor executor = scope != null ? scope.executor : pool;
+        Scope nested = new Scope(null, executor, Math.max(1, parallelism / threads));
+        new Loop(start, endExclusive, grain, chunks, range, nested).run(executor, threads - 1);
+    }
+
+    /**
+     * Runs tile over the rows by cols grid in tiles of tileRows by tileCols, the last ones along
+     * each axis smaller. The tiles are handed out row by row.
+     */
+    public static void loopFor2D(int rows, int cols, int tileRows, int tileCols, Tile tile) {
+        if (tileRows <= 0 || tileCols <= 0) {
+            throw new IllegalArgumentException(
+                    "tiles must be positive: %d X %d".formatted(tileRows, tileCols));
+        }
+        if (rows <= 0 || cols <= 0) {
+            return;
+        }
+
+        int rowTiles = (rows + tileRows - 1) / tileRows;
+        int colTiles = (cols + tileCols - 1) / tileCols;
+        loopFor(
+                0,
+                Math.multiplyExact(rowTiles, colTiles),
+                1,
+                (from, to) -> {
+                    for (int t = from; t < to; t++) {
+                        int row = t / colTiles * tileRows;
+                        int col = t % colTiles * tileCols;
+                        tile.run(
+                                row,
+                                Math.min(rows, row + tileRows),
+                                col,
+                                Math.min(cols, col + tileCols));
+                    }
+                });
+    }
+
+    private static int initialPoolSize() {
+        return Math.max(
+                1,
+                Integer.getInteger(
+                        POOL_SIZE_PROPERTY, Runtime.getRuntime().availableProcessors()));
+    }
+
+    // the chunks go to whoever asks next, the caller waits only for the ones helpers took
+    private static final class Loop implements Runnable {
+        private final int start;
+        private final int end;
+        private final int grain;
+        private final int chunks;
+        private final Range range;
+        private final Scope nested;
+
+        private final AtomicInteger next = new AtomicInteger();
+        private final CountDownLatch done;
+        private final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+        Loop(int start, int end, int grain, int chunks, Range range, Scope nested) {
+            this.start = start;
+            this.end = end;
+            this.grain = grain;
+            this.chunks = chunks;
+            this.range = range;
+            this.nested = nested;
+            this.done = new CountDownLatch(chunks);
+        }
+
+        void run(Executor executor, int helpers) {
+            try {
+                for (int i = 0; i < helpers; i++) {
+                    executor.execute(this);
+                }
+            } catch (RejectedExecutionException e) {
+                // fewer helpers, the caller does the rest
+            }
+            run();
+
+            try {
+                // a pool the caller works for may start a spare thread meanwhile
+                ForkJoinPool.managedBlock(
+                        new ForkJoinPool.ManagedBlocker() {
+                            @Override
+                            public boolean block() throws InterruptedException {
+                                done.await();
+                                return true;
+                            }
+
+                            @Override
+                            public boolean isReleasable() {
+                                return done.getCount() == 0;
+                            }
+                        });
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            }
+
+            Throwable e = failure.get();
+            if (e instanceof RuntimeException r) {
+                throw r;
+            }
+            if (e instanceof Error r) {
+                throw r;
+            }
+            if (e != null) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        @Override
+        public void run() {
+            Scope previous = CURRENT.get();
+            CURRENT.set(nested);
+            try {
+                for (int c = next.getAndIncrement(); c < chunks; c = next.getAndIncrement()) {
+                    try {
+                        // after a failure the other chunks are skipped
+                        if (failure.get() == null) {
+                            long from = start + (long) c * grain;
+                            range.run((int) from, (int) Math.min(end, from + grain));
+                        }
+                    } catch (Throwable e) {
+                        failure.compareAndSet(null, e);
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            } finally {
+                CURRENT.set(previous);
+            }
         }
     }
 }
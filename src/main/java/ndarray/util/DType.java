@@ -0,0 +1,70 @@
+package ndarray.util;
+
+/**
+ * The element type of an NDArray. Arrays of every type are computed on in float32 lanes, converted
+ * as they are loaded and stored, except that float64 results are computed in double and int32
+ * results exactly: from integers in int, which wraps on overflow like Java's arithmetic, and from
+ * floats in double. That covers element-wise operations, reductions and matrix products, integer
+ * sums and products accumulate in int. Integers in a float32 result are exact within 2^24.
+ *
+ * <p>A value stored into an integer type is truncated toward zero like Java's casts: into int32 it
+ * saturates, into int8 or uint8 it wraps. A store into a boolean keeps whether the value is not
+ * zero.
+ *
+ * <p>The 16-bit floats are a storage format: they halve the memory of float32 arrays, are computed
+ * on as float32 and rounded to the nearest even when stored. Reductions and matrix products of them
+ * accumulate in float32 and round once at the end.
+ *
+ * <p>Operations on two types give their {@link #promote promoted} type.
+ */
+public enum DType {
+    BOOL(1),
+    UINT8(1),
+    INT8(1),
+    INT32(4),
+    // IEEE 754 binary16, 5 exponent and 10 mantissa bits, finite up to 65504
+    FLOAT16(2),
+    // the upper half of a float32, its range with 7 mantissa bits
+    BFLOAT16(2),
+    FLOAT32(4),
+    FLOAT64(8);
+
+    private final int byteSize;
+
+    DType(int byteSize) {
+        this.byteSize = byteSize;
+    }
+
+    public int byteSize() {
+        return byteSize;
+    }
+
+    public boolean isFloatingPoint() {
+        return compareTo(FLOAT16) >= 0;
+    }
+
+    /** The type of quotients and transcendental functions of this type, float32 for integers. */
+    public DType toFloatingPoint() {
+        return isFloatingPoint() ? this : FLOAT32;
+    }
+
+    /** The type sums and products of this type are kept in, int32 for integers and booleans. */
+    public DType toAccumulator() {
+        return isFloatingPoint() ? this : INT32;
+    }
+
+    /**
+     * The type holding the values of both a and b, the wider one in the order of the constants,
+     * with int32 for int8 with uint8 and float32 for float16 with bfloat16. Like PyTorch and
+     * unlike NumPy, integers with a floating point type stay that type.
+     */
+    public static DType promote(DType a, DType b) {
+        if ((a == INT8 && b == UINT8) || (a == UINT8 && b == INT8)) {
+            return INT32;
+        }
+        if ((a == FLOAT16 && b == BFLOAT16) || (a == BFLOAT16 && b == FLOAT16)) {
+            return FLOAT32;
+        }
+        return a.compareTo(b) >= 0 ? a : b;
+    }
+}
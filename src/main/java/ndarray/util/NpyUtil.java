@@ -0,0 +1,78 @@
+package ndarray.util;
+
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+// https://numpy.org/doc/stable/reference/generated/numpy.lib.format.html
+public class NpyUtil {
+
+    private static final byte[] MAGIC = {(byte) 0x93, 'N', 'U', 'M', 'P', 'Y'};
+
+    private static final ValueLayout.OfShort U16 =
+            ValueLayout.JAVA_SHORT_UNALIGNED.withOrder(ByteOrder.LITTLE_ENDIAN);
+    private static final ValueLayout.OfInt U32 =
+            ValueLayout.JAVA_INT_UNALIGNED.withOrder(ByteOrder.LITTLE_ENDIAN);
+
+    private static final Pattern DESCR = Pattern.compile("'descr'\\s*:\\s*'([^']*)'");
+    private static final Pattern FORTRAN_ORDER =
+            Pattern.compile("'fortran_order'\\s*:\\s*(True|False)");
+    private static final Pattern SHAPE = Pattern.compile("'shape'\\s*:\\s*\\(([^)]*)\\)");
+
+    /** The parsed header, the array data starts dataOffset bytes into the file. */
+    public record Header(String descr, int[] shape, Flags.Contiguous order, long dataOffset) {}
+
+    public static boolean isNpy(MemorySegment file) {
+        return file.byteSize() >= MAGIC.length
+                && Arrays.equals(
+                        file.asSlice(0, MAGIC.length).toArray(ValueLayout.JAVA_BYTE), MAGIC);
+    }
+
+    public static Header readHeader(MemorySegment file) {
+        if (!isNpy(file) || file.byteSize() < 10) {
+            throw new IllegalArgumentException("not a .npy file");
+        }
+
+        // version 1.0 stores the header length in 2 bytes, 2.0 and 3.0 in 4 bytes
+        int major = file.get(ValueLayout.JAVA_BYTE, 6);
+        long start = major == 1 ? 10 : 12;
+        long len =
+                major == 1
+                        ? Short.toUnsignedInt(file.get(U16, 8))
+                        : Integer.toUnsignedLong(file.get(U32, 8));
+        if (start + len > file.byteSize()) {
+            throw new IllegalArgumentException("truncated .npy header");
+        }
+
+        String header =
+                new String(
+                        file.asSlice(start, len).toArray(ValueLayout.JAVA_BYTE),
+                        major >= 3 ? StandardCharsets.UTF_8 : StandardCharsets.ISO_8859_1);
+
+        String descr = find(DESCR, header);
+        Flags.Contiguous order =
+                find(FORTRAN_ORDER, header).equals("True")
+                        ? Flags.Contiguous.F
+                        : Flags.Contiguous.C;
+        int[] shape =
+                Arrays.stream(find(SHAPE, header).split(","))
+                        .map(String::trim)
+                        .filter(s -> !s.isEmpty())
+                        .mapToInt(Integer::parseInt)
+                        .toArray();
+
+        return new Header(descr, shape, order, start + len);
+    }
+
+    private static String find(Pattern pattern, String header) {
+        Matcher matcher = pattern.matcher(header);
+        if (!matcher.find()) {
+            throw new IllegalArgumentException("malformed .npy header: " + header.strip());
+        }
+        return matcher.group(1);
+    }
+}
@@ -2,24 +2,48 @@ package ndarray.util;
 
 import java.text.DecimalFormat;
 import java.util.Arrays;
-import java.util.Iterator;
 import java.util.function.Function;
 import java.util.stream.Collectors;
 import ndarray.NDArray;
+import ndarray.NDArrays;
+import ndarray.storage.Storage;
 
 public class PresentUtil {
 
     public static float[] toArray(NDArray a) {
+        return toArray(a, new float[a.getSize()]);
+    }
+
+    // copies a in C order into the front of res
+    public static float[] toArray(NDArray a, float[] res) {
+        int size = a.getSize();
         if (a.getContiguous() == Flags.Contiguous.C) {
-            float[] array = a.getData().array();
-            int offset = a.getData().offset();
-            return Arrays.copyOfRange(array, offset, offset + a.getSize());
+            a.getData().storage().read(a.getData().offset(), res, 0, size);
+            return res;
+        }
+
+        NDArrays.copy(a, NDArrays.of(a.getShape(), res, Flags.Contiguous.C));
+        return res;
+    }
+
+    // the elements in C order, exactly for float64 and int32
+    public static double[] toDoubleArray(NDArray a) {
+        NDArray c = a.getContiguous() == Flags.Contiguous.C ? a : a.astype(a.getDType());
+        Storage storage = c.getData().storage();
+        int offset = c.getData().offset();
+        double[] res = new double[c.getSize()];
+        for (int i = 0; i < res.length; i++) {
+            res[i] = storage.getDouble(offset + i);
         }
+        return res;
+    }
 
-        Iterator<Float> it = a.iterator();
-        float[] res = new float[a.getSize()];
+    // the elements in C order truncated toward zero, exactly for int32
+    public static int[] toIntArray(NDArray a) {
+        double[] values = toDoubleArray(a);
+        int[] res = new int[values.length];
         for (int i = 0; i < res.length; i++) {
-            res[i] = it.next();
+            res[i] = (int) values[i];
         }
         return res;
     }
@@ -36,10 +60,10 @@ public class PresentUtil {
         float[][] res = new float[m][n];
 
         if (a.getContiguous() == Flags.Contiguous.C) {
-            float[] array = a.getData().array();
+            Storage storage = a.getData().storage();
             int offset = a.getData().offset();
             for (int i = 0; i < m; i++) {
-                System.arraycopy(array, offset + i * n, res[i], 0, n);
+                storage.read(offset + i * n, res[i], 0, n);
             }
             return res;
         }
@@ -98,10 +122,11 @@ public class PresentUtil {
                                 .mapToObj(String::valueOf)
                                 .collect(Collectors.joining(",", "(", ")"));
 
-        return "NDArray: %s %s %s\n"
+        return "NDArray: %s %s %s %s\n"
                 .formatted(
                         joinToStr.apply(a.getShape()),
                         joinToStr.apply(a.getStrides()),
-                        a.getContiguous());
+                        a.getContiguous(),
+                        a.getDType());
     }
 }
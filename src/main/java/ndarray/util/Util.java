@@ -10,6 +10,15 @@ public class Util {
     public static final VectorSpecies<Float> SPECIES = FloatVector.SPECIES_PREFERRED;
     public static final int SPECIES_LEN = SPECIES.length();
 
+    // doubles in vectors of the same size, half as many lanes
+    public static final VectorSpecies<Double> DOUBLE_SPECIES =
+            VectorSpecies.of(double.class, SPECIES.vectorShape());
+    public static final int DOUBLE_SPECIES_LEN = DOUBLE_SPECIES.length();
+
+    // ints in vectors of the same size, a lane per float lane
+    public static final VectorSpecies<Integer> INT_SPECIES =
+            VectorSpecies.of(int.class, SPECIES.vectorShape());
+
     public static int[] arrOf(int... a) {
         return a;
     }
@@ -45,6 +54,14 @@ public class Util {
         }
     }
 
+    public static void assertOutShape(NDArray out, int[] shape) {
+        if (!Arrays.equals(out.getShape(), shape)) {
+            throw new IllegalArgumentException(
+                    "out has shape %s, expected %s"
+                            .formatted(Arrays.toString(out.getShape()), Arrays.toString(shape)));
+        }
+    }
+
     public static boolean shapesEqual(NDArray a, NDArray b) {
         return ShapeUtil.shapesEqual(a.getShape(), b.getShape());
     }
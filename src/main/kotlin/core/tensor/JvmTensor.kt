@@ -1,7 +1,9 @@
 package core.tensor
 
+import ndarray.Epilogue
 import ndarray.NDArray
 import ndarray.NDArrays
+import ndarray.operator.ElementWiseUnaryOperator
 
 class JvmTensor(
     var data: NDArray,
@@ -78,11 +80,46 @@ class JvmTensor(
         }(this, x)
     }
 
-    override fun div(x: Tensor): Tensor = TODO()
+    override fun div(x: Tensor): Tensor {
+        return object : JvmBinaryOperator() {
+            override fun forward(left: NDArray, right: NDArray) = left.div(right)
 
-    override fun exp(): Tensor = TODO()
+            override fun backward(
+                outputGrad: NDArray,
+                left: NDArray,
+                right: NDArray
+            ): Pair<NDArray, NDArray> {
+                // d(a / b) = da / b - a * db / b^2
+                val leftGrad = outputGrad.div(right)
+                return Pair(
+                    sumBroadcastDimsGrad(leftGrad, left),
+                    sumBroadcastDimsGrad(leftGrad.mul(left).div(right).negi(), right))
+            }
+        }(this, x)
+    }
 
-    override fun log(): Tensor = TODO()
+    override fun exp(): Tensor {
+        return object : JvmUnaryOperator() {
+            override fun forward(input: NDArray): NDArray {
+                val output = input.exp()
+                saveForBackward(output)
+                return output
+            }
+
+            override fun backward(outputGrad: NDArray, input: NDArray): NDArray {
+                val (output) = this.savedNDArrays()
+                return outputGrad.mul(output)
+            }
+        }(this)
+    }
+
+    override fun log(): Tensor {
+        return object : JvmUnaryOperator() {
+            override fun forward(input: NDArray) = input.log()
+
+            override fun backward(outputGrad: NDArray, input: NDArray) = outputGrad.div(input)
+        }(this)
+    }
 
     override fun relu(): Tensor {
         return object : JvmUnaryOperator() {
@@ -125,13 +162,36 @@ class JvmTensor(
         }(this, x)
     }
 
+    override fun matmulRelu(x: Tensor): Tensor {
+        return object : JvmBinaryOperator() {
+            override fun forward(left: NDArray, right: NDArray): NDArray {
+                // relu is fused into the store of the matmul result
+                val output = left.matmul(right, Epilogue.of(ElementWiseUnaryOperator.RELU))
+                saveForBackward(output)
+                return output
+            }
+
+            override fun backward(
+                outputGrad: NDArray,
+                left: NDArray,
+                right: NDArray
+            ): Pair<NDArray, NDArray> {
+                val (output) = this.savedNDArrays()
+                val grad = NDArrays.perform(outputGrad, output) { a, b -> if (b > 0) a else 0F }
+                return Pair(
+                    first = grad.matmul(right.transpose()),
+                    second = grad.transpose().matmul(left).transpose())
+            }
+        }(this, x)
+    }
+
     override fun logSoftmax(): Tensor {
         return object : JvmUnaryOperator() {
             override fun forward(input: NDArray): NDArray {
-                // logsumexp
+                // logsumexp, the exponentials are summed as they are computed
                 val x = input
                 val c = x.max(1)
-                val logsumexp = x.sub(c.reshape(-1, 1)).exp().sum(1).log().add(c)
+                val logsumexp = x.lazy().sub(c.reshape(-1, 1)).exp().sum(1).log().add(c)
 
                 val output = x.sub(logsumexp.reshape(-1, 1))
                 saveForBackward(output)
@@ -140,7 +200,8 @@ class JvmTensor(
 
             override fun backward(outputGrad: NDArray, input: NDArray): NDArray {
                 val (output) = this.savedNDArrays()
-                return outputGrad.sub(output.exp().mul(outputGrad.sum(1).reshape(-1, 1)))
+                val sum = outputGrad.sum(1).reshape(-1, 1)
+                return outputGrad.lazy().sub(output.lazy().exp().mul(sum)).materialize()
             }
         }(this)
     }
@@ -153,19 +214,15 @@ class JvmTensor(
         val paramShape = param.shape
         val gradShape = grad.shape
 
-        var finalGrad = grad
-        for (k in gradShape.indices) {
-            val i = gradShape.size - k - 1
-            val j = paramShape.size - k - 1
-            if (j >= 0) {
-                if (gradShape[i] != paramShape[j]) {
-                    finalGrad = finalGrad.sum(i, true)
-                }
-            } else {
-                finalGrad = finalGrad.sum(0, false)
-            }
+        // the leading axes param lacks and the ones it is broadcast along, in one pass
+        val diff = gradShape.size - paramShape.size
+        val dims = gradShape.indices.filter { i ->
+            i < diff || gradShape[i] != paramShape[i - diff]
+        }
+        if (dims.isEmpty()) {
+            return grad
         }
-        return finalGrad
+        return grad.sum(dims.toIntArray(), true).reshape(*paramShape)
     }
 
     override fun toString(): String {
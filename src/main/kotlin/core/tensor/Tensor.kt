@@ -40,6 +40,8 @@ interface Tensor {
 
     fun matmul(x: Tensor): Tensor
 
+    fun matmulRelu(x: Tensor): Tensor = matmul(x).relu()
+
     fun exp(): Tensor
 
     fun log(): Tensor
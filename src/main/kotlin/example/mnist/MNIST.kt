@@ -5,6 +5,9 @@ import core.tensor.Tensor
 import core.tensor.Tensors
 import kotlin.math.absoluteValue
 import kotlin.random.Random
+import ndarray.NDArray
+import ndarray.NDArrayScope
+import ndarray.NDArrays
 import tools.ImageUtil
 import tools.ProgressBar
 import tools.RandomUtil
@@ -18,11 +21,25 @@ infix fun Float.closeTo(other: Float): Boolean {
 }
 
 data class SGD(val tensors: List<Tensor>, val lr: Float) {
+    // lr * grad of each tensor, reused by every step. They wrap plain FloatArrays, so an
+    // NDArrayScope never recycles them.
+    private val scaled = arrayOfNulls<NDArray>(tensors.size)
+
     fun step() {
-        for (t in tensors) {
+        for ((i, t) in tensors.withIndex()) {
             t as JvmTensor
-            val grad = t.grad!! as JvmTensor
-            t.data = t.data.sub(grad.data.mul(lr))
+            val grad = (t.grad!! as JvmTensor).data
+            val buffer =
+                scaled[i] ?: NDArrays.of(grad.shape, FloatArray(grad.size)).also { scaled[i] = it }
+            t.data.subi(grad.mul(lr, buffer))
+        }
+    }
+
+    // parameters and their accumulated gradients outlive the scope of a training step
+    fun keep(scope: NDArrayScope) {
+        for (t in tensors) {
+            scope.keep((t as JvmTensor).data)
+            t.grad?.let { scope.keep((it as JvmTensor).data) }
         }
     }
 }
@@ -40,7 +57,7 @@ class MnistNet(rand: Random = Rand) {
             requiresGrad = true)
 
     fun forward(x: Tensor): Tensor {
-        return x.matmul(l1).relu().matmul(l2).logSoftmax()
+        return x.matmulRelu(l1).matmul(l2).logSoftmax()
     }
 }
 
@@ -53,27 +70,33 @@ class MNIST(private val rand: Random = Rand) {
 
     fun train(BS: Int = 128) {
         ProgressBar.loopFor(2500, "Training") {
-            val sampIdxes = RandomUtil.randInt(BS, 0 until train.size(), rand)
+            // the intermediate arrays of a step go back to the buffer pool at its end
+            NDArrayScope.open().use { scope ->
+                val sampIdxes = RandomUtil.randInt(BS, 0 until train.size(), rand)
 
-            val (xList, yList) = sampIdxes.map(train::get).unzip()
+                val (xList, yList) = sampIdxes.map(train::get).unzip()
 
-            val X = Tensors.stack(*xList.toTypedArray())
-            val Y = Tensors.stack(*yList.toTypedArray())
+                val X = Tensors.stack(*xList.toTypedArray())
+                val Y = Tensors.stack(*yList.toTypedArray())
 
-            val outs = model.forward(X)
+                val outs = model.forward(X)
 
-            // NLL loss
-            val y = Y.mul(Tensors.createScalar(-1F))
-            val loss = outs.mul(y).mean()
+                // NLL loss
+                val y = Y.mul(Tensors.createScalar(-1F))
+                val loss = outs.mul(y).mean()
 
-            loss.backward()
-            optim.step()
+                loss.backward()
+                optim.step()
+                optim.keep(scope)
 
-            val accuracy =
-                Tensors.perform(outs.argmax(1), Y.argmax(1)) { a, b -> if (a closeTo b) 1F else 0F }
-                    .mean()
+                val accuracy =
+                    Tensors.perform(outs.argmax(1), Y.argmax(1)) { a, b ->
+                            if (a closeTo b) 1F else 0F
+                        }
+                        .mean()
 
-            ("loss ${loss.asScalar()}, accuracy ${accuracy.asScalar()}")
+                ("loss ${loss.asScalar()}, accuracy ${accuracy.asScalar()}")
+            }
         }
     }
 
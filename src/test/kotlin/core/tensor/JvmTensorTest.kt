@@ -98,6 +98,10 @@ class JvmTensorTest {
             assertOpResEqual(UOp(da, NDArray::relu), UOp(ta, Tensor::relu))
             assertOpResEqual(UOp(da, NDArray::sum), UOp(ta, Tensor::sum), 0.1F)
             assertOpResEqual(UOp(da, NDArray::mean), UOp(ta, Tensor::mean), 0.1F)
+            assertOpResEqual(UOp(da) { it.exp() }, UOp(ta) { it.exp() })
+            assertOpResEqual(UOp(da) { it.exp().log() }, UOp(ta) { it.exp().log() })
+            assertOpResEqual(
+                BOp(da, db) { a, b -> a.div(b.exp()) }, BOp(ta, tb) { a, b -> a.div(b.exp()) })
 
             assertOpResEqual(
                 BOp(da, db) { a, b ->
@@ -140,6 +144,10 @@ class JvmTensorTest {
             assertOpResEqual(UOp(da, NDArray::relu), UOp(ta, Tensor::relu))
             assertOpResEqual(UOp(da, NDArray::sum), UOp(ta, Tensor::sum), 0.1F)
             assertOpResEqual(UOp(da, NDArray::mean), UOp(ta, Tensor::mean), 0.1F)
+            assertOpResEqual(UOp(da) { it.exp() }, UOp(ta) { it.exp() })
+            assertOpResEqual(UOp(da) { it.exp().log() }, UOp(ta) { it.exp().log() })
+            assertOpResEqual(
+                BOp(da, db) { a, b -> a.div(b.exp()) }, BOp(ta, tb) { a, b -> a.div(b.exp()) })
 
             assertOpResEqual(
                 BOp(da, db) { a, b ->
@@ -202,6 +210,8 @@ class JvmTensorTest {
             assertOpResEqual(UOp(da, NDArray::relu), UOp(ta, Tensor::relu))
             assertOpResEqual(UOp(da, NDArray::sum), UOp(ta, Tensor::sum), 0.1F)
             assertOpResEqual(UOp(da, NDArray::mean), UOp(ta, Tensor::mean), 0.1F)
+            assertOpResEqual(
+                BOp(da, db) { a, b -> a.div(b.exp()) }, BOp(ta, tb) { a, b -> a.div(b.exp()) })
 
             assertOpResEqual(
                 BOp(da, db) { a, b ->
@@ -247,6 +257,8 @@ class JvmTensorTest {
             val db = manager.create(data = fb, shape = sb, requiresGrad = true)
 
             assertOpResEqual(BOp(da, db, NDArray::matMul), BOp(ta, tb, Tensor::matmul))
+            assertOpResEqual(
+                BOp(da, db) { l, r -> l.matMul(r).relu() }, BOp(ta, tb, Tensor::matmulRelu))
 
             // predict input.matmul(l1).relu().matmul(l2).logSoftmax()
             FloatArray(m) { randomFloat() }
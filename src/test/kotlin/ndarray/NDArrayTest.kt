@@ -1,9 +1,32 @@
 package ndarray
 
 import ai.djl.ndarray.NDManager
+import ai.djl.ndarray.types.DataType
+import ai.djl.ndarray.types.Shape
+import java.lang.foreign.Arena
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import java.nio.channels.FileChannel
+import java.nio.file.Files
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.Executors
+import java.util.concurrent.ForkJoinPool
+import java.util.concurrent.atomic.AtomicIntegerArray
+import kotlin.math.ln
 import kotlin.random.Random
+import ndarray.operator.ElementWise
+import ndarray.operator.ElementWiseUnaryOperator
+import ndarray.operator.Reduction
+import ndarray.util.ConcurrentUtil
+import ndarray.util.DType
+import ndarray.util.Flags
 import ndarray.util.Util.*
 import org.junit.jupiter.api.AfterEach
+import org.junit.jupiter.api.Assertions.assertArrayEquals
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertFalse
+import org.junit.jupiter.api.Assertions.assertThrows
+import org.junit.jupiter.api.Assertions.assertTrue
 import org.junit.jupiter.api.BeforeEach
 import org.junit.jupiter.api.Test
 import tools.*
@@ -244,6 +267,422 @@ class NDArrayTest {
         }
     }
 
+    @Test
+    fun testMatMulBlockBoundariesCorrectness() {
+        // sizes around the register tile (6 x 2 vectors) and cache blocks (96 x 256) of Gemm
+        val sizes = intArrayOf(1, 5, 6, 7, 15, 16, 17, 95, 96, 97, 255, 256, 257, 513)
+        repeat(100) {
+            val m = sizes.random()
+            val n = sizes.random()
+            val p = sizes.random()
+
+            printMessage("A: $m X $n, B: $n X $p")
+
+            val fa = FloatArray(m * n) { randomFloat() }
+            val fb = FloatArray(n * p) { randomFloat() }
+
+            val C = manager.create(fa, m, n).dot(manager.create(fb, n, p))
+
+            val a = NDArray(intArrayOf(m, n), fa)
+            val b = NDArray(intArrayOf(n, p), fb)
+            assertNDArrayEquals(C, a.matmul(b))
+
+            val at = NDArray(intArrayOf(n, m), fa.transposed(m, n)).transpose()
+            val bt = NDArray(intArrayOf(p, n), fb.transposed(n, p)).transpose()
+            assertNDArrayEquals(C, at.matmul(b))
+            assertNDArrayEquals(C, a.matmul(bt))
+            assertNDArrayEquals(C, at.matmul(bt))
+        }
+    }
+
+    @Test
+    fun testBatchedMatMulCorrectness() {
+        repeat(100) {
+            val batchShape = IntArray(Random.nextInt(1, 4)) { Random.nextInt(1, 5) }
+            val m = Random.nextInt(1, 100)
+            val n = Random.nextInt(1, 100)
+            val p = Random.nextInt(1, 100)
+
+            // drop leading batch dims and squeeze others to 1 to exercise broadcasting
+            fun operandShape(rows: Int, cols: Int): IntArray {
+                val batch = batchShape.drop(Random.nextInt(0, batchShape.size + 1))
+                return (batch.map { if (Random.nextInt(3) == 0) 1 else it } + rows + cols)
+                    .toIntArray()
+            }
+            val shapeA = operandShape(m, n)
+            val shapeB = operandShape(n, p)
+
+            printMessage(shapeA.joinToString(" X ", "A: ") + shapeB.joinToString(" X ", ", B: "))
+
+            val fa = FloatArray(shapeA.fold(1, Int::times)) { randomFloat() }
+            val fb = FloatArray(shapeB.fold(1, Int::times)) { randomFloat() }
+
+            val A = manager.create(fa, shapeA)
+            val B = manager.create(fb, shapeB)
+
+            val a = NDArray(shapeA, fa)
+            val b = NDArray(shapeB, fb)
+
+            assertNDArrayEquals(A.matMul(B), a.matmul(b))
+        }
+    }
+
+    @Test
+    fun testMatMulViewsCorrectness() {
+        repeat(100) {
+            val m = Random.nextInt(1, 200)
+            val n = Random.nextInt(1, 200)
+            val p = Random.nextInt(1, 200)
+
+            printMessage("A: $m X $n, B: $n X $p")
+
+            // row slice of a 3-D array
+            val batch = Random.nextInt(1, 4)
+            val a =
+                NDArray(intArrayOf(batch, m, n), FloatArray(batch * m * n) { randomFloat() })
+                    .getNDArray(intArrayOf(Random.nextInt(batch)))
+
+            // column block of a wider matrix, and its transposed counterpart
+            val cols = p + Random.nextInt(0, 8)
+            val offset = Random.nextInt(0, cols - p + 1)
+            val parent = FloatArray(n * cols) { randomFloat() }
+            val notContiguous = Flags.setContiguous(Flags.ZERO, Flags.Contiguous.NOT)
+            val b = NDArray(intArrayOf(n, p), intArrayOf(cols, 1), parent, offset, notContiguous)
+            val bt =
+                NDArray(
+                    intArrayOf(n, p),
+                    intArrayOf(1, n),
+                    FloatArray(n * p + offset) { randomFloat() },
+                    offset,
+                    notContiguous)
+
+            // every other column, no unit stride at all
+            val stepped =
+                NDArray(
+                    intArrayOf(n, p),
+                    intArrayOf(2 * p, 2),
+                    FloatArray(2 * n * p) { randomFloat() },
+                    0,
+                    notContiguous)
+
+            val A = manager.create(a.toArray(), m, n)
+            for (v in listOf(b, bt, stepped)) {
+                val B = manager.create(v.toArray(), n, p)
+                assertNDArrayEquals(A.dot(B), a.matmul(v))
+            }
+        }
+    }
+
+    @Test
+    fun testSmallMatMulCorrectness() {
+        val threshold = MatMul.getParallelThreshold()
+        try {
+            // inline and pool dispatch of the same products
+            for (t in listOf(0L, Long.MAX_VALUE)) {
+                MatMul.setParallelThreshold(t)
+                repeat(100) {
+                    val m = Random.nextInt(1, 40)
+                    val n = Random.nextInt(1, 40)
+                    val p = Random.nextInt(1, 40)
+
+                    printMessage("threshold: $t, A: $m X $n, B: $n X $p")
+
+                    val fa = FloatArray(m * n) { randomFloat() }
+                    val fb = FloatArray(n * p) { randomFloat() }
+                    val A = manager.create(fa, m, n)
+                    val B = manager.create(fb, n, p)
+
+                    assertNDArrayEquals(
+                        A.dot(B), NDArray(arrOf(m, n), fa).matmul(NDArray(arrOf(n, p), fb)))
+                }
+            }
+        } finally {
+            MatMul.setParallelThreshold(threshold)
+        }
+    }
+
+    @Test
+    fun testMatVecAndOuterCorrectness() {
+        repeat(100) {
+            val m = Random.nextInt(1, 2000)
+            val n = Random.nextInt(1, 2000)
+            val p = Random.nextInt(1, 2000)
+
+            // row vector times matrix, matrix times column vector, outer product
+            for ((r, c, k) in listOf(Triple(1, n, p), Triple(m, n, 1), Triple(m, 1, p))) {
+                printMessage("A: $r X $c, B: $c X $k")
+
+                val fa = FloatArray(r * c) { randomFloat() }
+                val fb = FloatArray(c * k) { randomFloat() }
+                val A = manager.create(fa, r, c)
+                val B = manager.create(fb, c, k)
+
+                val a = NDArray(arrOf(r, c), fa)
+                val b = NDArray(arrOf(c, k), fb)
+                val at = NDArray(arrOf(c, r), fa.transposed(r, c)).transpose()
+                val bt = NDArray(arrOf(k, c), fb.transposed(c, k)).transpose()
+
+                for (x in listOf(a, at)) {
+                    for (y in listOf(b, bt)) {
+                        assertNDArrayEquals(A.dot(B), x.matmul(y))
+                    }
+                }
+            }
+        }
+
+        // an empty result, or zeros when only the inner dimension is empty
+        val empty = listOf(Triple(5, 1, 0), Triple(3, 0, 1), Triple(1, 0, 4), Triple(0, 1, 3))
+        for ((r, c, k) in empty) {
+            val a = NDArray(arrOf(r, c), FloatArray(r * c) { randomFloat() })
+            val b = NDArray(arrOf(c, k), FloatArray(c * k) { randomFloat() })
+            val res = a.matmul(b)
+            assertArrayEquals(arrOf(r, k), res.getShape())
+            assertArrayEquals(FloatArray(r * k), res.toArray())
+        }
+    }
+
+    @Test
+    fun testMatMulEpilogueCorrectness() {
+        val activations = listOf(null, ElementWiseUnaryOperator.RELU, ElementWiseUnaryOperator.GELU)
+        repeat(100) {
+            val m = Random.nextInt(1, 300)
+            val n = Random.nextInt(1, 300)
+            val p = Random.nextInt(1, 300)
+
+            printMessage("A: $m X $n, B: $n X $p")
+
+            val fa = FloatArray(m * n) { randomFloat() }
+            val fb = FloatArray(n * p) { randomFloat() }
+            val fc = FloatArray(m * p) { randomFloat() }
+            val fBias = FloatArray(p) { randomFloat() }
+            val alpha = randomFloat()
+            val beta = randomFloat()
+
+            var D =
+                manager
+                    .create(fa, m, n)
+                    .dot(manager.create(fb, n, p))
+                    .mul(alpha)
+                    .add(manager.create(fc, m, p).mul(beta))
+                    .add(manager.create(fBias, 1, p))
+
+            val activation = activations.random()
+            D =
+                when (activation) {
+                    ElementWiseUnaryOperator.RELU -> D.maximum(0F)
+                    // gelu(x) = 0.5 * x * (1 + tanh(sqrt(2 / pi) * (x + 0.044715 * x^3)))
+                    ElementWiseUnaryOperator.GELU ->
+                        D.pow(3)
+                            .mul(0.044715F)
+                            .add(D)
+                            .mul(0.7978846F)
+                            .tanh()
+                            .add(1F)
+                            .mul(D)
+                            .mul(0.5F)
+                    else -> D
+                }
+
+            val a = NDArray(arrOf(m, n), fa)
+            val b = NDArray(arrOf(n, p), fb)
+            val c = NDArray(arrOf(m, p), fc)
+            val bias = NDArray(arrOf(p), fBias)
+            val epilogue = Epilogue(alpha, beta, c, bias, activation)
+
+            assertNDArrayEquals(D, a.matmul(b, epilogue))
+        }
+    }
+
+    @Test
+    fun testMatMulIntoCorrectness() {
+        repeat(100) {
+            val m = Random.nextInt(1, 200)
+            val n = Random.nextInt(1, 200)
+            val p = Random.nextInt(1, 200)
+
+            printMessage("A: $m X $n, B: $n X $p")
+
+            val fa = FloatArray(m * n) { randomFloat() }
+            val fb = FloatArray(n * p) { randomFloat() }
+            val a = NDArray(arrOf(m, n), fa)
+            val b = NDArray(arrOf(n, p), fb)
+            val D = manager.create(fa, m, n).dot(manager.create(fb, n, p))
+
+            // row-major, column-major and stepped outputs
+            val notContiguous = Flags.setContiguous(Flags.ZERO, Flags.Contiguous.NOT)
+            val outs =
+                listOf(
+                    NDArray(arrOf(m, p), FloatArray(m * p) { randomFloat() }),
+                    NDArray(arrOf(p, m), FloatArray(m * p) { randomFloat() }).transpose(),
+                    NDArray(
+                        arrOf(m, p),
+                        arrOf(2 * p, 2),
+                        FloatArray(2 * m * p) { randomFloat() },
+                        0,
+                        notContiguous))
+
+            for (out in outs) {
+                val accumulate = Random.nextBoolean()
+                val expected = if (accumulate) D.add(manager.create(out.toArray(), m, p)) else D
+                assertNDArrayEquals(expected, out.matmulInto(a, b, accumulate))
+            }
+        }
+    }
+
+    @Test
+    fun testPackedMatMulCorrectness() {
+        repeat(50) {
+            val m = Random.nextInt(1, 300)
+            val n = Random.nextInt(1, 300)
+            val p = Random.nextInt(1, 300)
+
+            printMessage("A: $m X $n, B: $n X $p")
+
+            val fa = FloatArray(m * n) { randomFloat() }
+            val fb = FloatArray(n * p) { randomFloat() }
+            val a = NDArray(arrOf(m, n), fa)
+            val b = NDArray(arrOf(n, p), fb).pack()
+            assertTrue(b.isPacked)
+
+            val A = manager.create(fa, m, n)
+            repeat(3) { assertNDArrayEquals(A.dot(manager.create(fb, n, p)), a.matmul(b)) }
+
+            // writing to the array drops the packed copy
+            b.set(arrOf(0, 0), randomFloat())
+            assertFalse(b.isPacked)
+            assertNDArrayEquals(A.dot(manager.create(b.toArray(), n, p)), a.matmul(b))
+
+            // and so does writing through another view of the same storage
+            b.pack()
+            b.reshape(-1).subi(randomFloat())
+            assertFalse(b.isPacked)
+            assertNDArrayEquals(A.dot(manager.create(b.toArray(), n, p)), a.matmul(b))
+            b.pack()
+            ElementWiseUnaryOperator.NEG.performElementwise(b.transpose(), b.transpose())
+            assertFalse(b.isPacked)
+            assertNDArrayEquals(A.dot(manager.create(b.toArray(), n, p)), a.matmul(b))
+        }
+    }
+
+    @Test
+    fun testOffHeapCorrectness() {
+        Arena.ofShared().use { arena ->
+            repeat(50) {
+                val m = Random.nextInt(1, 300)
+                val n = Random.nextInt(1, 300)
+                val p = Random.nextInt(1, 300)
+
+                printMessage("A: $m X $n, B: $n X $p")
+
+                val fa = FloatArray(m * n) { randomFloat() }
+                val fb = FloatArray(n * p) { randomFloat() }
+                val a = NDArrays.copyOf(NDArray(arrOf(m, n), fa), arena)
+                val b = NDArrays.copyOf(NDArray(arrOf(n, p), fb), arena)
+                assertTrue(a.isOffHeap)
+
+                val A = manager.create(fa, m, n)
+                val B = manager.create(fb, n, p)
+                assertNDArrayEquals(A.dot(B), a.matmul(b))
+                assertNDArrayEquals(A.transpose().dot(A), a.transpose().matmul(a))
+
+                val out = NDArrays.allocate(arrOf(m, p), arena)
+                out.matmulInto(a, b, false)
+                assertNDArrayEquals(A.dot(B), out)
+
+                assertNDArrayEquals(A.add(A), a.add(a))
+                assertNDArrayEquals(A.exp(), a.exp())
+                assertNDArrayEquals(A.sum(), a.sum())
+                assertNDArrayEquals(A.sum(intArrayOf(0)), a.sum(0))
+                assertNDArrayEquals(A.argMax(), a.argmax())
+            }
+        }
+    }
+
+    @Test
+    fun testMapCorrectness() {
+        val dir = Files.createTempDirectory("ndarray")
+        repeat(20) {
+            val m = Random.nextInt(1, 100)
+            val n = Random.nextInt(1, 100)
+
+            printMessage("A: $m X $n")
+
+            val f = FloatArray(m * n) { randomFloat() }
+            val A = manager.create(f, m, n)
+
+            val raw = dir.resolve("a.bin")
+            Files.write(raw, littleEndian(f))
+            val a = NDArrays.map(raw, arrOf(m, n), Flags.Contiguous.C)
+            assertTrue(a.isOffHeap)
+            assertNDArrayEquals(A, a)
+            assertNDArrayEquals(A.dot(A.transpose()), a.matmul(a.transpose()))
+            assertThrows(UnsupportedOperationException::class.java) { a.set(arrOf(0, 0), 1f) }
+            assertThrows(IllegalArgumentException::class.java) {
+                NDArrays.map(raw, arrOf(m + 1, n), Flags.Contiguous.C)
+            }
+
+            // the same data as an F-ordered (n, m) array is the transpose
+            val npy = dir.resolve("a.npy")
+            val header = "{'descr': '<f4', 'fortran_order': True, 'shape': ($n, $m), }"
+            Files.write(npy, npyHeader(header) + littleEndian(f))
+            val b = NDArrays.map(npy)
+            assertNDArrayEquals(A.transpose(), b)
+            assertNDArrayEquals(A.transpose(), NDArrays.map(npy, arrOf(n, m), Flags.Contiguous.F))
+
+            // copy-on-write leaves the file untouched
+            Arena.ofShared().use { arena ->
+                val c =
+                    NDArrays.map(
+                        raw, arrOf(m, n), Flags.Contiguous.C, FileChannel.MapMode.PRIVATE, arena)
+                c.set(arrOf(0, 0), f[0] + 1)
+                assertEquals(f[0] + 1, c.get(arrOf(0, 0)))
+            }
+            assertNDArrayEquals(A, NDArrays.map(raw, arrOf(m, n), Flags.Contiguous.C))
+        }
+    }
+
+    private fun littleEndian(f: FloatArray): ByteArray {
+        val buffer = ByteBuffer.allocate(f.size * 4).order(ByteOrder.LITTLE_ENDIAN)
+        buffer.asFloatBuffer().put(f)
+        return buffer.array()
+    }
+
+    // a version 1.0 header, padded so the data starts at a multiple of 64 bytes
+    private fun npyHeader(dict: String): ByteArray {
+        val len = (10 + dict.length + 1 + 63) / 64 * 64 - 10
+        val header = dict.padEnd(len - 1) + "\n"
+        val prefix = byteArrayOf(0x93.toByte()) + "NUMPY".toByteArray() + byteArrayOf(1, 0)
+        return prefix + byteArrayOf(len.toByte(), (len shr 8).toByte()) + header.toByteArray()
+    }
+
+    @Test
+    fun testScopeCorrectness() {
+        repeat(20) {
+            val m = Random.nextInt(1, 200)
+            val n = Random.nextInt(1, 200)
+
+            printMessage("A: $m X $n")
+
+            val f = FloatArray(m * n) { randomFloat() }
+            val A = manager.create(f, m, n)
+            val a = NDArray(arrOf(m, n), f)
+
+            val kept =
+                NDArrayScope.open().use { scope ->
+                    // dirty the pooled buffers so that missing initialization shows up
+                    repeat(3) { NDArrays.fill(arrOf(m, n), Float.NaN) }
+                    assertNDArrayEquals(
+                        A.dot(A.transpose()).add(A.sum()), a.matmul(a.transpose()).add(a.sum()))
+                    assertNDArrayEquals(A.exp().sum(intArrayOf(1)), a.exp().sum(1))
+                    assertNDArrayEquals(A.zerosLike(), NDArrays.zerosLike(a))
+                    scope.keep(a.mul(a))
+                }
+
+            NDArrayScope.open().use { repeat(3) { NDArrays.fill(arrOf(m, n), Float.NaN) } }
+            assertNDArrayEquals(A.mul(A), kept)
+        }
+    }
+
     @Test
     fun testReduceCorrectness() {
         // verify matrix
@@ -360,6 +799,643 @@ class NDArrayTest {
         }
     }
 
+    @Test
+    fun testMultiAxisReduceCorrectness() {
+        val threshold = ElementWise.getParallelThreshold()
+        val chunkSize = ElementWise.getChunkSize()
+        try {
+            repeat(100) {
+                val rank = Random.nextInt(1, 5)
+                val shape = IntArray(rank) { Random.nextInt(1, if (rank > 2) 20 else 300) }
+                val size = shape.fold(1, Int::times)
+                // any non-empty subset of the axes, in any order, some counted from the end
+                val dims =
+                    (0 until rank)
+                        .filter { Random.nextBoolean() }
+                        .ifEmpty { listOf(Random.nextInt(rank)) }
+                        .map { if (Random.nextBoolean()) it else it - rank }
+                        .shuffled()
+                        .toIntArray()
+                val keepDims = Random.nextBoolean()
+                ElementWise.setChunkSize(Random.nextInt(1, 5000))
+
+                printMessage(shape.joinToString(" X ", "A: ", ", dims: ${dims.toList()}"))
+
+                val f = FloatArray(size) { randomIntFloat() }
+                val A = manager.create(f, shape)
+                val B = NDArray(shape, f)
+
+                // in the layout of the array and transposed
+                for ((a, b) in listOf(A to B, A.transpose() to B.transpose())) {
+                    ElementWise.setParallelThreshold(Int.MAX_VALUE)
+                    val sum = b.sum(dims, keepDims)
+                    val max = b.max(dims, keepDims)
+                    assertNDArrayEquals(a.sum(dims, keepDims), sum)
+                    assertNDArrayEquals(a.max(dims, keepDims), max)
+
+                    // the same bits when split across the pool
+                    ElementWise.setParallelThreshold(0)
+                    assertArrayEquals(sum.toArray(), b.sum(dims, keepDims).toArray())
+                    assertArrayEquals(max.toArray(), b.max(dims, keepDims).toArray())
+                }
+            }
+
+            // a wide result is split along its rows, in slices of the kept inner axis
+            ElementWise.setChunkSize(64)
+            val f = FloatArray(64 * 4099) { randomIntFloat() }
+            val A = manager.create(f, arrOf(64, 4099))
+            val B = NDArray(arrOf(64, 4099), f)
+            ElementWise.setParallelThreshold(Int.MAX_VALUE)
+            val sum = B.sum(arrOf(0), false)
+            assertNDArrayEquals(A.sum(intArrayOf(0)), sum)
+            ElementWise.setParallelThreshold(0)
+            assertArrayEquals(sum.toArray(), B.sum(arrOf(0), false).toArray())
+        } finally {
+            ElementWise.setParallelThreshold(threshold)
+            ElementWise.setChunkSize(chunkSize)
+        }
+
+        val a = NDArray(arrOf(2, 3), FloatArray(6))
+        assertThrows(IllegalArgumentException::class.java) { a.sum(arrOf(0, -2), false) }
+        assertThrows(IllegalArgumentException::class.java) { a.max(arrOf(2), false) }
+    }
+
+    @Test
+    fun testMoreReductionsCorrectness() {
+        val threshold = ElementWise.getParallelThreshold()
+        val chunkSize = ElementWise.getChunkSize()
+        try {
+            repeat(100) {
+                val rank = Random.nextInt(1, 5)
+                val shape = IntArray(rank) { Random.nextInt(1, if (rank > 2) 12 else 300) }
+                val size = shape.fold(1, Int::times)
+                val dims =
+                    (0 until rank)
+                        .filter { Random.nextBoolean() }
+                        .ifEmpty { listOf(Random.nextInt(rank)) }
+                        .map { if (Random.nextBoolean()) it else it - rank }
+                        .shuffled()
+                        .toIntArray()
+                val keepDims = Random.nextBoolean()
+                ElementWise.setChunkSize(Random.nextInt(1, 5000))
+
+                printMessage(shape.joinToString(" X ", "A: ", ", dims: ${dims.toList()}"))
+
+                val f = FloatArray(size) { randomFloat() }
+                val A = manager.create(f, shape)
+                val B = NDArray(shape, f)
+
+                for ((a, b) in listOf(A to B, A.transpose() to B.transpose())) {
+                    ElementWise.setParallelThreshold(Int.MAX_VALUE)
+                    val variance = a.sub(a.mean(dims, true)).square().mean(dims, keepDims)
+                    assertNDArrayEquals(a.mean(dims, keepDims), b.mean(dims, keepDims))
+                    assertNDArrayEquals(a.min(dims, keepDims), b.min(dims, keepDims))
+                    assertNDArrayEquals(a.prod(dims, keepDims), b.prod(dims, keepDims))
+                    assertNDArrayEquals(a.norm(dims, keepDims), b.norm(dims, keepDims))
+                    assertNDArrayEquals(a.norm(1, dims, keepDims), b.norm(1, dims, keepDims))
+                    assertNDArrayEquals(a.logSumExp(dims, keepDims), b.logSumExp(dims, keepDims))
+                    assertNDArrayEquals(variance, b.`var`(dims, keepDims))
+                    assertNDArrayEquals(variance.sqrt(), b.std(dims, keepDims))
+
+                    // the same bits when split across the pool
+                    val v = b.`var`(dims, keepDims)
+                    val n = b.norm(dims, keepDims)
+                    ElementWise.setParallelThreshold(0)
+                    assertArrayEquals(v.toArray(), b.`var`(dims, keepDims).toArray())
+                    assertArrayEquals(n.toArray(), b.norm(dims, keepDims).toArray())
+                }
+
+                val dim = Random.nextInt(rank)
+                assertNDArrayEquals(A.argMin(dim), B.argmin(dim))
+                assertNDArrayEquals(A.argMin(), B.argmin())
+            }
+        } finally {
+            ElementWise.setParallelThreshold(threshold)
+            ElementWise.setChunkSize(chunkSize)
+        }
+
+        // far from 0 the variance still has all its digits
+        val a = NDArray(arrOf(4), floatArrayOf(1e4F + 1, 1e4F + 2, 1e4F + 3, 1e4F + 4))
+        assertEquals(1.25F, a.`var`().asScalar(), 1e-6F)
+
+        // all -inf along an axis is -inf, not NaN
+        val ninf = Float.NEGATIVE_INFINITY
+        val inf = NDArray(arrOf(2, 2), floatArrayOf(ninf, ninf, 0F, 0F))
+        assertArrayEquals(floatArrayOf(ninf, ln(2F)), inf.logSumExp(arrOf(1), false).toArray())
+        assertThrows(IllegalArgumentException::class.java) { a.norm(3, arrOf(0), false) }
+    }
+
+    @Test
+    fun testCompensatedSumAccuracy() {
+        val chunkSize = ElementWise.getChunkSize()
+        val threshold = ElementWise.getParallelThreshold()
+        try {
+            // no partitions, so all the elements of a sum go into one accumulator
+            ElementWise.setChunkSize(Int.MAX_VALUE)
+
+            val (m, n) = 1 shl 16 to 64
+            val f = FloatArray(m * n) { Random.nextFloat() }
+            val total = f.sumOf { it.toDouble() }
+            val columns = DoubleArray(n)
+            f.forEachIndexed { i, v -> columns[i % n] += v.toDouble() }
+            val a = NDArray(arrOf(m, n), f)
+
+            Reduction.withCompensatedSum(true).use {
+                // the loops on the pool follow the thread that started the sum
+                ElementWise.setParallelThreshold(0)
+                assertTrue(Reduction.isCompensatedSum())
+                assertEquals(1.0, a.sum().asScalar() / total, 1e-7)
+                assertEquals(1.0, a.lazy().sum().asScalar() / total, 1e-7)
+                assertEquals(1.0, a.mean().asScalar() / (total / f.size), 1e-7)
+                for (sums in listOf(a.sum(0), a.transpose().sum(1))) {
+                    sums.toArray().forEachIndexed { j, v ->
+                        assertEquals(1.0, v / columns[j], 1e-7)
+                    }
+                }
+
+                val inf = NDArray(arrOf(2, 40), FloatArray(80) { 1F })
+                inf.set(arrOf(0, 3), Float.POSITIVE_INFINITY)
+                assertArrayEquals(floatArrayOf(Float.POSITIVE_INFINITY, 40F), inf.sum(1).toArray())
+
+                // scopes nest, and other threads keep their own setting
+                Reduction.withCompensatedSum(false).use {
+                    assertFalse(Reduction.isCompensatedSum())
+                }
+                assertTrue(Reduction.isCompensatedSum())
+                val other = Executors.newSingleThreadExecutor()
+                try {
+                    assertFalse(other.submit<Boolean> { Reduction.isCompensatedSum() }.get())
+                } finally {
+                    other.shutdown()
+                }
+            }
+            assertFalse(Reduction.isCompensatedSum())
+
+            val outer = Reduction.withCompensatedSum(true)
+            val inner = Reduction.withCompensatedSum(false)
+            assertThrows(IllegalStateException::class.java) { outer.close() }
+            inner.close()
+            outer.close()
+        } finally {
+            ElementWise.setChunkSize(chunkSize)
+            ElementWise.setParallelThreshold(threshold)
+        }
+    }
+
+    @Test
+    fun testArgMaxArgMinCorrectness() {
+        val threshold = ElementWise.getParallelThreshold()
+        val chunkSize = ElementWise.getChunkSize()
+        try {
+            repeat(100) {
+                val rank = Random.nextInt(1, 5)
+                val shape = IntArray(rank) { Random.nextInt(1, if (rank > 2) 20 else 300) }
+                val size = shape.fold(1, Int::times)
+                val dim = Random.nextInt(rank)
+                ElementWise.setChunkSize(Random.nextInt(1, 5000))
+
+                printMessage(shape.joinToString(" X ", "A: ", ", dim: $dim"))
+
+                // few distinct values, so there are ties to break by the first index
+                val f = FloatArray(size) { randomIntFloat(-8..8) }
+                val A = manager.create(f, shape)
+                val B = NDArray(shape, f)
+
+                for ((a, b) in listOf(A to B, A.transpose() to B.transpose())) {
+                    ElementWise.setParallelThreshold(Int.MAX_VALUE)
+                    val argmax = b.argmax(dim)
+                    val argmin = b.argmin(dim)
+                    assertNDArrayEquals(a.argMax(dim), argmax)
+                    assertNDArrayEquals(a.argMin(dim), argmin)
+                    assertNDArrayEquals(a.argMax(), b.argmax())
+                    assertNDArrayEquals(a.argMin(), b.argmin())
+
+                    val kept = b.shape.copyOf().also { it[dim] = 1 }
+                    assertArrayEquals(kept, b.argmax(dim, true).shape)
+
+                    ElementWise.setParallelThreshold(0)
+                    assertArrayEquals(argmax.toArray(), b.argmax(dim).toArray())
+                    assertArrayEquals(argmin.toArray(), b.argmin(dim).toArray())
+                }
+            }
+        } finally {
+            ElementWise.setParallelThreshold(threshold)
+            ElementWise.setChunkSize(chunkSize)
+        }
+
+        // the first NaN wins, along a row of vectors and down the columns
+        val f = FloatArray(64) { it.toFloat() }
+        f[40] = Float.NaN
+        f[50] = Float.NaN
+        val a = NDArray(arrOf(64), f)
+        assertEquals(40F, a.argmax().asScalar())
+        assertEquals(40F, a.argmin().asScalar())
+        val columns = FloatArray(16) { if (it == 8) 2F else 3F }
+        assertArrayEquals(columns, a.reshape(4, 16).argmax(0).toArray())
+
+        val empty = NDArray(arrOf(2, 0), FloatArray(0))
+        assertThrows(IllegalArgumentException::class.java) { empty.argmax(1) }
+
+        // row indices past 2^24, where float32 can no longer count by one
+        val rows = (1 shl 24) + 3
+        val tall = FloatArray(rows * 2)
+        tall[(rows - 2) * 2] = 1F
+        tall[(rows - 1) * 2 + 1] = -1F
+        val t = NDArray(arrOf(rows, 2), tall)
+        assertArrayEquals(intArrayOf(rows - 2, 0), t.argmax(0).toIntArray())
+        assertArrayEquals(intArrayOf(0, rows - 1), t.argmin(0).toIntArray())
+    }
+
+    @Test
+    fun testSchedulerCorrectness() {
+        val threshold = ElementWise.getParallelThreshold()
+        val poolSize = ConcurrentUtil.getPoolSize()
+        val executor =
+            Executors.newFixedThreadPool(3) { r ->
+                Thread(r, "caller-executor").apply { isDaemon = true }
+            }
+        try {
+            ElementWise.setParallelThreshold(0)
+            ConcurrentUtil.setPoolSize(4)
+
+            val f = FloatArray(512 * 512) { randomFloat() }
+            val A = manager.create(f, 512, 512)
+            val B = NDArray(arrOf(512, 512), f)
+            val sum = B.sum(0)
+            ConcurrentUtil.executeOn(executor, 4).use {
+                assertArrayEquals(sum.toArray(), B.sum(0).toArray())
+                assertNDArrayEquals(A.matMul(A), B.matmul(B))
+            }
+
+            // every index and every tile exactly once, on the executor or the calling thread
+            val caller = Thread.currentThread().name
+            val names = ConcurrentHashMap.newKeySet<String>()
+            val counts = AtomicIntegerArray(1000)
+            val grid = AtomicIntegerArray(37 * 53)
+            ConcurrentUtil.executeOn(executor, 4).use {
+                ConcurrentUtil.loopFor(0, 1000, 7) { from, to ->
+                    names.add(Thread.currentThread().name)
+                    for (i in from until to) counts.incrementAndGet(i)
+                }
+                ConcurrentUtil.loopFor2D(37, 53, 5, 8) { rowFrom, rowTo, colFrom, colTo ->
+                    for (i in rowFrom until rowTo) {
+                        for (j in colFrom until colTo) grid.incrementAndGet(i * 53 + j)
+                    }
+                }
+            }
+            assertTrue((0 until 1000).all { counts[it] == 1 })
+            assertTrue((0 until 37 * 53).all { grid[it] == 1 })
+            assertTrue(names.all { it == caller || it == "caller-executor" })
+
+            assertThrows(IllegalStateException::class.java) {
+                ConcurrentUtil.loopFor(0, 100, 1) { _, _ -> throw IllegalStateException() }
+            }
+            assertThrows(IllegalArgumentException::class.java) {
+                ConcurrentUtil.loopFor(0, 100, 0) { _, _ -> }
+            }
+            assertThrows(IllegalArgumentException::class.java) { ConcurrentUtil.setPoolSize(0) }
+        } finally {
+            ElementWise.setParallelThreshold(threshold)
+            ConcurrentUtil.setPoolSize(poolSize)
+            executor.shutdown()
+        }
+    }
+
+    @Test
+    fun testNestedParallelism() {
+        val poolSize = ConcurrentUtil.getPoolSize()
+        try {
+            ConcurrentUtil.setPoolSize(4)
+
+            // the threads of a loop are shared out between its chunks
+            val inner = ConcurrentHashMap.newKeySet<Int>()
+            ConcurrentUtil.loopFor(0, 2, 1) { _, _ -> inner.add(ConcurrentUtil.getParallelism()) }
+            assertEquals(setOf(2), inner)
+            inner.clear()
+            ConcurrentUtil.loopFor(0, 64, 1) { _, _ -> inner.add(ConcurrentUtil.getParallelism()) }
+            assertEquals(setOf(1), inner)
+
+            val caller = Thread.currentThread().name
+            val names = ConcurrentHashMap.newKeySet<String>()
+            ConcurrentUtil.sequential().use {
+                ConcurrentUtil.loopFor(0, 100, 1) { _, _ -> names.add(Thread.currentThread().name) }
+                // a nested scope cannot raise the cap
+                ConcurrentUtil.withParallelism(3).use {
+                    assertEquals(1, ConcurrentUtil.getParallelism())
+                }
+                assertEquals(1, ConcurrentUtil.getParallelism())
+            }
+            assertEquals(setOf(caller), names)
+            assertEquals(4, ConcurrentUtil.getParallelism())
+            ConcurrentUtil.withParallelism(3).use {
+                assertEquals(3, ConcurrentUtil.getParallelism())
+                ConcurrentUtil.withParallelism(8).use {
+                    assertEquals(3, ConcurrentUtil.getParallelism())
+                }
+            }
+
+            // nor can a chunk of a loop go past its share
+            inner.clear()
+            ConcurrentUtil.loopFor(0, 2, 1) { _, _ ->
+                ConcurrentUtil.withParallelism(8).use { inner.add(ConcurrentUtil.getParallelism()) }
+            }
+            assertEquals(setOf(2), inner)
+
+            // a worker of another pool runs its loops inline
+            val other = ForkJoinPool(2)
+            assertEquals(1, other.submit<Int> { ConcurrentUtil.getParallelism() }.get())
+            other.shutdown()
+
+            assertThrows(IllegalArgumentException::class.java) {
+                ConcurrentUtil.withParallelism(0)
+            }
+        } finally {
+            ConcurrentUtil.setPoolSize(poolSize)
+        }
+    }
+
+    @Test
+    fun testInPlaceOperatorsCorrectness() {
+        repeat(100) {
+            val m = Random.nextInt(1, 300)
+            val n = Random.nextInt(1, 300)
+
+            printMessage("A: $m X $n, B: $m X $n")
+
+            val fa = FloatArray(m * n) { randomIntFloat(-20..20) }
+            val fb = FloatArray(m * n) { randomIntFloat(excludeZero = true) }
+            val fr = FloatArray(n) { randomIntFloat(excludeZero = true) }
+
+            val A = manager.create(fa, m, n)
+            val B = manager.create(fb, m, n)
+            val R = manager.create(fr, arrOf(n))
+
+            val b = NDArray(arrOf(m, n), fb)
+            val r = NDArray(arrOf(n), fr)
+            fun a() = NDArray(arrOf(m, n), fa.copyOf())
+
+            assertNDArrayEquals(A.add(B), a().addi(b))
+            assertNDArrayEquals(A.sub(B), a().subi(b))
+            assertNDArrayEquals(A.mul(B), a().muli(b))
+            assertNDArrayEquals(A.div(B), a().divi(b))
+            assertNDArrayEquals(A.maximum(B), a().maximumi(b))
+            assertNDArrayEquals(A.minimum(B), a().minimumi(b))
+            assertNDArrayEquals(A.exp(), a().expi())
+
+            assertNDArrayEquals(A.add(R), a().addi(r))
+            assertNDArrayEquals(A.sub(fb[0]), a().subi(fb[0]))
+            assertNDArrayEquals(A.mul(fb[0]), a().muli(fb[0]))
+
+            // out in a different layout than the operands
+            val out = NDArrays.of(arrOf(n, m)).transpose()
+            assertNDArrayEquals(A.sub(B), a().sub(b, out))
+            assertNDArrayEquals(A.div(R), a().div(r, out))
+            assertNDArrayEquals(A.exp(), a().exp(out))
+
+            // writing drops the packed copy
+            val p = a().pack()
+            p.addi(1f)
+            assertFalse(p.isPacked)
+            assertNDArrayEquals(A.add(1f).dot(A.transpose()), p.matmul(a().transpose()))
+        }
+    }
+
+    @Test
+    fun testBroadcastCorrectness() {
+        repeat(100) {
+            val m = Random.nextInt(1, 300)
+            val n = Random.nextInt(1, 300)
+
+            printMessage("A: $m X $n")
+
+            val fa = FloatArray(m * n) { randomIntFloat(-20..20) }
+            val fr = FloatArray(n) { randomIntFloat(excludeZero = true) }
+            val fc = FloatArray(m) { randomIntFloat(excludeZero = true) }
+
+            val A = manager.create(fa, m, n)
+            val R = manager.create(fr, 1, n)
+            val C = manager.create(fc, m, 1)
+
+            val a = NDArray(arrOf(m, n), fa)
+            val r = NDArray(arrOf(1, n), fr)
+            val c = NDArray(arrOf(m, 1), fc)
+
+            // row vector, column vector, and both
+            assertNDArrayEquals(A.add(R), a.add(r))
+            assertNDArrayEquals(R.sub(A), r.sub(a))
+            assertNDArrayEquals(A.mul(C), a.mul(c))
+            assertNDArrayEquals(C.div(A), c.div(a))
+            assertNDArrayEquals(C.maximum(R), c.maximum(r))
+            assertNDArrayEquals(R.minimum(C), r.minimum(c))
+
+            // every other column of a wider array, broadcast against a row vector
+            val notContiguous = Flags.setContiguous(Flags.ZERO, Flags.Contiguous.NOT)
+            val parent = FloatArray(2 * m * n) { randomIntFloat(-20..20) }
+            val stepped = NDArray(arrOf(m, n), arrOf(2 * n, 2), parent, 0, notContiguous)
+            val S = manager.create(stepped.toArray(), m, n)
+            assertNDArrayEquals(S.add(R), stepped.add(r))
+            assertNDArrayEquals(S.sub(C), stepped.sub(c))
+
+            // broadcast into an out in the other layout
+            val out = NDArrays.of(arrOf(n, m)).transpose()
+            assertNDArrayEquals(A.mul(R), a.mul(r, out))
+            assertNDArrayEquals(C.add(R), c.add(r, out))
+        }
+    }
+
+    @Test
+    fun testStridedViewsCorrectness() {
+        repeat(100) {
+            val m = Random.nextInt(1, 300)
+            val n = Random.nextInt(1, 300)
+
+            printMessage("A: $m X $n")
+
+            // every other column of a wider array, no unit stride at all
+            val parent = FloatArray(2 * m * n) { randomIntFloat(-5..5) }
+            val notContiguous = Flags.setContiguous(Flags.ZERO, Flags.Contiguous.NOT)
+            val a = NDArray(arrOf(m, n), arrOf(2 * n, 2), parent, 0, notContiguous)
+            val fa = FloatArray(m * n) { parent[it / n * 2 * n + it % n * 2] }
+            val fb = FloatArray(n * m) { randomIntFloat(excludeZero = true) }
+
+            val A = manager.create(fa, m, n)
+            val BT = manager.create(fb, n, m).transpose()
+            val bt = NDArray(arrOf(n, m), fb).transpose()
+
+            assertNDArrayEquals(A, NDArrays.of(arrOf(m, n), a.toArray()))
+            assertNDArrayEquals(A.reshape(m.toLong() * n), a.reshape(m * n))
+            assertNDArrayEquals(A.exp(), a.exp())
+            assertNDArrayEquals(A.add(BT), a.add(bt))
+            assertNDArrayEquals(BT.div(A.exp()), bt.div(a.exp()))
+
+            // a C out from strided operands, and a transposed out from C operands
+            val c = NDArray(arrOf(m, n), fa)
+            assertNDArrayEquals(A.sub(BT), a.sub(bt, NDArrays.of(arrOf(m, n))))
+            assertNDArrayEquals(BT.exp(), bt.exp(NDArrays.of(arrOf(m, n))))
+            assertNDArrayEquals(A.mul(A), c.mul(c, NDArrays.of(arrOf(n, m)).transpose()))
+        }
+    }
+
+    @Test
+    fun testParallelElementWiseCorrectness() {
+        val threshold = ElementWise.getParallelThreshold()
+        val chunkSize = ElementWise.getChunkSize()
+        try {
+            // chunks of a few elements up to a few rows, split across the pool
+            ElementWise.setParallelThreshold(0)
+            repeat(100) {
+                val m = Random.nextInt(1, 300)
+                val n = Random.nextInt(1, 300)
+                val chunk = Random.nextInt(1, 2 * n)
+                ElementWise.setChunkSize(chunk)
+
+                printMessage("chunk: $chunk, A: $m X $n")
+
+                val fa = FloatArray(m * n) { randomIntFloat(-5..5) }
+                val fb = FloatArray(m * n) { randomIntFloat(excludeZero = true) }
+                val fr = FloatArray(n) { randomIntFloat(excludeZero = true) }
+
+                val A = manager.create(fa, m, n)
+                val B = manager.create(fb, m, n)
+                val BT = manager.create(fb, n, m).transpose()
+                val R = manager.create(fr, arrOf(n))
+
+                val a = NDArray(arrOf(m, n), fa)
+                val b = NDArray(arrOf(m, n), fb)
+                val bt = NDArray(arrOf(n, m), fb).transpose()
+                val r = NDArray(arrOf(n), fr)
+
+                assertNDArrayEquals(A.add(B), a.add(b))
+                assertNDArrayEquals(A.div(BT), a.div(bt))
+                assertNDArrayEquals(A.mul(R), a.mul(r))
+                assertNDArrayEquals(A.sub(fb[0]), a.sub(fb[0]))
+                assertNDArrayEquals(A.exp(), a.exp())
+                assertNDArrayEquals(BT.exp(), bt.exp(NDArrays.of(arrOf(m, n))))
+            }
+        } finally {
+            ElementWise.setParallelThreshold(threshold)
+            ElementWise.setChunkSize(chunkSize)
+        }
+    }
+
+    @Test
+    fun testUnaryOperatorsAccuracy() {
+        fun sigmoid(x: Double) =
+            if (x >= 0) 1 / (1 + StrictMath.exp(-x))
+            else StrictMath.exp(x) / (1 + StrictMath.exp(x))
+
+        class Case(
+            val op: (NDArray) -> NDArray,
+            val reference: (Double) -> Double,
+            val from: Float,
+            val to: Float,
+            val ulps: Int
+        )
+
+        val cases =
+            mapOf(
+                "exp" to Case({ it.exp() }, StrictMath::exp, -100F, 100F, 1),
+                "log" to Case({ it.log() }, StrictMath::log, 0F, 1e6F, 1),
+                "tanh" to Case({ it.tanh() }, StrictMath::tanh, -10F, 10F, 1),
+                "sigmoid" to Case({ it.sigmoid() }, ::sigmoid, -100F, 100F, 4),
+                "sqrt" to Case({ it.sqrt() }, StrictMath::sqrt, 0F, 1e6F, 0),
+                "rsqrt" to Case({ it.rsqrt() }, { 1 / StrictMath.sqrt(it) }, 1e-6F, 1e6F, 1),
+                "abs" to Case({ it.abs() }, { StrictMath.abs(it) }, -10F, 10F, 0),
+                "neg" to Case({ it.neg() }, { -it }, -10F, 10F, 0),
+                "square" to Case({ it.square() }, { it * it }, -1e3F, 1e3F, 0),
+                // the cubic is rounded to float, its error grows through the exponential
+                "gelu" to
+                    Case(
+                        { it.gelu() },
+                        { it * sigmoid(2 * 0.7978846 * (it + 0.044715 * it * it * it)) },
+                        -3F,
+                        10F,
+                        32),
+            )
+
+        for ((name, case) in cases) {
+            // a length with a scalar tail
+            val n = Random.nextInt(1, 10_000)
+            val f = FloatArray(n) { case.from + Random.nextFloat() * (case.to - case.from) }
+            val res = case.op(NDArray(arrOf(n), f)).toArray()
+
+            printMessage("$name: $n")
+
+            for (i in 0 until n) {
+                val expected = case.reference(f[i].toDouble()).toFloat()
+                val error = Math.abs(res[i].toDouble() - expected) / Math.ulp(expected)
+                assertTrue(
+                    error <= case.ulps,
+                    "$name(${f[i]}) = ${res[i]}, expected $expected, $error ulps")
+            }
+        }
+
+        // special values, repeated to fill whole vectors
+        val inf = Float.POSITIVE_INFINITY
+        val special = arrOf(-inf, inf, 0F, Float.NaN)
+        fun expect(vararg values: Float) = FloatArray(64) { values[it % 4] }
+        val a = NDArray(arrOf(64), expect(*special))
+
+        assertArrayEquals(expect(0F, inf, 1F, Float.NaN), a.exp().toArray())
+        assertArrayEquals(expect(Float.NaN, inf, -inf, Float.NaN), a.log().toArray())
+        assertArrayEquals(expect(-1F, 1F, 0F, Float.NaN), a.tanh().toArray())
+        assertArrayEquals(expect(0F, 1F, 0.5F, Float.NaN), a.sigmoid().toArray())
+        assertArrayEquals(expect(Float.NaN, inf, 0F, Float.NaN), a.sqrt().toArray())
+        assertArrayEquals(expect(Float.NaN, 0F, inf, Float.NaN), a.rsqrt().toArray())
+    }
+
+    @Test
+    fun testLazyExpressionCorrectness() {
+        repeat(100) {
+            // rows shorter than a block and rows across several blocks
+            val m = Random.nextInt(1, 100)
+            val n = Random.nextInt(1, 2500)
+
+            printMessage("A: $m X $n")
+
+            val fa = FloatArray(m * n) { randomFloat() }
+            val fb = FloatArray(n * m) { randomFloat() }
+            val fr = FloatArray(n) { randomFloat() }
+
+            val A = manager.create(fa, m, n)
+            val BT = manager.create(fb, n, m).transpose()
+            val R = manager.create(fr, arrOf(n))
+            val C = A.max(arrOf(1), true)
+
+            val a = NDArray(arrOf(m, n), fa)
+            val bt = NDArray(arrOf(n, m), fb).transpose()
+            val r = NDArray(arrOf(n), fr)
+            val c = a.max(1, true)
+
+            // broadcast operands, a transposed one and a constant
+            val E = A.sub(C).exp().mul(R).add(BT.tanh()).maximum(0.25F)
+            val e = a.lazy().sub(c).exp().mul(r).add(bt.lazy().tanh()).maximum(0.25F)
+            assertNDArrayEquals(E, e.materialize())
+            assertNDArrayEquals(E, e.materialize(NDArrays.of(arrOf(n, m)).transpose()))
+
+            // reductions along the last axis are fused, the others go through materialize
+            val S = A.sub(C).exp()
+            val s = a.lazy().sub(c).exp()
+            assertNDArrayEquals(S.sum(arrOf(1)), s.sum(1), 0.01F)
+            assertNDArrayEquals(S.sum(arrOf(1), true), s.sum(-1, true), 0.01F)
+            assertNDArrayEquals(S.max(arrOf(1)), s.max(1))
+            assertNDArrayEquals(S.sum(arrOf(0)), s.sum(0), 0.01F)
+            assertNDArrayEquals(S.sum(), s.sum(), 0.1F)
+
+            // in place into an operand
+            val copy = NDArrays.of(arrOf(m, n), fa.copyOf())
+            copy.lazy().mul(r).neg().materialize(copy)
+            assertNDArrayEquals(A.mul(R).neg(), copy)
+
+            // which drops the packed copy of a matmul operand
+            val w = NDArrays.of(arrOf(n, m), fb.copyOf()).pack()
+            w.lazy().mul(0.9F).materialize(w)
+            assertFalse(w.isPacked)
+            val W = manager.create(fb, n, m).mul(0.9F)
+            assertNDArrayEquals(A.matMul(W), a.matmul(w), 0.01F)
+        }
+    }
+
     @Test
     fun testArithmeticOperatorsCorrectness() {
         // verify matrix
@@ -580,4 +1656,181 @@ class NDArrayTest {
             assertNDArrayEquals(A.minimum(bt), C.minimum(dt))
         }
     }
+
+    @Test
+    fun testDTypesCorrectness() {
+        val threshold = ElementWise.getParallelThreshold()
+        try {
+            repeat(50) {
+                val m = Random.nextInt(1, 100)
+                val k = Random.nextInt(1, 100)
+                val n = Random.nextInt(1, 100)
+                ElementWise.setParallelThreshold(Random.nextInt(0, 2) * Int.MAX_VALUE)
+
+                printMessage("A: $m X $k, B: $k X $n")
+
+                fun doubles(a: ai.djl.ndarray.NDArray) =
+                    a.toType(DataType.FLOAT64, false).toDoubleArray()
+
+                // doubles that are not floats stay doubles
+                val da = DoubleArray(m * k) { Random.nextDouble(-10.0, 10.0) }
+                val db = DoubleArray(k * n) { Random.nextDouble(-10.0, 10.0) }
+                val A = manager.create(da, Shape(m.toLong(), k.toLong()))
+                val B = manager.create(db, Shape(k.toLong(), n.toLong()))
+                val C = NDArrays.of(intArrayOf(m, k), da)
+                val D = NDArrays.of(intArrayOf(k, n), db)
+                assertEquals(DType.FLOAT64, C.getDType())
+                assertArrayEquals(da, C.toDoubleArray())
+
+                val AT = A.transpose()
+                val CT = C.transpose()
+                assertArrayEquals(doubles(AT.add(AT)), CT.add(CT).toDoubleArray())
+                assertArrayEquals(doubles(A.mul(A)), C.mul(C).toDoubleArray())
+                assertArrayEquals(doubles(A.div(3.0)), C.div(3F).toDoubleArray(), 1e-12)
+                assertArrayEquals(doubles(A.exp()), C.exp().toDoubleArray(), 1e-9)
+                assertArrayEquals(doubles(A.sum(intArrayOf(0))), C.sum(0).toDoubleArray(), 1e-9)
+                assertArrayEquals(doubles(A.max(intArrayOf(1))), C.max(1).toDoubleArray())
+                assertArrayEquals(doubles(A.matMul(B)), C.matmul(D).toDoubleArray(), 1e-9)
+                val argmax = A.argMax(1).toType(DataType.INT32, false)
+                assertArrayEquals(argmax.toIntArray(), C.argmax(1).toIntArray())
+
+                // ints are exact, and mixed with floats they promote
+                val ia = IntArray(m * k) { Random.nextInt(-100, 100) }
+                val ib = IntArray(k * n) { Random.nextInt(-100, 100) }
+                val E = NDArrays.of(intArrayOf(m, k), ia)
+                val F = NDArrays.of(intArrayOf(k, n), ib)
+                val G =
+                    manager
+                        .create(ia, Shape(m.toLong(), k.toLong()))
+                        .toType(DataType.FLOAT64, false)
+                val H =
+                    manager
+                        .create(ib, Shape(k.toLong(), n.toLong()))
+                        .toType(DataType.FLOAT64, false)
+                assertEquals(DType.INT32, E.add(E).getDType())
+                assertEquals(DType.FLOAT32, E.div(E).getDType())
+                assertEquals(DType.FLOAT64, E.mul(C).getDType())
+                assertArrayEquals(doubles(G.mul(G)), E.mul(E).toDoubleArray())
+                assertArrayEquals(doubles(G.sum(intArrayOf(1))), E.sum(1).toDoubleArray())
+                assertArrayEquals(doubles(G.matMul(H)), E.matmul(F).toDoubleArray())
+                assertArrayEquals(doubles(G.mul(A)), E.mul(C).toDoubleArray(), 1e-12)
+
+                // bytes wrap and booleans keep whether a value is not zero
+                val bytes = E.astype(DType.INT8)
+                assertArrayEquals(IntArray(ia.size) { ia[it].toByte().toInt() }, bytes.toIntArray())
+                val unsigned = E.astype(DType.UINT8)
+                assertArrayEquals(IntArray(ia.size) { ia[it] and 0xFF }, unsigned.toIntArray())
+                val mask = E.astype(DType.BOOL)
+                val nonZero = IntArray(ia.size) { if (ia[it] != 0) 1 else 0 }
+                assertArrayEquals(nonZero, mask.toIntArray())
+                assertEquals(DType.INT32, bytes.add(unsigned).getDType())
+                assertEquals(DType.INT32, mask.sum().getDType())
+            }
+
+            // int32 stays exact beyond 2^24, where float32 rounds, and wraps like Int
+            ElementWise.setParallelThreshold(0)
+            val zero = NDArrays.of(intArrayOf(1), intArrayOf(0))
+            val odd = NDArrays.of(intArrayOf(1), intArrayOf(16777217))
+            assertArrayEquals(intArrayOf(16777217), odd.add(zero).toIntArray())
+            assertArrayEquals(intArrayOf(16777217), odd.addi(0F).toIntArray())
+
+            val big = IntArray(64 * 1024) { (1 shl 24) + 1 + Random.nextInt(1000) }
+            val I = NDArrays.of(intArrayOf(64, 1024), big)
+            assertArrayEquals(IntArray(big.size) { big[it] * 3 }, I.add(I).add(I).toIntArray())
+            assertArrayEquals(IntArray(big.size) { big[it] * big[it] }, I.mul(I).toIntArray())
+            assertEquals(big.sum(), I.sum().toIntArray()[0])
+            val columns = IntArray(1024) { j -> (0 until 64).sumOf { big[it * 1024 + j] } }
+            assertArrayEquals(columns, I.sum(0).toIntArray())
+            assertArrayEquals(columns, I.transpose().sum(1).toIntArray())
+            val maxima = IntArray(64) { i -> (0 until 1024).maxOf { big[i * 1024 + it] } }
+            assertArrayEquals(maxima, I.max(1).toIntArray())
+
+            // int8 products overflow the float32 mantissa from k = 1041
+            val k = 1100
+            val a8 = NDArrays.of(intArrayOf(3, k), ByteArray(3 * k) { 127 }, DType.INT8)
+            val b8 = NDArrays.of(intArrayOf(k, 5), ByteArray(5 * k) { -127 }, DType.INT8)
+            assertArrayEquals(IntArray(15) { -127 * 127 * k }, a8.matmul(b8).toIntArray())
+        } finally {
+            ElementWise.setParallelThreshold(threshold)
+        }
+    }
+
+    @Test
+    fun testHalfPrecisionCorrectness() {
+        val threshold = ElementWise.getParallelThreshold()
+        try {
+            repeat(20) {
+                val m = Random.nextInt(1, 100)
+                val k = Random.nextInt(1, 100)
+                val n = Random.nextInt(1, 100)
+                ElementWise.setParallelThreshold(Random.nextInt(0, 2) * Int.MAX_VALUE)
+
+                printMessage("A: $m X $k, B: $k X $n")
+
+                val fa = FloatArray(m * k) { Random.nextFloat() * 8 - 4 }
+                val fb = FloatArray(k * n) { Random.nextFloat() * 8 - 4 }
+                val C = NDArrays.of(intArrayOf(m, k), fa)
+                val D = NDArrays.of(intArrayOf(k, n), fb)
+
+                // stores round to the nearest even and loads are exact
+                val float16 =
+                    FloatArray(fa.size) {
+                        java.lang.Float.float16ToFloat(java.lang.Float.floatToFloat16(fa[it]))
+                    }
+                assertArrayEquals(float16, C.astype(DType.FLOAT16).toArray())
+                val bfloat16 =
+                    FloatArray(fa.size) {
+                        val bits = fa[it].toRawBits()
+                        Float.fromBits((bits + 0x7FFF + ((bits ushr 16) and 1)) ushr 16 shl 16)
+                    }
+                assertArrayEquals(bfloat16, C.astype(DType.BFLOAT16).toArray())
+
+                // the precision of each type relative to the largest value
+                val precisions = listOf(DType.FLOAT16 to 1F / 1024, DType.BFLOAT16 to 1F / 128)
+                for ((dtype, eps) in precisions) {
+                    val E = C.astype(dtype)
+                    val F = D.astype(dtype)
+                    val A = manager.create(E.toArray(), m, k)
+                    val B = manager.create(F.toArray(), k, n)
+
+                    // the float32 results of the stored values, rounded once
+                    fun assertRounded(a: ai.djl.ndarray.NDArray, b: NDArray) {
+                        assertEquals(dtype, b.getDType())
+                        assertArrayEquals(a.shape.shape, b.shape.toLongArray())
+                        val rounded = NDArrays.of(a.toFloatArray()).astype(dtype)
+                        val tol = a.abs().max().getFloat() * eps + 1e-6F
+                        assertArrayEquals(rounded.toArray(), b.toArray(), tol)
+                    }
+
+                    assertRounded(A.add(A), E.add(E))
+                    assertRounded(A.mul(A), E.mul(E))
+                    assertRounded(A.mul(3), E.mul(3F))
+                    assertRounded(A.exp(), E.exp())
+                    assertRounded(A.sum(intArrayOf(0)), E.sum(0))
+                    assertRounded(A.sum(intArrayOf(1)), E.sum(1))
+                    assertRounded(A.mean(intArrayOf(0)), E.mean(0))
+                    assertRounded(A.matMul(B), E.matmul(F))
+                }
+            }
+
+            // partial sums are kept in float32, a mean of large values does not overflow
+            val large = NDArrays.of(intArrayOf(64, 64)).add(1000F).astype(DType.FLOAT16)
+            assertEquals(1000F, large.mean().asScalar())
+            assertEquals(1000F, large.mean(0).toArray()[0])
+            assertEquals(Float.POSITIVE_INFINITY, large.sum().asScalar())
+
+            // scalars and integers keep the 16-bit type, the two formats promote to float32
+            val half = NDArrays.of(intArrayOf(2, 3)).astype(DType.FLOAT16)
+            val brain = half.astype(DType.BFLOAT16)
+            val ints = NDArrays.of(intArrayOf(2, 3), IntArray(6) { it })
+            assertEquals(DType.FLOAT16, half.mul(2F).getDType())
+            assertEquals(DType.FLOAT16, half.add(ints).getDType())
+            assertEquals(DType.FLOAT16, half.add(NDArrays.ofScalar(1F)).getDType())
+            assertEquals(DType.FLOAT32, half.add(brain).getDType())
+            assertEquals(DType.FLOAT32, brain.add(half.astype(DType.FLOAT32)).getDType())
+            assertEquals(DType.BFLOAT16, brain.sum().getDType())
+        } finally {
+            ElementWise.setParallelThreshold(threshold)
+        }
+    }
 }
@@ -58,6 +58,11 @@ fun assertTensorEquals(a: DJLNDArray, b: Tensor, tol: Float = 0.001F, message: S
     assertArrayEquals(a.toFloatArray(), b.toArray(), tol, message)
 }
 
+// row-major (rows X cols) data re-laid out as row-major (cols X rows)
+fun FloatArray.transposed(rows: Int, cols: Int): FloatArray {
+    return FloatArray(size) { i -> this[(i % rows) * cols + i / rows] }
+}
+
 fun printMessage(message: String?) {
     println(message)
 }